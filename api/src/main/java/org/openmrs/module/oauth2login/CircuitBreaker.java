@@ -0,0 +1,116 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Guards the calls to a remote endpoint so that, once the endpoint is failing, callers fail fast
+ * instead of each waiting for a timeout.
+ * <ul>
+ * <li>{@link State#CLOSED}: calls go through, the circuit opens after a number of consecutive
+ * failures.</li>
+ * <li>{@link State#OPEN}: calls are rejected until the open duration has elapsed.</li>
+ * <li>{@link State#HALF_OPEN}: a single probe call goes through while the others are still
+ * rejected, the circuit closes if the probe succeeds and opens again otherwise.</li>
+ * </ul>
+ * The state transitions and rejections are counted in the {@link OAuth2LoginMetrics} under
+ * <code>circuitBreaker.&lt;name&gt;.*</code>.
+ */
+public class CircuitBreaker {
+	
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private final String name;
+	
+	private final int failureThreshold;
+	
+	private final long openNanos;
+	
+	private final LongSupplier clock;
+	
+	private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+	
+	private final AtomicInteger failures = new AtomicInteger();
+	
+	private volatile long openedAt;
+	
+	/**
+	 * @param name The name of the guarded endpoint, used in the metrics.
+	 * @param failureThreshold The number of consecutive failures that opens the circuit.
+	 * @param openMillis How long the circuit stays open before a probe call is let through.
+	 * @param clock The nano time source.
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long openMillis, LongSupplier clock) {
+		this.name = name;
+		this.failureThreshold = Math.max(failureThreshold, 1);
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(openMillis, 0));
+		this.clock = clock;
+		OAuth2LoginMetrics.gauge(metric("state"), () -> state.get().ordinal());
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public State getState() {
+		return state.get();
+	}
+	
+	/**
+	 * Checks whether a call may go through, the caller must then report its outcome with
+	 * {@link #onSuccess()} or {@link #onFailure()}.
+	 * 
+	 * @throws CircuitBreakerOpenException if the call is rejected.
+	 */
+	public void acquire() throws CircuitBreakerOpenException {
+		State current = state.get();
+		if (current == State.CLOSED) {
+			return;
+		}
+		if (current == State.OPEN && clock.getAsLong() - openedAt >= openNanos
+		        && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+			OAuth2LoginMetrics.increment(metric("halfOpened"));
+			return;
+		}
+		OAuth2LoginMetrics.increment(metric("rejected"));
+		throw new CircuitBreakerOpenException(name);
+	}
+	
+	public void onSuccess() {
+		failures.set(0);
+		if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+			OAuth2LoginMetrics.increment(metric("closed"));
+		}
+	}
+	
+	public void onFailure() {
+		if (state.get() == State.HALF_OPEN || failures.incrementAndGet() >= failureThreshold) {
+			open();
+		}
+	}
+	
+	private void open() {
+		openedAt = clock.getAsLong();
+		failures.set(0);
+		if (state.getAndSet(State.OPEN) != State.OPEN) {
+			OAuth2LoginMetrics.increment(metric("opened"));
+		}
+	}
+	
+	private String metric(String suffix) {
+		return "circuitBreaker." + name + "." + suffix;
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call is rejected without being attempted because the circuit breaker guarding its
+ * endpoint is open.
+ * 
+ * @see CircuitBreaker
+ */
+public class CircuitBreakerOpenException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public CircuitBreakerOpenException(String name) {
+		super("The circuit breaker for '" + name + "' is open, the call is rejected.");
+	}
+	
+	/**
+	 * @param t A throwable.
+	 * @return true if the throwable or any of its causes is a circuit breaker rejection.
+	 */
+	public static boolean isCause(Throwable t) {
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause instanceof CircuitBreakerOpenException) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+}
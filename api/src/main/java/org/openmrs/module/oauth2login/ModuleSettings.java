@@ -0,0 +1,113 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login;
+
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.GP_PREFIX;
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.MODULE_SETTINGS_COMPONENT;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.PrivilegeConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * The module's global properties, those prefixed with <code>oauth2login.</code>, read from the
+ * database once and then kept current as they are saved or deleted. This keeps the database out of
+ * the paths that read settings on every request, such as the login.
+ * <p>
+ * The settings are registered as a {@link GlobalPropertyListener} when the module starts.
+ */
+@Component(MODULE_SETTINGS_COMPONENT)
+public class ModuleSettings implements GlobalPropertyListener {
+	
+	private static final Logger log = LoggerFactory.getLogger(ModuleSettings.class);
+	
+	public static final String METRIC_LOADS = "settings.loads";
+	
+	private final Supplier<List<GlobalProperty>> loader;
+	
+	private final Map<String, String> values = new ConcurrentHashMap<>();
+	
+	private volatile boolean loaded = false;
+	
+	public ModuleSettings() {
+		this(ModuleSettings::getGlobalProperties);
+	}
+	
+	ModuleSettings(Supplier<List<GlobalProperty>> loader) {
+		this.loader = loader;
+	}
+	
+	/**
+	 * @param name The global property name.
+	 * @return The global property value, or null if not set.
+	 */
+	public String get(String name) {
+		if (!loaded) {
+			load();
+		}
+		return values.get(name);
+	}
+	
+	/**
+	 * Reads all the module's global properties from the database, replacing any cached value.
+	 */
+	public synchronized void load() {
+		Map<String, String> fresh = new HashMap<>();
+		for (GlobalProperty gp : loader.get()) {
+			if (gp.getPropertyValue() != null) {
+				fresh.put(gp.getProperty(), gp.getPropertyValue());
+			}
+		}
+		values.keySet().retainAll(fresh.keySet());
+		values.putAll(fresh);
+		loaded = true;
+		OAuth2LoginMetrics.increment(METRIC_LOADS);
+		log.debug("Loaded {} global properties prefixed with '{}'", fresh.size(), GP_PREFIX);
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return propertyName != null && propertyName.startsWith(GP_PREFIX);
+	}
+	
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		if (newValue.getPropertyValue() == null) {
+			values.remove(newValue.getProperty());
+		} else {
+			values.put(newValue.getProperty(), newValue.getPropertyValue());
+		}
+	}
+	
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		values.remove(propertyName);
+	}
+	
+	private static List<GlobalProperty> getGlobalProperties() {
+		try {
+			Context.addProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+			return Context.getAdministrationService().getGlobalPropertiesByPrefix(GP_PREFIX);
+		}
+		finally {
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+		}
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The configuration from <code>oauth2.properties</code>, loaded once into an immutable snapshot
+ * rather than read from disk wherever it is needed.
+ * <p>
+ * While watching, changes to the file are picked up and the snapshot is swapped atomically, so that
+ * readers of {@link #get()} always see a complete configuration, either the previous or the new
+ * one. A file that can't be read leaves the current snapshot in place. Components holding on to
+ * the configuration should hold {@link #live()}, which always reads the current snapshot. Beans
+ * configured once from the properties at startup (HTTP pool, executors, client registration, caches
+ * sizes...) still need a restart.
+ */
+public class OAuth2Configuration {
+	
+	private static final Logger log = LoggerFactory.getLogger(OAuth2Configuration.class);
+	
+	public static final String METRIC_RELOADS = "config.reloads";
+	
+	public static final String METRIC_RELOAD_FAILURES = "config.reloadFailures";
+	
+	private static final OAuth2Configuration instance = new OAuth2Configuration(
+	        PropertyUtils::getOAuth2PropertiesPath, PropertyUtils::getOAuth2Properties);
+	
+	private final Supplier<Path> path;
+	
+	private final Callable<Properties> loader;
+	
+	private final AtomicReference<Properties> snapshot = new AtomicReference<>();
+	
+	private final Properties live = new LiveView();
+	
+	private volatile WatchService watchService;
+	
+	OAuth2Configuration(Supplier<Path> path, Callable<Properties> loader) {
+		this.path = path;
+		this.loader = loader;
+	}
+	
+	/**
+	 * @return The module's configuration.
+	 */
+	public static OAuth2Configuration getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * @return The current snapshot, loaded on first access. It can't be modified, its clones can.
+	 * @throws IOException if the configuration has never been loaded and can't be.
+	 */
+	public Properties get() throws IOException {
+		Properties current = snapshot.get();
+		if (current == null) {
+			synchronized (this) {
+				current = snapshot.get();
+				if (current == null) {
+					current = reload();
+				}
+			}
+		}
+		return current;
+	}
+	
+	/**
+	 * A read-only view of the configuration that reads the current snapshot at each access, so that
+	 * it can be held on to and still see the reloads. Several reads may see different snapshots when
+	 * a reload happens in between, {@link #get()} gives a consistent snapshot.
+	 * 
+	 * @return The live view of the configuration. Its clones are modifiable copies of the current
+	 *         snapshot.
+	 */
+	public Properties live() {
+		return live;
+	}
+	
+	/**
+	 * Reads the configuration again and swaps the snapshot.
+	 * 
+	 * @return The new snapshot.
+	 * @throws IOException if the configuration can't be read, the current snapshot is then kept.
+	 */
+	public Properties reload() throws IOException {
+		Properties fresh;
+		try {
+			fresh = Snapshot.of(loader.call());
+		}
+		catch (IOException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new IOException("Failed to load the OAuth 2 configuration", e);
+		}
+		snapshot.set(fresh);
+		OAuth2LoginMetrics.increment(METRIC_RELOADS);
+		return fresh;
+	}
+	
+	/**
+	 * Discards the current snapshot, the configuration is loaded again on next access. This is
+	 * needed when the file location changes, ie. the application data directory.
+	 */
+	public void invalidate() {
+		snapshot.set(null);
+	}
+	
+	/**
+	 * Starts watching the file for changes, on a daemon thread.
+	 * 
+	 * @throws IOException if the file's directory can't be watched.
+	 */
+	public synchronized void startWatching() throws IOException {
+		if (watchService != null) {
+			return;
+		}
+		Path file = path.get().toAbsolutePath();
+		WatchService service = FileSystems.getDefault().newWatchService();
+		file.getParent().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+		watchService = service;
+		
+		Thread watcher = new Thread(() -> watch(service, file.getFileName()), "oauth2login-config-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+		log.info("Watching {} for changes", file);
+	}
+	
+	/**
+	 * Stops watching the file, the current snapshot remains.
+	 */
+	public synchronized void stopWatching() {
+		if (watchService == null) {
+			return;
+		}
+		try {
+			watchService.close();
+		}
+		catch (IOException e) {
+			log.warn("Failed to close the configuration watch service", e);
+		}
+		watchService = null;
+	}
+	
+	private void watch(WatchService service, Path fileName) {
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					changed |= fileName.equals(event.context());
+				}
+				key.reset();
+				if (changed) {
+					try {
+						reload();
+						log.info("Reloaded the OAuth 2 configuration after {} changed", fileName);
+					}
+					catch (IOException | RuntimeException e) {
+						OAuth2LoginMetrics.increment(METRIC_RELOAD_FAILURES);
+						log.warn("Failed to reload the OAuth 2 configuration, keeping the current one", e);
+					}
+				}
+			}
+		}
+		catch (ClosedWatchServiceException e) {
+			log.debug("Stopped watching the OAuth 2 configuration");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Properties that delegate to the current snapshot.
+	 */
+	private final class LiveView extends Properties {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private Properties current() {
+			try {
+				return get();
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("The OAuth 2 configuration is not available", e);
+			}
+		}
+		
+		@Override
+		public String getProperty(String key) {
+			return current().getProperty(key);
+		}
+		
+		@Override
+		public String getProperty(String key, String defaultValue) {
+			return current().getProperty(key, defaultValue);
+		}
+		
+		@Override
+		public Enumeration<?> propertyNames() {
+			return current().propertyNames();
+		}
+		
+		@Override
+		public Set<String> stringPropertyNames() {
+			return current().stringPropertyNames();
+		}
+		
+		@Override
+		public synchronized Object get(Object key) {
+			return current().get(key);
+		}
+		
+		@Override
+		public synchronized Object getOrDefault(Object key, Object defaultValue) {
+			return current().getOrDefault(key, defaultValue);
+		}
+		
+		@Override
+		public synchronized boolean containsKey(Object key) {
+			return current().containsKey(key);
+		}
+		
+		@Override
+		public synchronized boolean contains(Object value) {
+			return current().contains(value);
+		}
+		
+		@Override
+		public boolean containsValue(Object value) {
+			return current().containsValue(value);
+		}
+		
+		@Override
+		public synchronized int size() {
+			return current().size();
+		}
+		
+		@Override
+		public synchronized boolean isEmpty() {
+			return current().isEmpty();
+		}
+		
+		@Override
+		public synchronized Enumeration<Object> keys() {
+			return current().keys();
+		}
+		
+		@Override
+		public synchronized Enumeration<Object> elements() {
+			return current().elements();
+		}
+		
+		@Override
+		public Set<Object> keySet() {
+			return Collections.unmodifiableSet(current().keySet());
+		}
+		
+		@Override
+		public Set<Map.Entry<Object, Object>> entrySet() {
+			return Collections.unmodifiableSet(current().entrySet());
+		}
+		
+		@Override
+		public Collection<Object> values() {
+			return Collections.unmodifiableCollection(current().values());
+		}
+		
+		@Override
+		public synchronized void forEach(BiConsumer<? super Object, ? super Object> action) {
+			current().forEach(action);
+		}
+		
+		@Override
+		public synchronized Object put(Object key, Object value) {
+			throw new UnsupportedOperationException("The configuration can't be modified");
+		}
+		
+		@Override
+		public synchronized Object remove(Object key) {
+			throw new UnsupportedOperationException("The configuration can't be modified");
+		}
+		
+		@Override
+		public synchronized void clear() {
+			throw new UnsupportedOperationException("The configuration can't be modified");
+		}
+		
+		@Override
+		public synchronized Object clone() {
+			Properties copy = new Properties();
+			copy.putAll(current());
+			return copy;
+		}
+		
+		@Override
+		public synchronized boolean equals(Object o) {
+			return this == o;
+		}
+		
+		@Override
+		public synchronized int hashCode() {
+			return System.identityHashCode(this);
+		}
+		
+		@Override
+		public synchronized String toString() {
+			return current().toString();
+		}
+	}
+	
+	/**
+	 * Properties that can't be modified once loaded.
+	 */
+	private static final class Snapshot extends Properties {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final boolean frozen;
+		
+		private Snapshot(Properties props) {
+			for (Map.Entry<Object, Object> e : props.entrySet()) {
+				super.put(e.getKey(), e.getValue());
+			}
+			frozen = true;
+		}
+		
+		static Properties of(Properties props) {
+			// subclasses may not be plain key/value maps, they are kept as they are
+			return props.getClass() == Properties.class ? new Snapshot(props) : props;
+		}
+		
+		@Override
+		public synchronized Object put(Object key, Object value) {
+			if (frozen) {
+				throw new UnsupportedOperationException("The configuration snapshot can't be modified");
+			}
+			return super.put(key, value);
+		}
+		
+		@Override
+		public synchronized Object remove(Object key) {
+			throw new UnsupportedOperationException("The configuration snapshot can't be modified");
+		}
+		
+		@Override
+		public synchronized void clear() {
+			throw new UnsupportedOperationException("The configuration snapshot can't be modified");
+		}
+		
+		@Override
+		public synchronized Object clone() {
+			Properties copy = new Properties();
+			copy.putAll(this);
+			return copy;
+		}
+	}
+}
@@ -11,6 +11,7 @@ package org.openmrs.module.oauth2login;
 
 import static org.openmrs.module.oauth2login.OAuth2LoginConstants.AUTH_SCHEME_COMPONENT;
 import static org.openmrs.module.oauth2login.OAuth2LoginConstants.MODULE_ARTIFACT_ID;
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.MODULE_SETTINGS_COMPONENT;
 import static org.openmrs.module.oauth2login.OAuth2LoginConstants.OAUTH2_ENABLED_PROPERTY;
 
 import org.apache.commons.logging.Log;
@@ -41,7 +42,8 @@ public class OAuth2LoginActivator extends BaseModuleActivator implements DaemonT
 	public void willStart() {
 		// Checks if OAuth2 is enabled, if not, stops the module and unloads it
 		try {
-			Properties oauth2Props = PropertyUtils.getOAuth2Properties();
+			// the configuration is read afresh when the module starts, and then kept current while it runs
+			Properties oauth2Props = OAuth2Configuration.getInstance().reload();
 			boolean moduleEnabled = Boolean.parseBoolean(oauth2Props.getProperty(OAUTH2_ENABLED_PROPERTY, "true"));
 			if (!moduleEnabled) {
 				log.info("OAuth2 is disabled. Skipping module start.");
@@ -66,6 +68,27 @@ public class OAuth2LoginActivator extends BaseModuleActivator implements DaemonT
 		log.info("Started " + OAuth2LoginConstants.MODULE_NAME);
 		
 		Context.getRegisteredComponent(AUTH_SCHEME_COMPONENT, DaemonTokenAware.class).setDaemonToken(daemonToken);
+		
+		ModuleSettings settings = Context.getRegisteredComponent(MODULE_SETTINGS_COMPONENT, ModuleSettings.class);
+		settings.load();
+		Context.getAdministrationService().addGlobalPropertyListener(settings);
+		
+		try {
+			OAuth2Configuration.getInstance().startWatching();
+		}
+		catch (IOException e) {
+			log.warn("Changes to the OAuth 2 configuration will not be picked up until the module restarts", e);
+		}
+	}
+	
+	/**
+	 * @see #willStop()
+	 */
+	@Override
+	public void willStop() {
+		OAuth2Configuration.getInstance().stopWatching();
+		Context.getAdministrationService().removeGlobalPropertyListener(
+		    Context.getRegisteredComponent(MODULE_SETTINGS_COMPONENT, ModuleSettings.class));
 	}
 	
 	/**
@@ -23,10 +23,29 @@ public class OAuth2LoginConstants {
 	 */
 	public static final String AUTH_SCHEME_COMPONENT = "oauth2login.userInfoAuthenticationScheme";
 	
+	public static final String USER_CACHE_COMPONENT = "oauth2login.userCache";
+	
+	public static final String PROVIDER_STATE_CACHE_COMPONENT = "oauth2login.providerStateCache";
+	
+	public static final String USER_IMPORTER_COMPONENT = "oauth2login.userImporter";
+	
+	public static final String IDP_USER_SOURCE_COMPONENT = "oauth2login.idpUserSource";
+	
+	public static final String MODULE_SETTINGS_COMPONENT = "oauth2login.moduleSettings";
+	
+	public static final String SHARED_STATE_DAO_COMPONENT = "oauth2login.sharedStateDao";
+	
 	public static final String OAUTH_PROP_BEAN_NAME = "oauth2.properties";
 	
 	public static final String USER_PROP_ID_TOKEN = "oauth2IdToken";
 	
 	public static final String OAUTH2_ENABLED_PROPERTY = "oauth2.enabled";
 	
+	/*
+	 * Global properties
+	 */
+	public static final String GP_PREFIX = MODULE_ARTIFACT_ID + ".";
+	
+	public static final String GP_REDIRECT_URI_AFTER_LOGIN = GP_PREFIX + "redirectUriAfterLogin";
+	
 }
@@ -0,0 +1,77 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The module's metrics: monotonic counters and gauges, all identified by a dotted name such as
+ * <code>userCache.hits</code>.
+ * <p>
+ * Counters are cheap to increment from any thread, gauges are evaluated when a snapshot is taken.
+ */
+public final class OAuth2LoginMetrics {
+	
+	private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	
+	private static final ConcurrentMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+	
+	private OAuth2LoginMetrics() {
+	}
+	
+	public static void increment(String name) {
+		counter(name).increment();
+	}
+	
+	public static void add(String name, long delta) {
+		counter(name).add(delta);
+	}
+	
+	public static long count(String name) {
+		LongAdder counter = counters.get(name);
+		return counter == null ? 0 : counter.sum();
+	}
+	
+	/**
+	 * Registers a gauge, replacing any gauge previously registered with the same name.
+	 * 
+	 * @param name The gauge name.
+	 * @param gauge The supplier of the gauge value.
+	 */
+	public static void gauge(String name, Supplier<? extends Number> gauge) {
+		gauges.put(name, gauge);
+	}
+	
+	/**
+	 * @return The current value of all counters and gauges, sorted by name.
+	 */
+	public static Map<String, Number> snapshot() {
+		Map<String, Number> snapshot = new TreeMap<>();
+		counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+		gauges.forEach((name, gauge) -> snapshot.put(name, gauge.get()));
+		return snapshot;
+	}
+	
+	/**
+	 * Resets all counters, mostly meant for testing.
+	 */
+	public static void reset() {
+		counters.clear();
+	}
+	
+	private static LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, k -> new LongAdder());
+	}
+}
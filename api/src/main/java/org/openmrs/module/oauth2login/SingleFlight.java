@@ -0,0 +1,140 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Coalesces concurrent executions of the same work: while an operation is in flight for a key, any
+ * other caller for the same key waits for it and gets its outcome instead of running the work a
+ * second time.
+ * <p>
+ * Only callers for the same key are coordinated, callers for different keys never wait on each
+ * other. An entry only lives for as long as its operation is in flight, the outcome is not cached.
+ * <p>
+ * When the callers must not share the outcome, for instance because it is bound to the session of
+ * the caller, {@link #executeUntilCompletion(Object, Supplier)} only serializes them instead.
+ * 
+ * @param <K> The key type, typically a username.
+ * @param <V> The result type.
+ */
+public class SingleFlight<K, V> {
+	
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	
+	/**
+	 * Runs the work for the key, or waits for the work already in flight for that key.
+	 * 
+	 * @param key The key identifying the work.
+	 * @param work The work to run if none is in flight for the key.
+	 * @return The result of the work, possibly computed by another thread.
+	 * @throws RuntimeException The exception thrown by the work, possibly in another thread.
+	 */
+	public V execute(K key, Supplier<V> work) {
+		CompletableFuture<V> future = new CompletableFuture<>();
+		CompletableFuture<V> leader = inFlight.putIfAbsent(key, future);
+		if (leader != null) {
+			return await(leader);
+		}
+		
+		try {
+			V result = work.get();
+			future.complete(result);
+			return result;
+		}
+		catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			inFlight.remove(key, future);
+		}
+	}
+	
+	/**
+	 * Runs the work for the key once no other work is in flight for it. Unlike
+	 * {@link #execute(Object, Supplier)} the key stays held until the transaction in which the work
+	 * ran has completed, if any, and the callers that waited then run the work themselves rather than
+	 * getting the outcome of the first caller. This is meant for work whose effects other callers
+	 * must see committed, such as creating a user, and whose results are bound to the caller's
+	 * session.
+	 * 
+	 * @param key The key identifying the work.
+	 * @param work The work to run.
+	 * @return The result of this caller's work.
+	 * @throws RuntimeException The exception thrown by this caller's work.
+	 */
+	public V executeUntilCompletion(K key, Supplier<V> work) {
+		while (true) {
+			CompletableFuture<V> future = new CompletableFuture<>();
+			CompletableFuture<V> leader = inFlight.putIfAbsent(key, future);
+			if (leader != null) {
+				// the outcome of the leader is not shared, only its completion
+				await(leader);
+				continue;
+			}
+			
+			Runnable release = () -> {
+				inFlight.remove(key, future);
+				future.complete(null);
+			};
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+					
+					@Override
+					public void afterCompletion(int status) {
+						release.run();
+					}
+				});
+				return work.get();
+			}
+			try {
+				return work.get();
+			}
+			finally {
+				release.run();
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of keys that currently have work in flight.
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+	
+	private V await(CompletableFuture<V> leader) {
+		try {
+			return leader.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for an operation in flight.", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+}
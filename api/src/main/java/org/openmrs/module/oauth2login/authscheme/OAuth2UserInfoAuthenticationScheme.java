@@ -10,6 +10,9 @@
 package org.openmrs.module.oauth2login.authscheme;
 
 import static org.openmrs.module.oauth2login.OAuth2LoginConstants.AUTH_SCHEME_COMPONENT;
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.OAUTH_PROP_BEAN_NAME;
+
+import java.util.Properties;
 
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.logging.Log;
@@ -25,6 +28,7 @@ import org.openmrs.api.context.Daemon;
 import org.openmrs.api.context.DaoAuthenticationScheme;
 import org.openmrs.module.DaemonToken;
 import org.openmrs.module.DaemonTokenAware;
+import org.openmrs.module.oauth2login.SingleFlight;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
@@ -37,12 +41,29 @@ import org.springframework.transaction.annotation.Transactional;
 @Component(AUTH_SCHEME_COMPONENT)
 public class OAuth2UserInfoAuthenticationScheme extends DaoAuthenticationScheme implements DaemonTokenAware {
 	
+	/**
+	 * Whether existing users are updated as per their user info at each login, true by default. It
+	 * can be turned off when users are kept in sync by the background user reconciliation.
+	 */
+	public static final String PROP_SYNC_ON_LOGIN = "userSync.onLogin";
+	
 	protected Log log = LogFactory.getLog(getClass());
 	
 	private DaemonToken daemonToken;
 	
 	private AuthenticationPostProcessor postProcessor;
 	
+	/**
+	 * Concurrent authentications of the same username (double submits, several tabs, client
+	 * retries...) run one at a time, each waiting for the previous one to be committed, so that a new
+	 * user is only created once and each authentication gets the user from its own session.
+	 */
+	private final SingleFlight<String, Authenticated> inFlight = new SingleFlight<>();
+	
+	private UserCache userCache;
+	
+	private Properties oauth2Props = new Properties();
+	
 	@Autowired
 	private UserService userService;
 	
@@ -58,6 +79,16 @@ public class OAuth2UserInfoAuthenticationScheme extends DaoAuthenticationScheme
 		this.postProcessor = postProcessor;
 	}
 	
+	@Autowired(required = false)
+	public void setUserCache(UserCache userCache) {
+		this.userCache = userCache;
+	}
+	
+	@Autowired(required = false)
+	public void setOAuth2Properties(@Qualifier(OAUTH_PROP_BEAN_NAME) Properties oauth2Props) {
+		this.oauth2Props = oauth2Props;
+	}
+	
 	public OAuth2UserInfoAuthenticationScheme() {
 		setPostProcessor(new AuthenticationPostProcessor() {
 			
@@ -80,26 +111,48 @@ public class OAuth2UserInfoAuthenticationScheme extends DaoAuthenticationScheme
 			        + getClass().getSimpleName() + " authentication scheme.", e);
 		}
 		
-		User user = getContextDAO().getUserByUsername(credentials.getClientName());
+		return inFlight.executeUntilCompletion(creds.getClientName(), () -> provisionAndAuthenticate(creds));
+	}
+	
+	private Authenticated provisionAndAuthenticate(OAuth2TokenCredentials creds) {
+		User user = getUser(creds.getClientName());
 		if (!creds.isServiceAccount()) {
 			if (user == null) {
-				createUser(creds.getUserInfo());
-				// Get the user again after the user has been created
-				user = getContextDAO().getUserByUsername(credentials.getClientName());
-			} else {
+				user = createUser(creds.getUserInfo());
+				if (user == null) {
+					// Get the user again after the user has been created
+					user = getContextDAO().getUserByUsername(creds.getClientName());
+				}
+			} else if (Boolean.parseBoolean(oauth2Props.getProperty(PROP_SYNC_ON_LOGIN, "true"))) {
 				updateUser(user, creds.getUserInfo());
 			}
 			
 			postProcessor.process(creds.getUserInfo());
 		}
-		return new BasicAuthenticated(user, credentials.getAuthenticationScheme());
+		return new BasicAuthenticated(user, creds.getAuthenticationScheme());
+	}
+	
+	/**
+	 * Fetches the user by username, by primary key in the current session when its id is in the user
+	 * cache.
+	 */
+	private User getUser(String username) {
+		Integer userId = userCache == null ? null : userCache.getUserId(username);
+		User user = userId == null ? null : getContextDAO().getUser(userId);
+		if (user == null) {
+			user = getContextDAO().getUserByUsername(username);
+			if (userCache != null) {
+				userCache.put(username, user);
+			}
+		}
+		return user;
 	}
 	
-	private void createUser(UserInfo userInfo) throws ContextAuthenticationException {
+	private User createUser(UserInfo userInfo) throws ContextAuthenticationException {
 		try {
 			User user = userInfo.getOpenmrsUser("n/a");
 			String password = RandomStringUtils.random(100, true, true);
-			getContextDAO().createUser(user, password, userInfo.getRoleNames());
+			return getContextDAO().createUser(user, password, userInfo.getRoleNames());
 		}
 		catch (Exception e) {
 			throw new ContextAuthenticationException(e.getMessage(), e);
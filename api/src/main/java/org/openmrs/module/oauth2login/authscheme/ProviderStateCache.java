@@ -0,0 +1,91 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.authscheme;
+
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.PROVIDER_STATE_CACHE_COMPONENT;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Remembers the provider account state (active or not) last applied for a person at login, so that
+ * the provider account only needs to be looked at again when the user info provider claim changes.
+ * <p>
+ * A person's state is forgotten as soon as any of its provider accounts is saved, retired,
+ * unretired or purged, see {@link ProviderStateInvalidationAdvice}. When applied within a
+ * transaction a state is only remembered once that transaction has committed.
+ */
+@Component(PROVIDER_STATE_CACHE_COMPONENT)
+public class ProviderStateCache {
+	
+	public static final String METRIC_HITS = "providerState.hits";
+	
+	public static final String METRIC_MISSES = "providerState.misses";
+	
+	private static final int MAX_SIZE = 10000;
+	
+	private final ConcurrentMap<Integer, Boolean> states = new ConcurrentHashMap<>();
+	
+	/**
+	 * @param personId The person ID.
+	 * @param active The provider state as per the user info.
+	 * @return true if that state was the last one applied to the person's provider account.
+	 */
+	public boolean isApplied(Integer personId, boolean active) {
+		boolean applied = personId != null && Boolean.valueOf(active).equals(states.get(personId));
+		OAuth2LoginMetrics.increment(applied ? METRIC_HITS : METRIC_MISSES);
+		return applied;
+	}
+	
+	/**
+	 * Records the provider state applied to the person's provider account.
+	 * 
+	 * @param personId The person ID.
+	 * @param active The provider state that was applied.
+	 */
+	public void applied(Integer personId, boolean active) {
+		if (personId == null) {
+			return;
+		}
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCommit() {
+					put(personId, active);
+				}
+			});
+		} else {
+			put(personId, active);
+		}
+	}
+	
+	public void invalidate(Integer personId) {
+		if (personId != null) {
+			states.remove(personId);
+		}
+	}
+	
+	public void clear() {
+		states.clear();
+	}
+	
+	private void put(Integer personId, boolean active) {
+		if (states.size() >= MAX_SIZE) {
+			states.clear();
+		}
+		states.put(personId, active);
+	}
+}
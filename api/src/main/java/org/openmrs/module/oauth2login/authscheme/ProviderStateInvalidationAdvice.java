@@ -0,0 +1,69 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.authscheme;
+
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.PROVIDER_STATE_CACHE_COMPONENT;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openmrs.Provider;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Advice around {@link org.openmrs.api.ProviderService} that makes the {@link ProviderStateCache}
+ * forget the persons whose provider accounts are saved, retired, unretired or purged.
+ */
+public class ProviderStateInvalidationAdvice implements AfterReturningAdvice {
+	
+	private final static Logger log = LoggerFactory.getLogger(ProviderStateInvalidationAdvice.class);
+	
+	private static final Set<String> METHODS = new HashSet<>(Arrays.asList("saveProvider", "retireProvider",
+	    "unretireProvider", "purgeProvider"));
+	
+	private ProviderStateCache providerStateCache;
+	
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) {
+		if (!METHODS.contains(method.getName()) || args == null || args.length == 0) {
+			return;
+		}
+		ProviderStateCache cache = getProviderStateCache();
+		if (cache == null) {
+			return;
+		}
+		
+		if (args[0] instanceof Provider) {
+			Provider provider = (Provider) args[0];
+			if (provider.getPerson() != null) {
+				cache.invalidate(provider.getPerson().getPersonId());
+			}
+		}
+	}
+	
+	private ProviderStateCache getProviderStateCache() {
+		if (providerStateCache == null) {
+			try {
+				providerStateCache = Context.getRegisteredComponent(PROVIDER_STATE_CACHE_COMPONENT,
+				    ProviderStateCache.class);
+			}
+			catch (APIException e) {
+				log.debug("The provider state cache is not available yet", e);
+			}
+		}
+		return providerStateCache;
+	}
+}
@@ -1,16 +1,14 @@
 package org.openmrs.module.oauth2login.authscheme;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.Collection;
-import java.util.stream.Collectors;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
-import org.apache.commons.beanutils.BeanUtilsBean;
+import org.openmrs.Role;
 import org.openmrs.User;
 import org.openmrs.api.UserService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.BeanWrapperImpl;
-import org.springframework.util.ClassUtils;
 
 public class UpdateUserTask implements Runnable {
 	
@@ -27,98 +25,78 @@ public class UpdateUserTask implements Runnable {
 	
 	@Override
 	public void run() {
-		User user = userService.getUserByUsername(userInfo.getUsername());
-		userService.saveUser(updated(user));
+		update(userService.getUserByUsername(userInfo.getUsername()));
 	}
 	
 	/**
-	 * A bean utils bean to copy over non-null values from a bean to another. Nested non-primitive
-	 * types are handled recursively.
+	 * Updates the user as per the user info, the user is only saved if it changed.
 	 * 
-	 * @see https://stackoverflow.com/a/3521314/321797
+	 * @param user The user to update
+	 * @return true if the user was changed, false if it was already up to date.
 	 */
-	static class NullAwareBeanUtilsBean extends BeanUtilsBean {
-		
-		private boolean isPrimitiveType(Object obj) {
-			return ClassUtils.isPrimitiveOrWrapper(obj.getClass()) || obj instanceof String;
+	public boolean update(User user) {
+		if (apply(user)) {
+			userService.saveUser(user);
+			return true;
 		}
+		return false;
+	}
+	
+	/**
+	 * Applies the user info to the user.
+	 * 
+	 * @param user The user to update
+	 * @return true if the user was changed, false if it was already up to date.
+	 */
+	private boolean apply(User user) {
 		
-		private void copyCollection(Collection<?> dest, Collection<?> value) throws IllegalAccessException,
-		        InvocationTargetException {
-			if (dest.size() > 1 || value.size() > 1) {
-				// TODO: log an appropriate error, or even throw
-				return;
-			}
-			
-			Object d = dest.stream().findFirst().orElse(null);
-			Object v = value.stream().findFirst().orElse(null);
-			
-			if (v == null) {
-				dest.clear();
-			} else if (isPrimitiveType(v) || d == null) {
-				dest = value;
-			} else {
-				new NullAwareBeanUtilsBean().copyProperties(d, v);
-			}
+		UserDiff diff = UserDiff.between(user, userInfo.getOpenmrsUser());
+		if (!diff.isEmpty()) {
+			log.debug("Updating user '{}' as per the user info: {}", user.getUsername(), diff);
+			diff.applyTo(user);
 		}
 		
-		@Override
-		public void copyProperty(Object dest, String name, Object value) throws IllegalAccessException,
-		        InvocationTargetException {
-			if (value == null) {
-				return;
-			}
-			
-			Object destPropertyValue = new BeanWrapperImpl(dest).getPropertyValue(name);
-			if (value.equals(destPropertyValue)) {
-				return;
-			}
-			
-			if (isPrimitiveType(value) || destPropertyValue == null) {
-				super.copyProperty(dest, name, value);
-			} else if (Collection.class.isAssignableFrom(destPropertyValue.getClass())) {
-				copyCollection((Collection<?>) destPropertyValue, (Collection<?>) value);
-			} else if (destPropertyValue.getClass().isArray()) {
-				// TODO: handle arrays
-			} else {
-				new NullAwareBeanUtilsBean().copyProperties(destPropertyValue, value);
-			}
+		boolean rolesChanged = false;
+		if (userInfo.getRoleNames() != null) {
+			rolesChanged = syncRoles(user);
 		}
+		
+		return !diff.isEmpty() || rolesChanged;
 	}
 	
 	/**
-	 * Returns the updated user as per the user info.
+	 * Brings the user's roles in line with the user info roles by only removing the roles that are no
+	 * longer granted and adding those that are missing. The user's role collection is modified in
+	 * place so that Hibernate only issues statements for the actual changes.
 	 * 
-	 * @param user The user to update
-	 * @return The updated user.
+	 * @param user The user whose roles are synchronized.
+	 * @return true if any role was added or removed.
 	 */
-	private User updated(User user) {
-		
-		try {
-			User openmrsUser = userInfo.getOpenmrsUser();
-			// UUIDs should be stable
-			if (user.getUuid() != null) {
-				openmrsUser.setUuid(user.getUuid());
-			}
-			
-			if (user.getPerson() != null && user.getPerson().getUuid() != null) {
-				openmrsUser.getPerson().setUuid(user.getPerson().getUuid());
+	private boolean syncRoles(User user) {
+		Map<String, Role> roles = new LinkedHashMap<>();
+		for (String roleName : userInfo.getRoleNames()) {
+			Role role = userService.getRole(roleName);
+			if (role != null) {
+				roles.put(role.getRole(), role);
 			}
-			
-			if (user.getPerson() != null && user.getPerson().getPersonName() != null && user.getPerson().getPersonName().getUuid() != null) {
-				openmrsUser.getPerson().getPersonName().setUuid(user.getPerson().getPersonName().getUuid());
-			}
-			
-			new NullAwareBeanUtilsBean().copyProperties(user, openmrsUser);
-		}
-		catch (IllegalAccessException | InvocationTargetException e) {
-			log.error("Something went wrong when copying attributes from the user info to the OpenMRS user, the OpenMRS user might not have been updated properly.", e);
 		}
 		
-		if (userInfo.getRoleNames() != null) {
-			user.setRoles(userInfo.getRoleNames().stream().map(roleName -> userService.getRole(roleName)).filter(r -> r != null).collect(Collectors.toSet()));
+		boolean changed = false;
+		Set<Role> current = user.getRoles();
+		if (current != null) {
+			changed = current.removeIf(role -> {
+				if (roles.remove(role.getRole()) != null) {
+					return false;
+				}
+				log.debug("Removing role '{}' from user '{}'", role.getRole(), user.getUsername());
+				return true;
+			});
 		}
-		
-		return user;
+		for (Role role : roles.values()) {
+			log.debug("Adding role '{}' to user '{}'", role.getRole(), user.getUsername());
+			user.addRole(role);
+			changed = true;
+		}
+		return changed;
 	}
 }
@@ -0,0 +1,192 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.authscheme;
+
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.OAUTH_PROP_BEAN_NAME;
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.USER_CACHE_COMPONENT;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.User;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * A bounded cache of the users resolved by username during authentication, so that bearer
+ * authenticated traffic does not query users by username for each request just to resolve the
+ * principal.
+ * <p>
+ * Only the user id and the retired state are cached, never the user itself: a cached user id is
+ * loaded again by primary key in the session of the caller, so that authentications never get a
+ * detached or stale user.
+ * <p>
+ * Entries expire after a configurable time to live and are invalidated as soon as a user is saved,
+ * retired, unretired or purged, see {@link UserCacheInvalidationAdvice}. Retired users are never
+ * served from the cache. The least recently used entries are evicted when the cache is full.
+ * <p>
+ * Settings in oauth2.properties:
+ * <ul>
+ * <li><code>userCache.ttl</code>: the time to live of an entry in seconds, 60 by default, 0 to
+ * disable the cache.</li>
+ * <li><code>userCache.maxSize</code>: the maximum number of entries, 1000 by default.</li>
+ * </ul>
+ */
+@Component(USER_CACHE_COMPONENT)
+public class UserCache {
+	
+	public static final String PROP_TTL = "userCache.ttl";
+	
+	public static final String PROP_MAX_SIZE = "userCache.maxSize";
+	
+	public static final String METRIC_HITS = "userCache.hits";
+	
+	public static final String METRIC_MISSES = "userCache.misses";
+	
+	public static final String METRIC_INVALIDATIONS = "userCache.invalidations";
+	
+	public static final String METRIC_SIZE = "userCache.size";
+	
+	private static final long DEFAULT_TTL = 60;
+	
+	private static final int DEFAULT_MAX_SIZE = 1000;
+	
+	/**
+	 * The state of a cached user.
+	 */
+	static final class Entry {
+		
+		private final Integer userId;
+		
+		private final boolean retired;
+		
+		private final long expiresAt;
+		
+		Entry(User user, long expiresAt) {
+			this.userId = user.getUserId();
+			this.retired = Boolean.TRUE.equals(user.getRetired());
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	private final LongSupplier clock;
+	
+	private volatile long ttlNanos;
+	
+	private volatile int maxSize;
+	
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxSize;
+		}
+	};
+	
+	public UserCache() {
+		this(System::nanoTime);
+	}
+	
+	UserCache(LongSupplier clock) {
+		this.clock = clock;
+		configure(DEFAULT_TTL, DEFAULT_MAX_SIZE);
+		OAuth2LoginMetrics.gauge(METRIC_SIZE, this::size);
+	}
+	
+	@Autowired(required = false)
+	public void setOAuth2Properties(@Qualifier(OAUTH_PROP_BEAN_NAME) Properties oauth2Props) {
+		configure(NumberUtils.toLong(oauth2Props.getProperty(PROP_TTL), DEFAULT_TTL),
+		    NumberUtils.toInt(oauth2Props.getProperty(PROP_MAX_SIZE), DEFAULT_MAX_SIZE));
+	}
+	
+	void configure(long ttlSeconds, int maxSize) {
+		this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(ttlSeconds, 0));
+		this.maxSize = Math.max(maxSize, 0);
+		clear();
+	}
+	
+	public boolean isEnabled() {
+		return ttlNanos > 0 && maxSize > 0;
+	}
+	
+	/**
+	 * @param username The username.
+	 * @return The id of the cached user, or null if not cached, expired or retired.
+	 */
+	public Integer getUserId(String username) {
+		if (!isEnabled() || username == null) {
+			return null;
+		}
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(username);
+			if (entry != null && (entry.retired || clock.getAsLong() - entry.expiresAt >= 0)) {
+				entries.remove(username);
+				entry = null;
+			}
+		}
+		OAuth2LoginMetrics.increment(entry == null ? METRIC_MISSES : METRIC_HITS);
+		return entry == null ? null : entry.userId;
+	}
+	
+	public void put(String username, User user) {
+		if (!isEnabled() || username == null || user == null || user.getUserId() == null) {
+			return;
+		}
+		Entry entry = new Entry(user, clock.getAsLong() + ttlNanos);
+		if (entry.retired) {
+			return;
+		}
+		synchronized (entries) {
+			entries.put(username, entry);
+		}
+	}
+	
+	/**
+	 * Removes all the entries that point to the user, whichever username they were cached under.
+	 * 
+	 * @param user The user that changed.
+	 */
+	public void invalidate(User user) {
+		if (user == null) {
+			return;
+		}
+		synchronized (entries) {
+			if (user.getUserId() == null) {
+				entries.remove(user.getUsername());
+				entries.remove(user.getSystemId());
+			} else {
+				entries.values().removeIf(entry -> Objects.equals(entry.userId, user.getUserId()));
+			}
+		}
+		OAuth2LoginMetrics.increment(METRIC_INVALIDATIONS);
+	}
+	
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+	
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.authscheme;
+
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.USER_CACHE_COMPONENT;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openmrs.User;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Advice around {@link org.openmrs.api.UserService} that evicts users from the {@link UserCache}
+ * whenever they are saved, retired, unretired or purged.
+ */
+public class UserCacheInvalidationAdvice implements AfterReturningAdvice {
+	
+	private final static Logger log = LoggerFactory.getLogger(UserCacheInvalidationAdvice.class);
+	
+	private static final Set<String> METHODS = new HashSet<>(Arrays.asList("createUser", "saveUser", "retireUser",
+	    "unretireUser", "voidUser", "unvoidUser", "purgeUser", "setUserProperty", "setUserProperties",
+	    "removeUserProperty"));
+	
+	private UserCache userCache;
+	
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) {
+		if (!METHODS.contains(method.getName())) {
+			return;
+		}
+		UserCache cache = getUserCache();
+		if (cache == null) {
+			return;
+		}
+		
+		boolean invalidated = false;
+		if (args != null) {
+			for (Object arg : args) {
+				if (arg instanceof User) {
+					cache.invalidate((User) arg);
+					invalidated = true;
+				}
+			}
+		}
+		if (returnValue instanceof User) {
+			cache.invalidate((User) returnValue);
+			invalidated = true;
+		}
+		if (!invalidated) {
+			// eg. user properties of the authenticated user
+			cache.invalidate(getAuthenticatedUser());
+		}
+	}
+	
+	private User getAuthenticatedUser() {
+		try {
+			return Context.getAuthenticatedUser();
+		}
+		catch (APIException e) {
+			log.debug("The authenticated user is not available", e);
+			return null;
+		}
+	}
+	
+	private UserCache getUserCache() {
+		if (userCache == null) {
+			try {
+				userCache = Context.getRegisteredComponent(USER_CACHE_COMPONENT, UserCache.class);
+			}
+			catch (APIException e) {
+				log.debug("The user cache is not available yet", e);
+			}
+		}
+		return userCache;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.authscheme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.User;
+
+/**
+ * The explicit set of changes to apply to an OpenMRS {@link User} so that it matches the user
+ * described by the OAuth2 user info.
+ * <p>
+ * Only the attributes that can be mapped from the user info are compared (see {@link UserInfo}),
+ * through accessors that are set up once for all rather than discovered through reflection. As with
+ * the user info mappings, a <code>null</code> value on the user info side means that the attribute
+ * is not provided and it never overwrites an existing value.
+ */
+public class UserDiff {
+	
+	/**
+	 * A user attribute with its accessors, nested attributes are reached through the user's person
+	 * and preferred person name.
+	 */
+	static final class Attribute {
+		
+		private final String name;
+		
+		private final Function<User, String> getter;
+		
+		private final BiConsumer<User, String> setter;
+		
+		Attribute(String name, Function<User, String> getter, BiConsumer<User, String> setter) {
+			this.name = name;
+			this.getter = getter;
+			this.setter = setter;
+		}
+		
+		String getName() {
+			return name;
+		}
+		
+		Function<User, String> getGetter() {
+			return getter;
+		}
+	}
+	
+	static final List<Attribute> ATTRIBUTES = Collections.unmodifiableList(Arrays.asList(
+	    new Attribute("username", User::getUsername, User::setUsername),
+	    new Attribute("systemId", User::getSystemId, User::setSystemId),
+	    new Attribute("email", User::getEmail, User::setEmail),
+	    new Attribute("person.gender", u -> u.getPerson() == null ? null : u.getPerson().getGender(),
+	            (u, v) -> person(u).setGender(v)),
+	    new Attribute("person.givenName", u -> personNameOrNull(u) == null ? null : personNameOrNull(u).getGivenName(),
+	            (u, v) -> personName(u).setGivenName(v)),
+	    new Attribute("person.middleName", u -> personNameOrNull(u) == null ? null : personNameOrNull(u).getMiddleName(),
+	            (u, v) -> personName(u).setMiddleName(v)),
+	    new Attribute("person.familyName", u -> personNameOrNull(u) == null ? null : personNameOrNull(u).getFamilyName(),
+	            (u, v) -> personName(u).setFamilyName(v))));
+	
+	/**
+	 * A single attribute change, from the current value to the new value.
+	 */
+	public static final class Change {
+		
+		private final Attribute attribute;
+		
+		private final String oldValue;
+		
+		private final String newValue;
+		
+		private Change(Attribute attribute, String oldValue, String newValue) {
+			this.attribute = attribute;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+		}
+		
+		public String getAttributeName() {
+			return attribute.getName();
+		}
+		
+		public String getOldValue() {
+			return oldValue;
+		}
+		
+		public String getNewValue() {
+			return newValue;
+		}
+		
+		@Override
+		public String toString() {
+			return attribute.getName() + ": '" + oldValue + "' → '" + newValue + "'";
+		}
+	}
+	
+	private final List<Change> changes;
+	
+	private UserDiff(List<Change> changes) {
+		this.changes = changes;
+	}
+	
+	/**
+	 * Computes the changes needed for the user to match the source user.
+	 *
+	 * @param user The OpenMRS user to be updated.
+	 * @param source The user as built from the user info, see {@link UserInfo#getOpenmrsUser()}.
+	 * @return The user diff, possibly empty.
+	 */
+	public static UserDiff between(User user, User source) {
+		List<Change> changes = null;
+		for (Attribute attribute : ATTRIBUTES) {
+			String newValue = attribute.getter.apply(source);
+			if (newValue == null) {
+				continue;
+			}
+			String oldValue = attribute.getter.apply(user);
+			if (!Objects.equals(oldValue, newValue)) {
+				if (changes == null) {
+					changes = new ArrayList<>(ATTRIBUTES.size());
+				}
+				changes.add(new Change(attribute, oldValue, newValue));
+			}
+		}
+		return new UserDiff(changes == null ? Collections.emptyList() : changes);
+	}
+	
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+	
+	public List<Change> getChanges() {
+		return Collections.unmodifiableList(changes);
+	}
+	
+	/**
+	 * Applies the changes, and only the changes, to the user. The person and the person name are
+	 * created if they are needed and missing.
+	 *
+	 * @param user The OpenMRS user to update.
+	 */
+	public void applyTo(User user) {
+		for (Change change : changes) {
+			change.attribute.setter.accept(user, change.newValue);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return changes.toString();
+	}
+	
+	private static PersonName personNameOrNull(User user) {
+		return user.getPerson() == null ? null : user.getPerson().getPersonName();
+	}
+	
+	private static Person person(User user) {
+		if (user.getPerson() == null) {
+			user.setPerson(new Person());
+		}
+		return user.getPerson();
+	}
+	
+	private static PersonName personName(User user) {
+		PersonName name = person(user).getPersonName();
+		if (name == null) {
+			name = new PersonName();
+			user.getPerson().addName(name);
+		}
+		return name;
+	}
+}
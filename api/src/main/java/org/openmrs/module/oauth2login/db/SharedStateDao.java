@@ -0,0 +1,78 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.db;
+
+import java.util.Map;
+
+/**
+ * The state shared by the nodes of a cluster through the module's tables: the identity provider's
+ * JSON web keys with the lease of the node refreshing them, and the digests of the tokens already
+ * verified.
+ */
+public interface SharedStateDao {
+	
+	/**
+	 * @return The stored JSON web keys, their URL and fetch time are null if none were stored yet.
+	 */
+	StoredJsonWebKeys getJsonWebKeys();
+	
+	/**
+	 * Acquires the lease to refresh the JSON web keys, unless another node holds a lease that has not
+	 * expired.
+	 * 
+	 * @param owner The node acquiring the lease.
+	 * @param now The current time in milliseconds since the epoch.
+	 * @param expiresAt When the lease expires, in milliseconds since the epoch.
+	 * @return true if the lease was acquired.
+	 */
+	boolean acquireJsonWebKeysLease(String owner, long now, long expiresAt);
+	
+	/**
+	 * Stores freshly fetched JSON web keys and releases the lease.
+	 * 
+	 * @param owner The node holding the lease.
+	 * @param keys The JSON web keys.
+	 */
+	void saveJsonWebKeys(String owner, StoredJsonWebKeys keys);
+	
+	/**
+	 * Releases the lease, if held by the owner.
+	 * 
+	 * @param owner The node holding the lease.
+	 */
+	void releaseJsonWebKeysLease(String owner);
+	
+	/**
+	 * @param now The current time in milliseconds since the epoch.
+	 * @param max The maximum number of digests.
+	 * @return The digests of the verified tokens that have not expired, with their expiry, the ones
+	 *         expiring last first.
+	 */
+	Map<String, Long> getVerifiedTokens(long now, int max);
+	
+	/**
+	 * @param digest The SHA-256 digest of the verified token, in hex.
+	 * @param expiresAt When the token expires, in milliseconds since the epoch.
+	 */
+	void saveVerifiedToken(String digest, long expiresAt);
+	
+	/**
+	 * @param now The current time in milliseconds since the epoch.
+	 * @return The number of digests deleted.
+	 */
+	int deleteExpiredVerifiedTokens(long now);
+	
+	/**
+	 * Deletes the digests of all the verified tokens, when the keys they were verified with change.
+	 * 
+	 * @return The number of digests deleted.
+	 */
+	int deleteVerifiedTokens();
+}
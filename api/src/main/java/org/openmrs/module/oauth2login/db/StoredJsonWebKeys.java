@@ -0,0 +1,45 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.db;
+
+/**
+ * The identity provider's JSON web keys as stored for the cluster.
+ */
+public class StoredJsonWebKeys {
+	
+	private final String keysUrl;
+	
+	private final String jwks;
+	
+	private final Long fetchedAt;
+	
+	/**
+	 * @param keysUrl The URL the keys were fetched from.
+	 * @param jwks The JSON web key set.
+	 * @param fetchedAt When the keys were fetched, in milliseconds since the epoch.
+	 */
+	public StoredJsonWebKeys(String keysUrl, String jwks, Long fetchedAt) {
+		this.keysUrl = keysUrl;
+		this.jwks = jwks;
+		this.fetchedAt = fetchedAt;
+	}
+	
+	public String getKeysUrl() {
+		return keysUrl;
+	}
+	
+	public String getJwks() {
+		return jwks;
+	}
+	
+	public Long getFetchedAt() {
+		return fetchedAt;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.db.hibernate;
+
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.SHARED_STATE_DAO_COMPONENT;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.SQLQuery;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.oauth2login.db.SharedStateDao;
+import org.openmrs.module.oauth2login.db.StoredJsonWebKeys;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Plain SQL over the module's tables, each call in its own transaction so that a failure never
+ * rolls back the caller's work.
+ */
+@Component(SHARED_STATE_DAO_COMPONENT)
+@Transactional(propagation = Propagation.REQUIRES_NEW)
+public class HibernateSharedStateDao implements SharedStateDao {
+	
+	private static final int JWKS_ID = 1;
+	
+	private DbSessionFactory sessionFactory;
+	
+	@Autowired
+	public void setSessionFactory(DbSessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+	
+	@Override
+	@Transactional(propagation = Propagation.REQUIRES_NEW, readOnly = true)
+	public StoredJsonWebKeys getJsonWebKeys() {
+		Object[] row = (Object[]) sql("select keys_url, jwks, fetched_at from oauth2login_jwks where oauth2login_jwks_id = :id")
+		        .setParameter("id", JWKS_ID).uniqueResult();
+		if (row == null) {
+			return new StoredJsonWebKeys(null, null, null);
+		}
+		return new StoredJsonWebKeys((String) row[0], (String) row[1], row[2] == null ? null : ((Number) row[2]).longValue());
+	}
+	
+	@Override
+	public boolean acquireJsonWebKeysLease(String owner, long now, long expiresAt) {
+		return sql(
+		    "update oauth2login_jwks set lease_owner = :owner, lease_expires_at = :expiresAt where oauth2login_jwks_id = :id"
+		            + " and (lease_owner is null or lease_owner = :owner or lease_expires_at < :now)")
+		        .setParameter("owner", owner).setParameter("expiresAt", expiresAt).setParameter("now", now)
+		        .setParameter("id", JWKS_ID).executeUpdate() == 1;
+	}
+	
+	@Override
+	public void saveJsonWebKeys(String owner, StoredJsonWebKeys keys) {
+		sql(
+		    "update oauth2login_jwks set keys_url = :url, jwks = :jwks, fetched_at = :fetchedAt, lease_owner = null,"
+		            + " lease_expires_at = null where oauth2login_jwks_id = :id and lease_owner = :owner")
+		        .setParameter("url", keys.getKeysUrl()).setParameter("jwks", keys.getJwks())
+		        .setParameter("fetchedAt", keys.getFetchedAt()).setParameter("owner", owner).setParameter("id", JWKS_ID)
+		        .executeUpdate();
+	}
+	
+	@Override
+	public void releaseJsonWebKeysLease(String owner) {
+		sql(
+		    "update oauth2login_jwks set lease_owner = null, lease_expires_at = null where oauth2login_jwks_id = :id"
+		            + " and lease_owner = :owner").setParameter("owner", owner).setParameter("id", JWKS_ID)
+		        .executeUpdate();
+	}
+	
+	@Override
+	@Transactional(propagation = Propagation.REQUIRES_NEW, readOnly = true)
+	public Map<String, Long> getVerifiedTokens(long now, int max) {
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = sql(
+		    "select token_digest, expires_at from oauth2login_verified_token where expires_at > :now order by expires_at desc")
+		        .setParameter("now", now).setMaxResults(max).list();
+		Map<String, Long> tokens = new LinkedHashMap<>();
+		for (Object[] row : rows) {
+			tokens.put((String) row[0], ((Number) row[1]).longValue());
+		}
+		return tokens;
+	}
+	
+	@Override
+	public void saveVerifiedToken(String digest, long expiresAt) {
+		Number count = (Number) sql("select count(*) from oauth2login_verified_token where token_digest = :digest")
+		        .setParameter("digest", digest).uniqueResult();
+		if (count.intValue() == 0) {
+			sql("insert into oauth2login_verified_token (token_digest, expires_at) values (:digest, :expiresAt)")
+			        .setParameter("digest", digest).setParameter("expiresAt", expiresAt).executeUpdate();
+		}
+	}
+	
+	@Override
+	public int deleteExpiredVerifiedTokens(long now) {
+		return sql("delete from oauth2login_verified_token where expires_at <= :now").setParameter("now", now)
+		        .executeUpdate();
+	}
+	
+	@Override
+	public int deleteVerifiedTokens() {
+		return sql("delete from oauth2login_verified_token").executeUpdate();
+	}
+	
+	private SQLQuery sql(String query) {
+		return sessionFactory.getCurrentSession().createSQLQuery(query);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.provisioning;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local stand-in for the identity provider users: an export file as read by
+ * {@link UserExportReader}, served as a single page. The whole file is considered updated when it
+ * was modified after the watermark.
+ */
+public class FileIdpUserSource implements IdpUserSource {
+	
+	private final static Logger log = LoggerFactory.getLogger(FileIdpUserSource.class);
+	
+	private final Path file;
+	
+	private final String rolesKey;
+	
+	/**
+	 * @param file The export file, CSV or JSON lines.
+	 * @param rolesKey The user info JSON key holding the roles, if mapped.
+	 */
+	public FileIdpUserSource(Path file, String rolesKey) {
+		this.file = file;
+		this.rolesKey = rolesKey;
+	}
+	
+	@Override
+	public Page getUsers(Instant updatedSince, String pageToken) throws IOException {
+		if (file == null || !Files.isRegularFile(file)) {
+			log.warn("There is no user export to reconcile users with at: {}", file);
+			return new Page(Collections.emptyList(), null);
+		}
+		if (updatedSince != null && !Files.getLastModifiedTime(file).toInstant().isAfter(updatedSince)) {
+			return new Page(Collections.emptyList(), null);
+		}
+		
+		List<String> users = new ArrayList<>();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+		        UserExportReader export = new UserExportReader(reader,
+		                UserExportReader.Format.of(file.getFileName().toString()), rolesKey)) {
+			String json;
+			while ((json = export.next()) != null) {
+				users.add(json);
+			}
+		}
+		return new Page(users, null);
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.provisioning;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A source of users maintained at the identity provider, read page by page.
+ */
+public interface IdpUserSource {
+	
+	/**
+	 * A page of users.
+	 */
+	final class Page {
+		
+		private final List<String> users;
+		
+		private final String nextPageToken;
+		
+		/**
+		 * @param users The user info JSONs of the page.
+		 * @param nextPageToken The token to fetch the next page, null if this is the last page.
+		 */
+		public Page(List<String> users, String nextPageToken) {
+			this.users = users == null ? Collections.emptyList() : users;
+			this.nextPageToken = nextPageToken;
+		}
+		
+		public List<String> getUsers() {
+			return users;
+		}
+		
+		public String getNextPageToken() {
+			return nextPageToken;
+		}
+	}
+	
+	/**
+	 * Fetches a page of the users that changed at the identity provider.
+	 * 
+	 * @param updatedSince Only the users updated since that instant are needed, null for all users.
+	 *            Sources that cannot filter on it may return more users.
+	 * @param pageToken The token of the page to fetch, null for the first page.
+	 * @return The page of users.
+	 * @throws IOException if the users cannot be fetched.
+	 */
+	Page getUsers(Instant updatedSince, String pageToken) throws IOException;
+}
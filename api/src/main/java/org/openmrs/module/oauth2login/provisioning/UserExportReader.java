@@ -0,0 +1,165 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.provisioning;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * Reads an IdP user export one record at a time, each record being returned as a user info JSON
+ * string that can be mapped through {@link org.openmrs.module.oauth2login.authscheme.UserInfo}.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ * <li>JSON lines: one user info JSON object per line.</li>
+ * <li>CSV: a header line with the user info JSON keys, then one user per line. Empty cells are
+ * left out of the record, so an empty roles cell leaves the roles of the user unchanged. The values
+ * of the roles column are split on semicolons.</li>
+ * </ul>
+ */
+public class UserExportReader implements Closeable {
+	
+	public enum Format {
+		JSON_LINES, CSV;
+		
+		/**
+		 * @param filename The export file name.
+		 * @return CSV for '.csv' files, JSON lines otherwise.
+		 */
+		public static Format of(String filename) {
+			return StringUtils.endsWithIgnoreCase(filename, ".csv") ? CSV : JSON_LINES;
+		}
+	}
+	
+	private final BufferedReader reader;
+	
+	private final Format format;
+	
+	private final String rolesColumn;
+	
+	private List<String> header;
+	
+	private int lineNumber;
+	
+	/**
+	 * @param reader The export content.
+	 * @param format The export format.
+	 * @param rolesColumn The CSV column holding the semicolon-separated role names, if any.
+	 */
+	public UserExportReader(Reader reader, Format format, String rolesColumn) {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+		this.format = format;
+		this.rolesColumn = rolesColumn;
+	}
+	
+	/**
+	 * @return The next record as a user info JSON string, or null when the export is exhausted.
+	 * @throws IOException if the export cannot be read.
+	 * @throws IllegalArgumentException if a CSV line does not match the header.
+	 */
+	public String next() throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (StringUtils.isBlank(line)) {
+				continue;
+			}
+			if (format == Format.JSON_LINES) {
+				return line;
+			}
+			if (header == null) {
+				header = parseCsvLine(line);
+				continue;
+			}
+			return toJson(parseCsvLine(line));
+		}
+		return null;
+	}
+	
+	/**
+	 * @return The number of the last line read, starting at 1.
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+	
+	private String toJson(List<String> cells) {
+		if (cells.size() > header.size()) {
+			throw new IllegalArgumentException("Line " + lineNumber + " has " + cells.size()
+			        + " values while the header only has " + header.size() + " columns.");
+		}
+		JSONObject json = new JSONObject();
+		for (int i = 0; i < cells.size(); i++) {
+			String value = cells.get(i);
+			if (StringUtils.isEmpty(value)) {
+				continue;
+			}
+			String column = header.get(i);
+			if (column.equals(rolesColumn)) {
+				JSONArray roles = new JSONArray();
+				for (String role : StringUtils.split(value, ';')) {
+					if (StringUtils.isNotBlank(role)) {
+						roles.add(role.trim());
+					}
+				}
+				json.put(column, roles);
+			} else {
+				json.put(column, value);
+			}
+		}
+		return json.toJSONString();
+	}
+	
+	/**
+	 * Splits a CSV line on commas, supporting double-quoted values with doubled double quotes as
+	 * escapes. Values spanning several lines are not supported.
+	 */
+	static List<String> parseCsvLine(String line) {
+		List<String> cells = new ArrayList<>();
+		StringBuilder cell = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					cell.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					cell.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				cells.add(cell.toString().trim());
+				cell.setLength(0);
+			} else {
+				cell.append(c);
+			}
+		}
+		cells.add(cell.toString().trim());
+		return cells;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.provisioning;
+
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.USER_IMPORTER_COMPONENT;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.scheduler.tasks.AbstractTask;
+import org.openmrs.util.OpenmrsUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scheduled task that pre-provisions users out of an IdP user export, see {@link UserImporter}.
+ * <p>
+ * Task properties:
+ * <ul>
+ * <li><code>file</code>: the path to the export, absolute or relative to the application data
+ * directory. Files ending with '.csv' are read as CSV, any other file is read as JSON lines.</li>
+ * <li><code>batchSize</code>: the number of users persisted per transaction, 100 by default.</li>
+ * </ul>
+ * Importing the same export again only updates the users that changed in the meantime.
+ */
+public class UserImportTask extends AbstractTask {
+	
+	private final static Logger log = LoggerFactory.getLogger(UserImportTask.class);
+	
+	public static final String PROP_FILE = "file";
+	
+	public static final String PROP_BATCH_SIZE = "batchSize";
+	
+	@Override
+	public void execute() {
+		if (isExecuting) {
+			log.info("The user import is still running, skipping this execution.");
+			return;
+		}
+		startExecuting();
+		try {
+			String file = getTaskDefinition().getProperty(PROP_FILE);
+			if (StringUtils.isBlank(file)) {
+				throw new APIException("The user import task requires the '" + PROP_FILE + "' property.");
+			}
+			Path path = Paths.get(file);
+			if (!path.isAbsolute()) {
+				path = Paths.get(OpenmrsUtil.getApplicationDataDirectory(), file);
+			}
+			int batchSize = NumberUtils.toInt(getTaskDefinition().getProperty(PROP_BATCH_SIZE),
+			    UserImporter.DEFAULT_BATCH_SIZE);
+			
+			UserImporter importer = Context.getRegisteredComponent(USER_IMPORTER_COMPONENT, UserImporter.class);
+			log.info("Importing users from {} by batches of {}.", path, batchSize);
+			try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+			        UserExportReader export = new UserExportReader(reader, UserExportReader.Format.of(file),
+			                importer.getRolesKey())) {
+				importer.importUsers(export, batchSize);
+			}
+		}
+		catch (IOException e) {
+			throw new APIException("The user export could not be read.", e);
+		}
+		finally {
+			stopExecuting();
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.provisioning;
+
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.OAUTH_PROP_BEAN_NAME;
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.USER_IMPORTER_COMPONENT;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.api.UserService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.openmrs.module.oauth2login.authscheme.UpdateUserTask;
+import org.openmrs.module.oauth2login.authscheme.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.jayway.jsonpath.PathNotFoundException;
+
+/**
+ * Creates or updates OpenMRS users in bulk out of an IdP user export, so that users exist before
+ * their first login.
+ * <p>
+ * Each record is mapped through {@link UserInfo} with the mappings of oauth2.properties, exactly as
+ * the user info obtained at login. Records are persisted in batches, each batch in its own
+ * transaction. When a batch fails its records are retried one by one so that a single bad record
+ * only fails itself.
+ * <p>
+ * The records reconciled from the IdP admin API are not necessarily shaped as the user info, they
+ * can be mapped differently with <code>userSync.mapping.*</code> properties that override the
+ * <code>openmrs.mapping.*</code> properties of the same name, see {@link #getSyncMappings()}.
+ * <p>
+ * A record without the roles key, such as a CSV line with an empty roles cell, leaves the roles of
+ * the user unchanged, whereas an empty list of roles removes them.
+ */
+@Component(USER_IMPORTER_COMPONENT)
+public class UserImporter {
+	
+	private final static Logger log = LoggerFactory.getLogger(UserImporter.class);
+	
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	
+	public static final String SYNC_MAPPINGS_PFX = "userSync.mapping.";
+	
+	public static final String METRIC_CREATED = "userImport.created";
+	
+	public static final String METRIC_UPDATED = "userImport.updated";
+	
+	public static final String METRIC_FAILED = "userImport.failed";
+	
+	/**
+	 * The outcome of an import.
+	 */
+	public static class Result {
+		
+		private int created;
+		
+		private int updated;
+		
+		private int unchanged;
+		
+		private int skipped;
+		
+		private int failed;
+		
+		public int getCreated() {
+			return created;
+		}
+		
+		public int getUpdated() {
+			return updated;
+		}
+		
+		public int getUnchanged() {
+			return unchanged;
+		}
+		
+		public int getSkipped() {
+			return skipped;
+		}
+		
+		public int getFailed() {
+			return failed;
+		}
+		
+		@Override
+		public String toString() {
+			return "created: " + created + ", updated: " + updated + ", unchanged: " + unchanged + ", skipped: " + skipped
+			        + ", failed: " + failed;
+		}
+	}
+	
+	private enum Outcome {
+		CREATED, UPDATED, UNCHANGED, SKIPPED
+	}
+	
+	@Autowired
+	private UserService userService;
+	
+	private TransactionTemplate transactionTemplate;
+	
+	private Properties oauth2Props;
+	
+	@Autowired
+	public void setTransactionManager(@Qualifier("transactionManager") PlatformTransactionManager transactionManager) {
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+	}
+	
+	@Autowired(required = false)
+	public void setOAuth2Properties(@Qualifier(OAUTH_PROP_BEAN_NAME) Properties oauth2Props) {
+		this.oauth2Props = oauth2Props;
+	}
+	
+	/**
+	 * @return The name of the user info JSON key that holds the role names, if mapped.
+	 */
+	public String getRolesKey() {
+		return oauth2Props == null ? null : oauth2Props.getProperty(UserInfo.PROP_ROLES);
+	}
+	
+	/**
+	 * @return The mappings of the records reconciled from the IdP.
+	 * @see #getSyncMappings(Properties)
+	 */
+	public Properties getSyncMappings() {
+		return oauth2Props == null ? null : getSyncMappings(oauth2Props);
+	}
+	
+	/**
+	 * The mappings of the records reconciled from the IdP: the OAuth 2 properties where each
+	 * <code>userSync.mapping.*</code> property overrides the <code>openmrs.mapping.*</code> property
+	 * of the same name, eg. "userSync.mapping.user.username" overrides "openmrs.mapping.user.username".
+	 * 
+	 * @param oauth2Props The OAuth 2 properties.
+	 * @return A copy of the OAuth 2 properties with the reconciliation mappings applied.
+	 */
+	public static Properties getSyncMappings(Properties oauth2Props) {
+		Properties mappings = new Properties();
+		mappings.putAll(oauth2Props);
+		for (String name : oauth2Props.stringPropertyNames()) {
+			if (name.startsWith(SYNC_MAPPINGS_PFX)) {
+				mappings.setProperty(UserInfo.MAPPINGS_PFX + name.substring(SYNC_MAPPINGS_PFX.length()),
+				    oauth2Props.getProperty(name));
+			}
+		}
+		return mappings;
+	}
+	
+	/**
+	 * A stream of user info JSON records.
+	 */
+	public interface Records {
+		
+		/**
+		 * @return The next user info JSON, or null when there are no more records.
+		 * @throws IOException if the records cannot be read.
+		 */
+		String next() throws IOException;
+	}
+	
+	/**
+	 * Imports all the records of the export.
+	 * 
+	 * @param export The export reader.
+	 * @param batchSize The number of records persisted per transaction.
+	 * @return The import outcome.
+	 * @throws IOException if the export cannot be read.
+	 */
+	public Result importUsers(UserExportReader export, int batchSize) throws IOException {
+		return importUsers(export::next, batchSize, true);
+	}
+	
+	/**
+	 * Imports the records as they are read.
+	 * 
+	 * @param records The user info JSON records.
+	 * @param batchSize The number of records persisted per transaction.
+	 * @param createMissing Whether users that do not exist yet should be created, or skipped.
+	 * @return The import outcome.
+	 * @throws IOException if the records cannot be read.
+	 */
+	public Result importUsers(Records records, int batchSize, boolean createMissing) throws IOException {
+		return importUsers(records, oauth2Props, batchSize, createMissing);
+	}
+	
+	/**
+	 * Imports the records as they are read, mapped with the specified mappings.
+	 * 
+	 * @param records The user info JSON records.
+	 * @param mappings The mappings of the records, eg. {@link #getSyncMappings()}.
+	 * @param batchSize The number of records persisted per transaction.
+	 * @param createMissing Whether users that do not exist yet should be created, or skipped.
+	 * @return The import outcome.
+	 * @throws IOException if the records cannot be read.
+	 */
+	public Result importUsers(Records records, Properties mappings, int batchSize, boolean createMissing)
+	        throws IOException {
+		if (mappings == null) {
+			throw new IllegalStateException("The OAuth2 properties are not available, users cannot be mapped.");
+		}
+		batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+		
+		Properties mappingsWithoutRoles = new Properties();
+		mappingsWithoutRoles.putAll(mappings);
+		mappingsWithoutRoles.remove(UserInfo.PROP_ROLES);
+		
+		Result result = new Result();
+		List<UserInfo> batch = new ArrayList<>(batchSize);
+		int count = 0;
+		String json;
+		while ((json = records.next()) != null) {
+			count++;
+			UserInfo userInfo = new UserInfo(mappings, json);
+			if (!hasRoles(userInfo)) {
+				userInfo = new UserInfo(mappingsWithoutRoles, json);
+			}
+			if (StringUtils.isBlank(userInfo.getUsername())) {
+				log.warn("Skipping the user record #{}, it has no username.", count);
+				result.failed++;
+				continue;
+			}
+			batch.add(userInfo);
+			if (batch.size() == batchSize) {
+				importBatch(batch, createMissing, result);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			importBatch(batch, createMissing, result);
+		}
+		
+		OAuth2LoginMetrics.add(METRIC_CREATED, result.created);
+		OAuth2LoginMetrics.add(METRIC_UPDATED, result.updated);
+		OAuth2LoginMetrics.add(METRIC_FAILED, result.failed);
+		log.info("User import completed, {}.", result);
+		return result;
+	}
+	
+	/**
+	 * Imports or updates a single user within its own transaction.
+	 * 
+	 * @param userInfo The user info.
+	 * @return true if the user was created or updated, false if it was already up to date.
+	 */
+	public boolean importUser(UserInfo userInfo) {
+		return transactionTemplate.execute(status -> importOrUpdate(userInfo, true)) != Outcome.UNCHANGED;
+	}
+	
+	/**
+	 * @param userInfo The user info of a record.
+	 * @return false if the roles are mapped but the record has no roles key, true otherwise.
+	 */
+	private static boolean hasRoles(UserInfo userInfo) {
+		try {
+			userInfo.get(UserInfo.PROP_ROLES);
+			return true;
+		}
+		catch (PathNotFoundException e) {
+			return false;
+		}
+	}
+	
+	private void importBatch(List<UserInfo> batch, boolean createMissing, Result result) {
+		List<Outcome> outcomes;
+		try {
+			outcomes = transactionTemplate.execute(status -> {
+				List<Outcome> res = new ArrayList<>(batch.size());
+				for (UserInfo userInfo : batch) {
+					res.add(importOrUpdate(userInfo, createMissing));
+				}
+				return res;
+			});
+		}
+		catch (RuntimeException e) {
+			log.warn("A batch of " + batch.size() + " users could not be imported, retrying them one by one.", e);
+			Context.clearSession();
+			outcomes = new ArrayList<>(batch.size());
+			for (UserInfo userInfo : batch) {
+				try {
+					outcomes.add(transactionTemplate.execute(status -> importOrUpdate(userInfo, createMissing)));
+				}
+				catch (RuntimeException re) {
+					log.error("The user '" + userInfo + "' could not be imported.", re);
+					result.failed++;
+				}
+				finally {
+					Context.clearSession();
+				}
+			}
+		}
+		
+		for (Outcome outcome : outcomes) {
+			switch (outcome) {
+				case CREATED:
+					result.created++;
+					break;
+				case UPDATED:
+					result.updated++;
+					break;
+				case SKIPPED:
+					result.skipped++;
+					break;
+				default:
+					result.unchanged++;
+			}
+		}
+		// the persisted users are no longer needed in the session
+		Context.clearSession();
+	}
+	
+	private Outcome importOrUpdate(UserInfo userInfo, boolean createMissing) {
+		User user = userService.getUserByUsername(userInfo.getUsername());
+		if (user != null) {
+			return new UpdateUserTask(userService, userInfo).update(user) ? Outcome.UPDATED : Outcome.UNCHANGED;
+		}
+		if (!createMissing) {
+			return Outcome.SKIPPED;
+		}
+		
+		user = userInfo.getOpenmrsUser("n/a");
+		if (userInfo.getRoleNames() != null) {
+			for (String roleName : userInfo.getRoleNames()) {
+				Role role = userService.getRole(roleName);
+				if (role != null) {
+					user.addRole(role);
+				}
+			}
+		}
+		userService.createUser(user, RandomStringUtils.random(100, true, true));
+		return Outcome.CREATED;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.provisioning;
+
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.IDP_USER_SOURCE_COMPONENT;
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.USER_IMPORTER_COMPONENT;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.openmrs.scheduler.tasks.AbstractTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scheduled task that reconciles the OpenMRS users with the users maintained at the identity
+ * provider, so that changes made at the IdP, such as role revocations, reach OpenMRS even for users
+ * who do not log in.
+ * <p>
+ * Only the users updated since the last successful run are requested from the
+ * {@link IdpUserSource}, this watermark is kept in the global property
+ * {@value #GP_UPDATED_SINCE}. The users are streamed page by page to the {@link UserImporter} and
+ * persisted in batches, mapped with {@link UserImporter#getSyncMappings()}.
+ * <p>
+ * Task properties:
+ * <ul>
+ * <li><code>batchSize</code>: the number of users persisted per transaction, 100 by default.</li>
+ * <li><code>createUsers</code>: whether users unknown to OpenMRS should be created, false by
+ * default.</li>
+ * </ul>
+ */
+public class UserReconciliationTask extends AbstractTask {
+	
+	private final static Logger log = LoggerFactory.getLogger(UserReconciliationTask.class);
+	
+	public static final String GP_UPDATED_SINCE = "oauth2login.userSync.updatedSince";
+	
+	public static final String PROP_BATCH_SIZE = "batchSize";
+	
+	public static final String PROP_CREATE_USERS = "createUsers";
+	
+	public static final String METRIC_RUNS = "userSync.runs";
+	
+	public static final String METRIC_PAGES = "userSync.pages";
+	
+	@Override
+	public void execute() {
+		if (isExecuting) {
+			log.info("The user reconciliation is still running, skipping this execution.");
+			return;
+		}
+		startExecuting();
+		try {
+			IdpUserSource source = Context.getRegisteredComponent(IDP_USER_SOURCE_COMPONENT, IdpUserSource.class);
+			UserImporter importer = Context.getRegisteredComponent(USER_IMPORTER_COMPONENT, UserImporter.class);
+			AdministrationService adminService = Context.getAdministrationService();
+			
+			reconcile(source, importer, adminService);
+		}
+		catch (IOException e) {
+			throw new APIException("The users could not be fetched from the identity provider.", e);
+		}
+		finally {
+			stopExecuting();
+		}
+	}
+	
+	void reconcile(IdpUserSource source, UserImporter importer, AdministrationService adminService)
+	        throws IOException {
+		Instant updatedSince = parseInstant(adminService.getGlobalProperty(GP_UPDATED_SINCE));
+		Instant startedAt = Instant.now();
+		log.info("Reconciling the users updated at the identity provider since {}.",
+		    updatedSince == null ? "ever" : updatedSince);
+		
+		int batchSize = NumberUtils.toInt(getTaskDefinition().getProperty(PROP_BATCH_SIZE),
+		    UserImporter.DEFAULT_BATCH_SIZE);
+		boolean createUsers = Boolean.parseBoolean(getTaskDefinition().getProperty(PROP_CREATE_USERS));
+		
+		UserImporter.Result result = importer.importUsers(new PagedRecords(source, updatedSince),
+		    importer.getSyncMappings(), batchSize, createUsers);
+		OAuth2LoginMetrics.increment(METRIC_RUNS);
+		
+		if (result.getFailed() == 0) {
+			adminService.setGlobalProperty(GP_UPDATED_SINCE, startedAt.toString());
+		} else {
+			log.warn("{} users could not be reconciled, they will be requested again at the next run.",
+			    result.getFailed());
+		}
+	}
+	
+	private static Instant parseInstant(String value) {
+		if (StringUtils.isBlank(value)) {
+			return null;
+		}
+		try {
+			return Instant.parse(value.trim());
+		}
+		catch (DateTimeParseException e) {
+			log.warn("Ignoring the invalid value of " + GP_UPDATED_SINCE + ": " + value, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * The records of all the pages, fetched as they are consumed.
+	 */
+	static class PagedRecords implements UserImporter.Records {
+		
+		private final IdpUserSource source;
+		
+		private final Instant updatedSince;
+		
+		private Iterator<String> page;
+		
+		private String nextPageToken;
+		
+		private boolean lastPage;
+		
+		PagedRecords(IdpUserSource source, Instant updatedSince) {
+			this.source = source;
+			this.updatedSince = updatedSince;
+		}
+		
+		@Override
+		public String next() throws IOException {
+			while (page == null || !page.hasNext()) {
+				if (lastPage) {
+					return null;
+				}
+				IdpUserSource.Page p = source.getUsers(updatedSince, nextPageToken);
+				OAuth2LoginMetrics.increment(METRIC_PAGES);
+				page = p.getUsers().iterator();
+				nextPageToken = p.getNextPageToken();
+				lastPage = nextPageToken == null;
+			}
+			return page.next();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.openmrs.module.oauth2login;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.oauth2login.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+	
+	private final AtomicLong now = new AtomicLong();
+	
+	private CircuitBreaker breaker;
+	
+	@Before
+	public void setup() {
+		OAuth2LoginMetrics.reset();
+		breaker = new CircuitBreaker("idp", 3, 1000, now::get);
+	}
+	
+	private void failCalls(int times) throws Exception {
+		for (int i = 0; i < times; i++) {
+			breaker.acquire();
+			breaker.onFailure();
+		}
+	}
+	
+	private void assertRejected() {
+		try {
+			breaker.acquire();
+			fail("The call should have been rejected");
+		}
+		catch (CircuitBreakerOpenException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void acquire_shouldRejectCallsOnceTheFailureThresholdIsReached() throws Exception {
+		// replay
+		failCalls(2);
+		breaker.acquire();
+		breaker.onSuccess();
+		failCalls(2);
+		
+		// verify
+		assertEquals(State.CLOSED, breaker.getState());
+		
+		// replay
+		failCalls(1);
+		
+		// verify
+		assertEquals(State.OPEN, breaker.getState());
+		assertRejected();
+		assertEquals(1L, OAuth2LoginMetrics.count("circuitBreaker.idp.opened"));
+		assertEquals(1L, OAuth2LoginMetrics.count("circuitBreaker.idp.rejected"));
+		assertEquals(State.OPEN.ordinal(), OAuth2LoginMetrics.snapshot().get("circuitBreaker.idp.state").intValue());
+	}
+	
+	@Test
+	public void acquire_shouldLetASingleProbeThroughOnceTheOpenDurationHasElapsed() throws Exception {
+		// setup
+		failCalls(3);
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+		assertRejected();
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+		
+		// replay
+		breaker.acquire();
+		
+		// verify
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertRejected();
+		
+		// replay
+		breaker.onSuccess();
+		
+		// verify
+		assertEquals(State.CLOSED, breaker.getState());
+		breaker.acquire();
+		assertEquals(1L, OAuth2LoginMetrics.count("circuitBreaker.idp.halfOpened"));
+		assertEquals(1L, OAuth2LoginMetrics.count("circuitBreaker.idp.closed"));
+	}
+	
+	@Test
+	public void onFailure_shouldReopenTheCircuitWhenTheProbeFails() throws Exception {
+		// setup
+		failCalls(3);
+		now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		breaker.acquire();
+		
+		// replay
+		breaker.onFailure();
+		
+		// verify
+		assertEquals(State.OPEN, breaker.getState());
+		assertRejected();
+		assertEquals(2L, OAuth2LoginMetrics.count("circuitBreaker.idp.opened"));
+	}
+}
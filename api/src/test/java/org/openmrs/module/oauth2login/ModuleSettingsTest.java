@@ -0,0 +1,86 @@
+package org.openmrs.module.oauth2login;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+
+public class ModuleSettingsTest {
+	
+	private final List<GlobalProperty> globalProperties = new ArrayList<>();
+	
+	private final AtomicInteger loads = new AtomicInteger();
+	
+	private ModuleSettings settings;
+	
+	@Before
+	public void setup() {
+		globalProperties.add(new GlobalProperty(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN, "/home"));
+		settings = new ModuleSettings(() -> {
+			loads.incrementAndGet();
+			return new ArrayList<>(globalProperties);
+		});
+	}
+	
+	@Test
+	public void get_shouldLoadTheGlobalPropertiesOnlyOnce() {
+		// replay
+		assertEquals("/home", settings.get(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN));
+		assertNull(settings.get("oauth2login.unknown"));
+		assertEquals("/home", settings.get(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN));
+		
+		// verify
+		assertEquals(1, loads.get());
+	}
+	
+	@Test
+	public void globalPropertyChanged_shouldKeepTheSettingsCurrent() {
+		// setup
+		settings.get(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN);
+		
+		// replay
+		settings.globalPropertyChanged(new GlobalProperty(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN, "/spa"));
+		settings.globalPropertyChanged(new GlobalProperty("oauth2login.other", "value"));
+		
+		// verify
+		assertEquals("/spa", settings.get(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN));
+		assertEquals("value", settings.get("oauth2login.other"));
+		
+		// replay
+		settings.globalPropertyDeleted(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN);
+		settings.globalPropertyChanged(new GlobalProperty("oauth2login.other", null));
+		
+		// verify
+		assertNull(settings.get(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN));
+		assertNull(settings.get("oauth2login.other"));
+		assertEquals(1, loads.get());
+	}
+	
+	@Test
+	public void load_shouldDropTheGlobalPropertiesThatNoLongerExist() {
+		// setup
+		settings.get(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN);
+		globalProperties.clear();
+		
+		// replay
+		settings.load();
+		
+		// verify
+		assertNull(settings.get(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN));
+	}
+	
+	@Test
+	public void supportsPropertyName_shouldOnlySupportTheModuleGlobalProperties() {
+		assertTrue(settings.supportsPropertyName(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN));
+		assertFalse(settings.supportsPropertyName("locale.allowed.list"));
+		assertFalse(settings.supportsPropertyName(null));
+	}
+}
@@ -0,0 +1,169 @@
+package org.openmrs.module.oauth2login;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OAuth2ConfigurationTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private Path file;
+	
+	private final AtomicInteger loads = new AtomicInteger();
+	
+	private OAuth2Configuration config;
+	
+	@Before
+	public void setup() throws IOException {
+		file = new File(folder.getRoot(), "oauth2.properties").toPath();
+		write("clientId=first");
+		config = new OAuth2Configuration(() -> file, () -> {
+			loads.incrementAndGet();
+			return PropertyUtils.getProperties(file);
+		});
+	}
+	
+	@After
+	public void tearDown() {
+		config.stopWatching();
+	}
+	
+	private void write(String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void get_shouldLoadTheConfigurationOnce() throws IOException {
+		// replay
+		Properties first = config.get();
+		Properties second = config.get();
+		
+		// verify
+		assertSame(first, second);
+		assertEquals("first", first.getProperty("clientId"));
+		assertEquals(1, loads.get());
+	}
+	
+	@Test
+	public void reload_shouldSwapTheSnapshot() throws IOException {
+		// setup
+		Properties first = config.get();
+		write("clientId=second");
+		
+		// replay
+		config.reload();
+		
+		// verify
+		assertEquals("second", config.get().getProperty("clientId"));
+		assertEquals("first", first.getProperty("clientId"));
+	}
+	
+	@Test
+	public void reload_shouldKeepTheSnapshotWhenTheFileCantBeRead() throws IOException {
+		// setup
+		Properties first = config.get();
+		Files.delete(file);
+		
+		// replay
+		try {
+			config.reload();
+			fail();
+		}
+		catch (IOException e) {}
+		
+		// verify
+		assertSame(first, config.get());
+	}
+	
+	@Test
+	public void get_shouldReturnASnapshotThatCantBeModifiedButCanBeCloned() throws IOException {
+		// setup
+		Properties props = config.get();
+		
+		// replay
+		try {
+			props.setProperty("clientId", "changed");
+			fail();
+		}
+		catch (UnsupportedOperationException e) {}
+		Properties clone = (Properties) props.clone();
+		clone.setProperty("clientId", "changed");
+		
+		// verify
+		assertEquals("first", props.getProperty("clientId"));
+		assertEquals("changed", clone.getProperty("clientId"));
+	}
+	
+	@Test
+	public void invalidate_shouldLoadTheConfigurationAgainOnNextAccess() throws IOException {
+		// setup
+		config.get();
+		write("clientId=second");
+		
+		// replay
+		config.invalidate();
+		
+		// verify
+		assertEquals("second", config.get().getProperty("clientId"));
+		assertEquals(2, loads.get());
+	}
+	
+	@Test
+	public void live_shouldReadTheCurrentSnapshot() throws IOException {
+		// setup
+		Properties live = config.live();
+		assertEquals("first", live.getProperty("clientId"));
+		write("clientId=second");
+		
+		// replay
+		config.reload();
+		
+		// verify
+		assertEquals("second", live.getProperty("clientId"));
+		assertEquals("second", live.get("clientId"));
+		assertEquals(1, live.size());
+		Properties copy = (Properties) live.clone();
+		copy.setProperty("clientId", "third");
+		assertEquals("second", live.getProperty("clientId"));
+		try {
+			live.setProperty("clientId", "third");
+			fail();
+		}
+		catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void startWatching_shouldReloadTheConfigurationWhenTheFileChanges() throws Exception {
+		// setup
+		config.get();
+		config.startWatching();
+		
+		// replay
+		write("clientId=second");
+		
+		// verify
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!"second".equals(config.get().getProperty("clientId")) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals("second", config.get().getProperty("clientId"));
+	}
+}
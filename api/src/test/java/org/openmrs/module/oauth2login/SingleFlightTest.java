@@ -0,0 +1,171 @@
+package org.openmrs.module.oauth2login;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class SingleFlightTest {
+	
+	private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+	
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	@Test
+	public void execute_shouldShareTheResultOfTheWorkInFlight() throws Exception {
+		// setup
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch leaderStarted = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		
+		// replay
+		Future<String> leader = executor.submit(() -> singleFlight.execute("jdoe", () -> {
+			runs.incrementAndGet();
+			leaderStarted.countDown();
+			await(release);
+			return "done";
+		}));
+		leaderStarted.await();
+		Future<String> follower = executor.submit(() -> singleFlight.execute("jdoe", () -> {
+			runs.incrementAndGet();
+			return "not expected";
+		}));
+		Thread.sleep(100);
+		release.countDown();
+		
+		// verify
+		assertEquals("done", leader.get(5, TimeUnit.SECONDS));
+		assertEquals("done", follower.get(5, TimeUnit.SECONDS));
+		assertEquals(1, runs.get());
+		assertEquals(0, singleFlight.size());
+	}
+	
+	@Test
+	public void execute_shouldShareTheExceptionOfTheWorkInFlight() throws Exception {
+		// setup
+		IllegalArgumentException failure = new IllegalArgumentException("failed");
+		CountDownLatch leaderStarted = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		
+		// replay
+		Future<String> leader = executor.submit(() -> singleFlight.execute("jdoe", () -> {
+			leaderStarted.countDown();
+			await(release);
+			throw failure;
+		}));
+		leaderStarted.await();
+		Future<String> follower = executor.submit(() -> singleFlight.execute("jdoe", () -> "not expected"));
+		Thread.sleep(100);
+		release.countDown();
+		
+		// verify
+		for (Future<String> f : new Future[] { leader, follower }) {
+			try {
+				f.get(5, TimeUnit.SECONDS);
+				fail();
+			}
+			catch (ExecutionException e) {
+				assertSame(failure, e.getCause());
+			}
+		}
+		assertEquals(0, singleFlight.size());
+	}
+	
+	@Test
+	public void execute_shouldRunAgainOnceTheWorkIsNoLongerInFlight() {
+		AtomicInteger runs = new AtomicInteger();
+		
+		singleFlight.execute("jdoe", () -> "run " + runs.incrementAndGet());
+		
+		assertEquals("run 2", singleFlight.execute("jdoe", () -> "run " + runs.incrementAndGet()));
+	}
+	
+	@Test
+	public void executeUntilCompletion_shouldHoldTheKeyUntilTheTransactionHasCompleted() throws Exception {
+		// setup
+		List<String> events = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch leaderRan = new CountDownLatch(1);
+		CountDownLatch commit = new CountDownLatch(1);
+		
+		// replay
+		Future<String> leader = executor.submit(() -> {
+			TransactionSynchronizationManager.initSynchronization();
+			try {
+				String result = singleFlight.executeUntilCompletion("jdoe", () -> {
+					events.add("leader");
+					return "leader";
+				});
+				leaderRan.countDown();
+				await(commit);
+				events.add("commit");
+				for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+					sync.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+				}
+				return result;
+			}
+			finally {
+				TransactionSynchronizationManager.clearSynchronization();
+			}
+		});
+		leaderRan.await();
+		Future<String> follower = executor.submit(() -> singleFlight.executeUntilCompletion("jdoe", () -> {
+			events.add("follower");
+			return "follower";
+		}));
+		Thread.sleep(100);
+		assertEquals(1, singleFlight.size());
+		commit.countDown();
+		
+		// verify
+		assertEquals("leader", leader.get(5, TimeUnit.SECONDS));
+		assertEquals("follower", follower.get(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("leader", "commit", "follower"), events);
+		assertEquals(0, singleFlight.size());
+	}
+	
+	@Test
+	public void executeUntilCompletion_shouldReleaseTheKeyWhenTheWorkFailsOutsideOfATransaction() {
+		try {
+			singleFlight.executeUntilCompletion("jdoe", () -> {
+				throw new IllegalArgumentException("failed");
+			});
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		assertEquals(0, singleFlight.size());
+		assertEquals("done", singleFlight.executeUntilCompletion("jdoe", () -> "done"));
+	}
+	
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		}
+		catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -24,15 +24,27 @@ import org.openmrs.api.context.Credentials;
 import org.openmrs.api.db.ContextDAO;
 import org.openmrs.module.DaemonToken;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyList;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -99,4 +111,94 @@ public class OAuth2UserInfoAuthenticationSchemeTest {
 		verify(userInfo, never()).getOpenmrsUser(anyString());
 		verify(contextDAO, never()).createUser(any(User.class), anyString(), anyList());
 	}
+	
+	@Test
+	public void authenticate_shouldCreateNewUserOnlyOnceForConcurrentLogins() throws Exception {
+		final int logins = 16;
+		User newUser = new User();
+		AtomicReference<User> createdUser = new AtomicReference<>();
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch arrived = new CountDownLatch(logins);
+		// the logins that waited run after the creation and find the new user
+		Properties props = new Properties();
+		props.setProperty(OAuth2UserInfoAuthenticationScheme.PROP_SYNC_ON_LOGIN, "false");
+		authScheme.setOAuth2Properties(props);
+		when(contextDAO.getUserByUsername("tester")).thenAnswer(invocation -> createdUser.get());
+		when(userInfo.getOpenmrsUser(anyString())).thenReturn(newUser);
+		when(userInfo.getRoleNames()).thenReturn(Arrays.asList("Provider", "Nurse"));
+		when(contextDAO.createUser(any(User.class), anyString(), anyList())).thenAnswer(invocation -> {
+			// a slow creation that lets all the other logins pile up behind it
+			arrived.await(5, TimeUnit.SECONDS);
+			Thread.sleep(200);
+			createdUser.set(newUser);
+			return newUser;
+		});
+		
+		ExecutorService executor = Executors.newFixedThreadPool(logins);
+		List<Future<Authenticated>> results = new ArrayList<>();
+		try {
+			for (int i = 0; i < logins; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					arrived.countDown();
+					return authScheme.authenticate(credentials);
+				}));
+			}
+			start.countDown();
+			
+			for (Future<Authenticated> result : results) {
+				assertSame(newUser, result.get(10, TimeUnit.SECONDS).getUser());
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		
+		verify(contextDAO, times(1)).createUser(eq(newUser), anyString(), eq(Arrays.asList("Provider", "Nurse")));
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void authenticate_shouldResolveTheUserFromTheUserCache() throws Exception {
+		when(credentials.isServiceAccount()).thenReturn(true);
+		User user = new User(1);
+		User reloadedUser = new User(1);
+		when(contextDAO.getUserByUsername("tester")).thenReturn(user);
+		when(contextDAO.getUser(1)).thenReturn(reloadedUser);
+		authScheme.setUserCache(new UserCache());
+		
+		assertSame(user, authScheme.authenticate(credentials).getUser());
+		assertSame(reloadedUser, authScheme.authenticate(credentials).getUser());
+		
+		verify(contextDAO, times(1)).getUserByUsername("tester");
+		verify(contextDAO, times(1)).getUser(1);
+	}
+	
+	@Test
+	public void authenticate_shouldLookUpTheUsernameAgainWhenTheCachedUserNoLongerExists() throws Exception {
+		when(credentials.isServiceAccount()).thenReturn(true);
+		User user = new User(1);
+		when(contextDAO.getUserByUsername("tester")).thenReturn(user);
+		authScheme.setUserCache(new UserCache());
+		
+		assertSame(user, authScheme.authenticate(credentials).getUser());
+		assertSame(user, authScheme.authenticate(credentials).getUser());
+		
+		verify(contextDAO, times(2)).getUserByUsername("tester");
+	}
+	
+	@Test
+	public void authenticate_shouldNotUpdateExistingUserWhenSyncOnLoginIsDisabled() throws Exception {
+		User user = new User(1);
+		when(contextDAO.getUserByUsername("tester")).thenReturn(user);
+		Properties props = new Properties();
+		props.setProperty(OAuth2UserInfoAuthenticationScheme.PROP_SYNC_ON_LOGIN, "false");
+		authScheme.setOAuth2Properties(props);
+		
+		Authenticated result = authScheme.authenticate(credentials);
+		
+		assertSame(user, result.getUser());
+		verify(userInfo, never()).getOpenmrsUser();
+		verify(userInfo, never()).getRoleNames();
+	}
 }
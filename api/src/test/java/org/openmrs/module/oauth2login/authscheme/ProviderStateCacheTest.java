@@ -0,0 +1,61 @@
+package org.openmrs.module.oauth2login.authscheme;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class ProviderStateCacheTest {
+	
+	private final ProviderStateCache cache = new ProviderStateCache();
+	
+	@After
+	public void tearDown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+	
+	@Test
+	public void isApplied_shouldOnlyMatchTheLastAppliedState() {
+		// replay
+		cache.applied(1, true);
+		
+		// verify
+		assertTrue(cache.isApplied(1, true));
+		assertFalse(cache.isApplied(1, false));
+		assertFalse(cache.isApplied(2, true));
+		assertFalse(cache.isApplied(null, true));
+	}
+	
+	@Test
+	public void invalidate_shouldForgetThePersonState() {
+		// setup
+		cache.applied(1, true);
+		
+		// replay
+		cache.invalidate(1);
+		
+		// verify
+		assertFalse(cache.isApplied(1, true));
+	}
+	
+	@Test
+	public void applied_shouldOnlyRecordTheStateOnceTheTransactionCommitted() {
+		// setup
+		TransactionSynchronizationManager.initSynchronization();
+		
+		// replay
+		cache.applied(1, false);
+		
+		// verify
+		assertFalse(cache.isApplied(1, false));
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCommit();
+		}
+		assertTrue(cache.isApplied(1, false));
+	}
+}
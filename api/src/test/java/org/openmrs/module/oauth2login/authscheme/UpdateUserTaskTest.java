@@ -0,0 +1,130 @@
+package org.openmrs.module.oauth2login.authscheme;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.api.UserService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UpdateUserTaskTest {
+	
+	@Mock
+	private UserService userService;
+	
+	@Mock
+	private UserInfo userInfo;
+	
+	private User user;
+	
+	private Role provider = new Role("Provider");
+	
+	private Role nurse = new Role("Nurse");
+	
+	private Role clerk = new Role("Clerk");
+	
+	@Before
+	public void setup() {
+		user = newUser("jdoe@example.com");
+		when(userInfo.getUsername()).thenReturn("jdoe");
+		when(userInfo.getOpenmrsUser()).thenReturn(newUser("jdoe@example.com"));
+		when(userService.getUserByUsername("jdoe")).thenReturn(user);
+		when(userService.getRole("Provider")).thenReturn(provider);
+		when(userService.getRole("Nurse")).thenReturn(nurse);
+		when(userService.getRole("Clerk")).thenReturn(clerk);
+	}
+	
+	private User newUser(String email) {
+		User u = new User();
+		u.setUsername("jdoe");
+		u.setEmail(email);
+		Person p = new Person();
+		p.addName(new PersonName("John", null, "Doe"));
+		u.setPerson(p);
+		return u;
+	}
+	
+	private Set<String> roleNames(User u) {
+		return u.getRoles().stream().map(Role::getRole).collect(Collectors.toSet());
+	}
+	
+	@Test
+	public void run_shouldNotSaveUserWhenNothingChanged() {
+		// setup
+		user.addRole(provider);
+		user.addRole(nurse);
+		when(userInfo.getRoleNames()).thenReturn(Arrays.asList("Provider", "Nurse"));
+		
+		// replay
+		new UpdateUserTask(userService, userInfo).run();
+		
+		// verify
+		verify(userService, never()).saveUser(any(User.class));
+	}
+	
+	@Test
+	public void run_shouldOnlyAddAndRemoveTheChangedRoles() {
+		// setup
+		user.addRole(provider);
+		user.addRole(clerk);
+		Set<Role> roles = user.getRoles();
+		when(userInfo.getRoleNames()).thenReturn(Arrays.asList("Provider", "Nurse"));
+		
+		// replay
+		new UpdateUserTask(userService, userInfo).run();
+		
+		// verify
+		verify(userService).saveUser(user);
+		assertSame(roles, user.getRoles());
+		assertThat(roleNames(user), containsInAnyOrder("Provider", "Nurse"));
+	}
+	
+	@Test
+	public void run_shouldIgnoreUnknownRoles() {
+		// setup
+		user.setRoles(new HashSet<>(Arrays.asList(provider)));
+		when(userInfo.getRoleNames()).thenReturn(Arrays.asList("Provider", "Unknown"));
+		
+		// replay
+		new UpdateUserTask(userService, userInfo).run();
+		
+		// verify
+		verify(userService, never()).saveUser(any(User.class));
+		assertThat(roleNames(user), containsInAnyOrder("Provider"));
+	}
+	
+	@Test
+	public void run_shouldLeaveRolesUntouchedWhenNotMapped() {
+		// setup
+		user.addRole(clerk);
+		when(userInfo.getOpenmrsUser()).thenReturn(newUser("john.doe@example.com"));
+		when(userInfo.getRoleNames()).thenReturn(null);
+		
+		// replay
+		new UpdateUserTask(userService, userInfo).run();
+		
+		// verify
+		verify(userService).saveUser(user);
+		assertEquals("john.doe@example.com", user.getEmail());
+		assertThat(roleNames(user), containsInAnyOrder("Clerk"));
+	}
+}
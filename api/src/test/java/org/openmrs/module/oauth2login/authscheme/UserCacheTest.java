@@ -0,0 +1,102 @@
+package org.openmrs.module.oauth2login.authscheme;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.User;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+
+public class UserCacheTest {
+	
+	private final AtomicLong now = new AtomicLong();
+	
+	private UserCache cache;
+	
+	@Before
+	public void setup() {
+		OAuth2LoginMetrics.reset();
+		cache = new UserCache(now::get);
+		cache.configure(60, 2);
+	}
+	
+	private User newUser(int id, String username) {
+		User user = new User(id);
+		user.setUsername(username);
+		return user;
+	}
+	
+	@Test
+	public void getUserId_shouldReturnTheCachedUserIdUntilExpired() {
+		// setup
+		User user = newUser(1, "jdoe");
+		cache.put("jdoe", user);
+		
+		// replay & verify
+		assertEquals(Integer.valueOf(1), cache.getUserId("jdoe"));
+		now.addAndGet(TimeUnit.SECONDS.toNanos(59));
+		assertEquals(Integer.valueOf(1), cache.getUserId("jdoe"));
+		now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		assertNull(cache.getUserId("jdoe"));
+		assertEquals(2, OAuth2LoginMetrics.count(UserCache.METRIC_HITS));
+		assertEquals(1, OAuth2LoginMetrics.count(UserCache.METRIC_MISSES));
+	}
+	
+	@Test
+	public void put_shouldNotCacheRetiredUsers() {
+		// setup
+		User user = newUser(1, "jdoe");
+		user.setRetired(true);
+		
+		// replay
+		cache.put("jdoe", user);
+		
+		// verify
+		assertNull(cache.getUserId("jdoe"));
+	}
+	
+	@Test
+	public void invalidate_shouldEvictAllEntriesOfTheUser() {
+		// setup
+		cache.put("jdoe", newUser(1, "jdoe"));
+		cache.put("jdoe@example.com", newUser(1, "jdoe"));
+		
+		// replay
+		cache.invalidate(newUser(1, "john.doe"));
+		
+		// verify
+		assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void put_shouldEvictTheLeastRecentlyUsedEntryWhenFull() {
+		// setup
+		cache.put("jdoe", newUser(1, "jdoe"));
+		cache.put("tatkins", newUser(2, "tatkins"));
+		cache.getUserId("jdoe");
+		
+		// replay
+		cache.put("psmith", newUser(3, "psmith"));
+		
+		// verify
+		assertEquals(2, cache.size());
+		assertNull(cache.getUserId("tatkins"));
+	}
+	
+	@Test
+	public void getUserId_shouldNotCacheWhenDisabled() {
+		// setup
+		cache.configure(0, 2);
+		
+		// replay
+		cache.put("jdoe", newUser(1, "jdoe"));
+		
+		// verify
+		assertNull(cache.getUserId("jdoe"));
+		assertEquals(0, cache.size());
+	}
+}
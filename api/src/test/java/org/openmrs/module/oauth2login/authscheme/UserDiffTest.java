@@ -0,0 +1,90 @@
+package org.openmrs.module.oauth2login.authscheme;
+
+import static org.hamcrest.Matchers.contains;
+
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.User;
+
+public class UserDiffTest {
+	
+	private User newUser(String email, String gender, PersonName name) {
+		User user = new User();
+		user.setEmail(email);
+		Person p = new Person();
+		p.setGender(gender);
+		if (name != null) {
+			p.addName(name);
+		}
+		user.setPerson(p);
+		return user;
+	}
+	
+	@Test
+	public void between_shouldOnlyRetainNonNullChangedValues() {
+		// setup
+		User user = newUser("psmith@acme.com", "n/a", new PersonName("Jane", null, "Doe"));
+		User source = newUser(null, null, new PersonName("Jean", "J", "Doe"));
+		
+		// replay
+		UserDiff diff = UserDiff.between(user, source);
+		
+		// verify
+		Assert.assertThat(diff.getChanges().stream().map(UserDiff.Change::getAttributeName).collect(Collectors.toList()),
+		    contains("person.givenName", "person.middleName"));
+	}
+	
+	@Test
+	public void applyTo_shouldCopyOnlyNonNullProperties() {
+		// setup
+		User user = newUser("psmith@acme.com", "n/a", new PersonName("Jane", null, "Doe"));
+		user.getPerson().setCauseOfDeathNonCoded("Cardiac arrest");
+		PersonName name = user.getPersonName();
+		User source = newUser(null, null, new PersonName("Jean", "J", "Doe"));
+		
+		// replay
+		UserDiff.between(user, source).applyTo(user);
+		
+		// verify
+		Assert.assertEquals("psmith@acme.com", user.getEmail());
+		Assert.assertEquals("n/a", user.getPerson().getGender());
+		Assert.assertEquals("Cardiac arrest", user.getPerson().getCauseOfDeathNonCoded());
+		Assert.assertSame(name, user.getPersonName());
+		Assert.assertEquals("Jean", user.getGivenName());
+		Assert.assertEquals("J", user.getPersonName().getMiddleName());
+		Assert.assertEquals("Doe", user.getFamilyName());
+	}
+	
+	@Test
+	public void between_shouldBeEmptyWhenNothingChanged() {
+		// setup
+		User user = newUser("jdoe@acme.com", "F", new PersonName("Jane", null, "Doe"));
+		User source = newUser("jdoe@acme.com", null, new PersonName("Jane", null, "Doe"));
+		
+		// replay
+		UserDiff diff = UserDiff.between(user, source);
+		
+		// verify
+		Assert.assertTrue(diff.isEmpty());
+	}
+	
+	@Test
+	public void applyTo_shouldCreateMissingPersonAndPersonName() {
+		// setup
+		User user = new User();
+		User source = newUser("jdoe@acme.com", "F", new PersonName("Jane", null, "Doe"));
+		
+		// replay
+		UserDiff.between(user, source).applyTo(user);
+		
+		// verify
+		Assert.assertEquals("jdoe@acme.com", user.getEmail());
+		Assert.assertEquals("F", user.getPerson().getGender());
+		Assert.assertEquals("Jane", user.getGivenName());
+		Assert.assertEquals("Doe", user.getFamilyName());
+	}
+}
@@ -0,0 +1,64 @@
+package org.openmrs.module.oauth2login.provisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.openmrs.module.oauth2login.provisioning.UserExportReader.Format;
+
+import com.jayway.jsonpath.JsonPath;
+
+public class UserExportReaderTest {
+	
+	@Test
+	public void next_shouldReadJsonLinesSkippingBlankLines() throws Exception {
+		// setup
+		UserExportReader reader = new UserExportReader(new StringReader(
+		        "{\"preferred_username\": \"jdoe\"}\n\n{\"preferred_username\": \"tatkins\"}\n"), Format.JSON_LINES,
+		        "roles");
+		
+		// replay & verify
+		assertEquals("{\"preferred_username\": \"jdoe\"}", reader.next());
+		assertEquals("{\"preferred_username\": \"tatkins\"}", reader.next());
+		assertNull(reader.next());
+		assertEquals(3, reader.getLineNumber());
+	}
+	
+	@Test
+	public void next_shouldConvertCsvRowsToUserInfoJson() throws Exception {
+		// setup
+		UserExportReader reader = new UserExportReader(new StringReader(
+		        "preferred_username,family_name,email,roles\n" + "jdoe,\"Doe, Jr.\",,Provider;Nurse\n"), Format.CSV,
+		        "roles");
+		
+		// replay
+		String json = reader.next();
+		
+		// verify
+		assertEquals("jdoe", JsonPath.read(json, "$.preferred_username"));
+		assertEquals("Doe, Jr.", JsonPath.read(json, "$.family_name"));
+		assertEquals(Arrays.asList("Provider", "Nurse"), JsonPath.read(json, "$.roles"));
+		assertFalse(json.contains("email"));
+		assertNull(reader.next());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void next_shouldFailOnCsvRowsLongerThanTheHeader() throws Exception {
+		new UserExportReader(new StringReader("preferred_username\njdoe,Doe\n"), Format.CSV, null).next();
+	}
+	
+	@Test
+	public void parseCsvLine_shouldHandleQuotedValues() {
+		assertEquals(Arrays.asList("a", "b \"c\"", "", "d,e"), UserExportReader.parseCsvLine("a,\"b \"\"c\"\"\",,\"d,e\""));
+	}
+	
+	@Test
+	public void of_shouldInferTheFormatFromTheFileExtension() {
+		assertEquals(Format.CSV, Format.of("users.CSV"));
+		assertEquals(Format.JSON_LINES, Format.of("users.jsonl"));
+	}
+}
@@ -0,0 +1,177 @@
+package org.openmrs.module.oauth2login.provisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.StringReader;
+import java.util.Properties;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.api.UserService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.ContextDAO;
+import org.openmrs.module.oauth2login.authscheme.UserInfo;
+import org.openmrs.module.oauth2login.provisioning.UserExportReader.Format;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UserImporterTest {
+	
+	@InjectMocks
+	private UserImporter importer;
+	
+	@Mock
+	private UserService userService;
+	
+	@Mock
+	private PlatformTransactionManager transactionManager;
+	
+	@Mock
+	private TransactionStatus transactionStatus;
+	
+	@Mock
+	private ContextDAO contextDAO;
+	
+	@Before
+	public void setup() {
+		Context.setDAO(contextDAO);
+		when(transactionManager.getTransaction(any(TransactionDefinition.class))).thenReturn(transactionStatus);
+		importer.setTransactionManager(transactionManager);
+		
+		Properties props = new Properties();
+		props.setProperty(UserInfo.PROP_USERNAME, "preferred_username");
+		props.setProperty(UserInfo.PROP_EMAIL, "email");
+		props.setProperty(UserInfo.PROP_FAMILY_NAME, "family_name");
+		props.setProperty(UserInfo.PROP_ROLES, "roles");
+		importer.setOAuth2Properties(props);
+		
+		when(userService.getRole("Nurse")).thenReturn(new Role("Nurse"));
+	}
+	
+	private UserExportReader csv(String... lines) {
+		return new UserExportReader(new StringReader(String.join("\n", lines)), Format.CSV, importer.getRolesKey());
+	}
+	
+	private static User username(String username) {
+		return argThat(new BaseMatcher<User>() {
+			
+			@Override
+			public boolean matches(Object item) {
+				return item instanceof User && username.equals(((User) item).getUsername());
+			}
+			
+			@Override
+			public void describeTo(Description description) {
+				description.appendText("user '" + username + "'");
+			}
+		});
+	}
+	
+	@Test
+	public void importUsers_shouldCreateOrUpdateUsersInBatches() throws Exception {
+		// setup
+		User existing = new User();
+		existing.setUsername("tatkins");
+		existing.setEmail("tommy@example.com");
+		existing.setPerson(new Person());
+		existing.addName(new PersonName(null, null, "Atkins"));
+		when(userService.getUserByUsername("tatkins")).thenReturn(existing);
+		
+		// replay
+		UserImporter.Result result = importer.importUsers(csv("preferred_username,family_name,email,roles",
+		    "jdoe,Doe,jdoe@example.com,Nurse", "tatkins,Atkins,tatkins@example.com,", "psmith,Smith,,Nurse;Unknown"), 2);
+		
+		// verify
+		assertEquals(2, result.getCreated());
+		assertEquals(1, result.getUpdated());
+		assertEquals(0, result.getFailed());
+		verify(transactionManager, times(2)).getTransaction(any(TransactionDefinition.class));
+		verify(transactionManager, times(2)).commit(transactionStatus);
+		verify(userService).createUser(username("jdoe"), anyString());
+		verify(userService).createUser(username("psmith"), anyString());
+		verify(userService).saveUser(existing);
+		assertEquals("tatkins@example.com", existing.getEmail());
+	}
+	
+	@Test
+	public void importUsers_shouldLeaveTheRolesUnchangedWhenTheRolesCellIsEmpty() throws Exception {
+		// setup
+		User existing = new User();
+		existing.setUsername("tatkins");
+		existing.setPerson(new Person());
+		existing.addName(new PersonName(null, null, "Atkins"));
+		existing.addRole(new Role("Doctor"));
+		when(userService.getUserByUsername("tatkins")).thenReturn(existing);
+		
+		// replay
+		UserImporter.Result result = importer.importUsers(csv("preferred_username,family_name,roles", "tatkins,Atkins,"),
+		    10);
+		
+		// verify
+		assertEquals(0, result.getFailed());
+		assertEquals(1, existing.getRoles().size());
+		assertTrue(existing.hasRole("Doctor", true));
+	}
+	
+	@Test
+	public void getSyncMappings_shouldOverrideTheLoginMappings() {
+		// setup
+		Properties props = new Properties();
+		props.setProperty(UserInfo.PROP_USERNAME, "preferred_username");
+		props.setProperty(UserInfo.PROP_EMAIL, "email");
+		props.setProperty(UserImporter.SYNC_MAPPINGS_PFX + "user.username", "username");
+		
+		// replay
+		Properties mappings = UserImporter.getSyncMappings(props);
+		
+		// verify
+		assertEquals("username", mappings.getProperty(UserInfo.PROP_USERNAME));
+		assertEquals("email", mappings.getProperty(UserInfo.PROP_EMAIL));
+		assertEquals("preferred_username", props.getProperty(UserInfo.PROP_USERNAME));
+	}
+	
+	@Test
+	public void importUsers_shouldRetryAFailedBatchOneUserAtATime() throws Exception {
+		// setup
+		when(userService.createUser(username("bad"), anyString())).thenThrow(new IllegalArgumentException("invalid"));
+		
+		// replay
+		UserImporter.Result result = importer.importUsers(csv("preferred_username,family_name", "jdoe,Doe", "bad,Bad",
+		    "tatkins,Atkins"), 10);
+		
+		// verify
+		assertEquals(2, result.getCreated());
+		assertEquals(1, result.getFailed());
+		verify(transactionManager, times(4)).getTransaction(any(TransactionDefinition.class));
+		verify(transactionManager, times(2)).rollback(transactionStatus);
+	}
+	
+	@Test
+	public void importUsers_shouldSkipRecordsWithoutUsername() throws Exception {
+		// replay
+		UserImporter.Result result = importer.importUsers(csv("preferred_username,family_name", ",Doe"), 10);
+		
+		// verify
+		assertEquals(0, result.getCreated());
+		assertEquals(1, result.getFailed());
+	}
+}
@@ -0,0 +1,102 @@
+package org.openmrs.module.oauth2login.provisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.oauth2login.provisioning.IdpUserSource.Page;
+import org.openmrs.scheduler.TaskDefinition;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UserReconciliationTaskTest {
+	
+	@Mock
+	private IdpUserSource source;
+	
+	@Mock
+	private UserImporter importer;
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	private UserReconciliationTask task;
+	
+	@Before
+	public void setup() {
+		task = new UserReconciliationTask();
+		TaskDefinition definition = new TaskDefinition();
+		definition.setProperty(UserReconciliationTask.PROP_BATCH_SIZE, "50");
+		task.initialize(definition);
+	}
+	
+	@Test
+	public void pagedRecords_shouldStreamTheUsersOfAllPages() throws Exception {
+		// setup
+		Instant since = Instant.parse("2024-01-01T00:00:00Z");
+		when(source.getUsers(since, null)).thenReturn(new Page(Arrays.asList("{a}", "{b}"), "2"));
+		when(source.getUsers(since, "2")).thenReturn(new Page(Collections.emptyList(), "3"));
+		when(source.getUsers(since, "3")).thenReturn(new Page(Arrays.asList("{c}"), null));
+		
+		// replay
+		UserReconciliationTask.PagedRecords records = new UserReconciliationTask.PagedRecords(source, since);
+		
+		// verify
+		assertEquals("{a}", records.next());
+		assertEquals("{b}", records.next());
+		assertEquals("{c}", records.next());
+		assertNull(records.next());
+		assertNull(records.next());
+	}
+	
+	@Test
+	public void reconcile_shouldAdvanceTheWatermarkWhenAllUsersWereReconciled() throws Exception {
+		// setup
+		when(adminService.getGlobalProperty(UserReconciliationTask.GP_UPDATED_SINCE)).thenReturn("2024-01-01T00:00:00Z");
+		UserImporter.Result result = mock(UserImporter.Result.class);
+		when(importer.importUsers(any(UserImporter.Records.class), any(Properties.class), eq(50), eq(false))).thenReturn(
+		    result);
+		Instant before = Instant.now();
+		
+		// replay
+		task.reconcile(source, importer, adminService);
+		
+		// verify
+		ArgumentCaptor<String> watermark = ArgumentCaptor.forClass(String.class);
+		verify(adminService).setGlobalProperty(eq(UserReconciliationTask.GP_UPDATED_SINCE), watermark.capture());
+		assertFalse(Instant.parse(watermark.getValue()).isBefore(before));
+	}
+	
+	@Test
+	public void reconcile_shouldKeepTheWatermarkWhenSomeUsersFailed() throws Exception {
+		// setup
+		UserImporter.Result result = mock(UserImporter.Result.class);
+		when(result.getFailed()).thenReturn(1);
+		when(importer.importUsers(any(UserImporter.Records.class), any(Properties.class), eq(50), eq(false))).thenReturn(
+		    result);
+		
+		// replay
+		task.reconcile(source, importer, adminService);
+		
+		// verify
+		verify(adminService, never()).setGlobalProperty(anyString(), anyString());
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.oauth2.client.OAuth2ClientContext;
+import org.springframework.security.oauth2.client.token.AccessTokenRequest;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * An {@link OAuth2ClientContext} that keeps no state in the HTTP session, so that the callback of
+ * a login can be handled by any node of a cluster.
+ * <p>
+ * The state preserved between the authorization request and the callback is kept in a short-lived
+ * cookie, one per login in progress, encrypted and authenticated with AES-GCM. All the nodes must
+ * share the same key. The access token only lives for the duration of the callback request, the
+ * session tokens are stored by the login controller.
+ * <p>
+ * Settings in oauth2.properties:
+ * <ul>
+ * <li><code>login.stateCookie.enabled</code>: whether the login state is kept in cookies rather
+ * than in the HTTP session, false by default.</li>
+ * <li><code>login.stateCookie.key</code>: the base64 encoded AES key (128, 192 or 256 bits), a
+ * random key only valid for this node is used if not set.</li>
+ * <li><code>login.stateCookie.ttl</code>: how long a login may take at the identity provider, 300
+ * seconds by default.</li>
+ * </ul>
+ */
+public class CookieOAuth2ClientContext implements OAuth2ClientContext {
+	
+	private static final Logger log = LoggerFactory.getLogger(CookieOAuth2ClientContext.class);
+	
+	public static final String PROP_ENABLED = "login.stateCookie.enabled";
+	
+	public static final String PROP_KEY = "login.stateCookie.key";
+	
+	public static final String PROP_TTL = "login.stateCookie.ttl";
+	
+	public static final String COOKIE_PREFIX = "oauth2login_state_";
+	
+	public static final String METRIC_REJECTED = "login.stateCookie.rejected";
+	
+	private static final String ATTR_ACCESS_TOKEN = CookieOAuth2ClientContext.class.getName() + ".accessToken";
+	
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	
+	private static final int IV_LENGTH = 12;
+	
+	private static final int TAG_LENGTH = 128;
+	
+	private final AccessTokenRequest accessTokenRequest;
+	
+	private final SecretKey key;
+	
+	private final int ttl;
+	
+	private final LongSupplier clock;
+	
+	private final SecureRandom random = new SecureRandom();
+	
+	public CookieOAuth2ClientContext(AccessTokenRequest accessTokenRequest, Properties props) {
+		this(accessTokenRequest, props, System::currentTimeMillis);
+	}
+	
+	/**
+	 * @param clock The current time in milliseconds since the epoch.
+	 */
+	CookieOAuth2ClientContext(AccessTokenRequest accessTokenRequest, Properties props, LongSupplier clock) {
+		this.accessTokenRequest = accessTokenRequest;
+		this.clock = clock;
+		key = getKey(props);
+		ttl = Math.max(NumberUtils.toInt(props.getProperty(PROP_TTL), 300), 1);
+	}
+	
+	/**
+	 * @param props The OAuth 2 properties.
+	 * @return true if the login state is to be kept in cookies.
+	 */
+	public static boolean isEnabled(Properties props) {
+		return "true".equalsIgnoreCase(StringUtils.trim(props.getProperty(PROP_ENABLED)));
+	}
+	
+	@Override
+	public OAuth2AccessToken getAccessToken() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		return attributes == null ? null
+		        : (OAuth2AccessToken) attributes.getAttribute(ATTR_ACCESS_TOKEN, RequestAttributes.SCOPE_REQUEST);
+	}
+	
+	@Override
+	public void setAccessToken(OAuth2AccessToken accessToken) {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		if (attributes == null) {
+			return;
+		}
+		if (accessToken == null) {
+			attributes.removeAttribute(ATTR_ACCESS_TOKEN, RequestAttributes.SCOPE_REQUEST);
+		} else {
+			attributes.setAttribute(ATTR_ACCESS_TOKEN, accessToken, RequestAttributes.SCOPE_REQUEST);
+		}
+	}
+	
+	@Override
+	public AccessTokenRequest getAccessTokenRequest() {
+		return accessTokenRequest;
+	}
+	
+	@Override
+	public void setPreservedState(String stateKey, Object preservedState) {
+		if (preservedState == null) {
+			return;
+		}
+		ServletRequestAttributes attributes = getServletRequestAttributes();
+		String name = COOKIE_PREFIX + stateKey;
+		long expiresAt = clock.getAsLong() + TimeUnit.SECONDS.toMillis(ttl);
+		//the cookie name, and so the state key, is authenticated along with the state
+		String value = encrypt(name, expiresAt + "\n" + preservedState);
+		attributes.getResponse().addCookie(newCookie(attributes.getRequest(), name, value, ttl));
+	}
+	
+	@Override
+	public Object removePreservedState(String stateKey) {
+		ServletRequestAttributes attributes = getServletRequestAttributes();
+		String name = COOKIE_PREFIX + stateKey;
+		Cookie cookie = getCookie(attributes.getRequest(), name);
+		if (cookie == null) {
+			return null;
+		}
+		attributes.getResponse().addCookie(newCookie(attributes.getRequest(), name, "", 0));
+		
+		String state = decrypt(name, cookie.getValue());
+		int separator = state == null ? -1 : state.indexOf('\n');
+		if (separator < 0) {
+			OAuth2LoginMetrics.increment(METRIC_REJECTED);
+			log.warn("Rejected a login state cookie that could not be decrypted");
+			return null;
+		}
+		if (NumberUtils.toLong(state.substring(0, separator)) <= clock.getAsLong()) {
+			OAuth2LoginMetrics.increment(METRIC_REJECTED);
+			log.warn("Rejected an expired login state cookie");
+			return null;
+		}
+		return state.substring(separator + 1);
+	}
+	
+	String encrypt(String name, String plaintext) {
+		try {
+			byte[] iv = new byte[IV_LENGTH];
+			random.nextBytes(iv);
+			Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+			cipher.updateAAD(name.getBytes(StandardCharsets.UTF_8));
+			byte[] ciphertext = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+			return Base64.getUrlEncoder().withoutPadding()
+			        .encodeToString(ByteBuffer.allocate(iv.length + ciphertext.length).put(iv).put(ciphertext).array());
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Failed to encrypt the login state", e);
+		}
+	}
+	
+	/**
+	 * @return The plaintext, or null if the value was not encrypted with the key for that cookie.
+	 */
+	String decrypt(String name, String value) {
+		try {
+			byte[] bytes = Base64.getUrlDecoder().decode(value);
+			if (bytes.length <= IV_LENGTH) {
+				return null;
+			}
+			Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, bytes, 0, IV_LENGTH));
+			cipher.updateAAD(name.getBytes(StandardCharsets.UTF_8));
+			return new String(cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH), StandardCharsets.UTF_8);
+		}
+		catch (GeneralSecurityException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
+	private static ServletRequestAttributes getServletRequestAttributes() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		if (!(attributes instanceof ServletRequestAttributes)
+		        || ((ServletRequestAttributes) attributes).getResponse() == null) {
+			throw new IllegalStateException("The login state cookies can only be handled within a servlet request");
+		}
+		return (ServletRequestAttributes) attributes;
+	}
+	
+	private static Cookie getCookie(HttpServletRequest request, String name) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (name.equals(cookie.getName())) {
+					return cookie;
+				}
+			}
+		}
+		return null;
+	}
+	
+	private static Cookie newCookie(HttpServletRequest request, String name, String value, int maxAge) {
+		Cookie cookie = new Cookie(name, value);
+		cookie.setPath(StringUtils.defaultString(request.getContextPath()) + "/oauth2login");
+		cookie.setMaxAge(maxAge);
+		cookie.setHttpOnly(true);
+		cookie.setSecure(request.isSecure());
+		return cookie;
+	}
+	
+	/**
+	 * @param props The OAuth 2 properties.
+	 * @return The configured key, or a key of this node only when none is configured.
+	 * @throws IllegalStateException if the configured key is not a base64 encoded AES key.
+	 */
+	private static SecretKey getKey(Properties props) {
+		String encodedKey = props.getProperty(PROP_KEY);
+		if (StringUtils.isNotBlank(encodedKey)) {
+			try {
+				byte[] bytes = Base64.getDecoder().decode(encodedKey.trim());
+				if (bytes.length == 16 || bytes.length == 24 || bytes.length == 32) {
+					return new SecretKeySpec(bytes, "AES");
+				}
+			}
+			catch (IllegalArgumentException e) {
+				// reported below
+			}
+			log.error("'" + PROP_KEY + "' is not a base64 encoded 128, 192 or 256 bits AES key");
+			throw new IllegalStateException("'" + PROP_KEY + "' is not a base64 encoded AES key, generate one with"
+			        + " 'openssl rand -base64 32'");
+		}
+		if (SharedVerificationState.isEnabled(props)) {
+			log.error("'" + PROP_KEY + "' is not set while '" + SharedVerificationState.PROP_ENABLED
+			        + "' is on, logins will only complete on the node they started on: set '" + PROP_KEY
+			        + "' to the same key on all the nodes, generated with 'openssl rand -base64 32'");
+		} else {
+			log.warn("'" + PROP_KEY + "' is not set, logins will only complete on this node");
+		}
+		try {
+			KeyGenerator generator = KeyGenerator.getInstance("AES");
+			generator.init(256);
+			return generator.generateKey();
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
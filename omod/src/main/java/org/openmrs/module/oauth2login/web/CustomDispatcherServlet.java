@@ -44,14 +44,21 @@ public class CustomDispatcherServlet implements ServletContextAware {
 			        + "/webApplicationContext.xml");
 			final String servletName = OAuth2LoginConstants.MODULE_ARTIFACT_ID;
 			
-			ServletRegistration servletReg = servletContext.addServlet(servletName, new DispatcherServlet(appContext));
-			servletReg.addMapping("/oauth2login");
+			ServletRegistration.Dynamic servletReg = servletContext.addServlet(servletName,
+			    new DispatcherServlet(appContext));
+			servletReg.setAsyncSupported(true);
+			servletReg.addMapping("/oauth2login", "/oauth2login/metrics", "/oauth2login/revocations",
+			    "/oauth2logout/backchannel");
 			
 			log.info("Servlet '" + servletName + "' with webModuleApplicationContext config added successfully.");
 			
 			Dynamic filter = servletContext.addFilter("springSecurityFilterChain",
 			    new org.springframework.web.filter.DelegatingFilterProxy());
-			filter.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), true, "/*");
+			filter.setAsyncSupported(true);
+			// only the module's own endpoints go through Spring Security, also when an asynchronous login
+			// is dispatched back so that a redirect to the identity provider reaches the client context filter
+			filter.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC), true,
+			    "/oauth2login", "/oauth2login/*", "/oauth2logout");
 			
 			log.info("Filter 'springSecurityFilterChain' added successfully.");
 		}
@@ -1,11 +1,7 @@
 package org.openmrs.module.oauth2login.web;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.util.Properties;
 
-import org.apache.commons.io.IOUtils;
-import org.openmrs.api.APIException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,6 +12,29 @@ public class HttpUtils {
 	
 	protected static final Logger log = LoggerFactory.getLogger(HttpUtils.class);
 	
+	private static volatile IdpHttpClient httpClient;
+	
+	/**
+	 * Sets the HTTP client to use for the calls to the identity provider, this is the pooled client
+	 * set up by the module's bean factory.
+	 * 
+	 * @param client the HTTP client
+	 */
+	public static void setHttpClient(IdpHttpClient client) {
+		httpClient = client;
+	}
+	
+	static IdpHttpClient getHttpClient() {
+		if (httpClient == null) {
+			synchronized (HttpUtils.class) {
+				if (httpClient == null) {
+					httpClient = new IdpHttpClient(new Properties());
+				}
+			}
+		}
+		return httpClient;
+	}
+	
 	/**
 	 * Fetches JSON web keys from the Identity provider at the specified URL
 	 * 
@@ -24,31 +43,10 @@ public class HttpUtils {
 	 * @throws Exception
 	 */
 	public static String getJsonWebKeys(String url) throws Exception {
-		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-		
-		try {
-			connection.setRequestProperty("Accept", "application/json");
-			connection.setDoInput(true);
-			connection.setUseCaches(false);
-			
-			if (log.isDebugEnabled()) {
-				log.debug("Fetching JSON web keys from identity provider");
-			}
-			
-			connection.connect();
-			
-			if (connection.getResponseCode() != 200) {
-				final String error = connection.getResponseCode() + " " + connection.getResponseMessage();
-				throw new APIException("Unexpected response " + error + " from identity provider");
-			}
-			
-			return IOUtils.toString(connection.getInputStream(), StandardCharsets.UTF_8);
-		}
-		finally {
-			if (connection != null) {
-				connection.disconnect();
-			}
+		if (log.isDebugEnabled()) {
+			log.debug("Fetching JSON web keys from identity provider");
 		}
+		return getHttpClient().getJson(url);
 	}
 	
 }
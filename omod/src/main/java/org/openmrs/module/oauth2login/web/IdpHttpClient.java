@@ -0,0 +1,212 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.openmrs.api.APIException;
+import org.openmrs.module.oauth2login.CircuitBreaker;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.InterceptingClientHttpRequestFactory;
+
+/**
+ * The HTTP client shared by all the calls to the identity provider: token exchange, user info and
+ * JSON web keys. Connections are pooled and kept alive, and all calls are bounded by timeouts so
+ * that an unresponsive IdP cannot hold servlet threads indefinitely.
+ * <p>
+ * Settings in oauth2.properties, timeouts in milliseconds:
+ * <ul>
+ * <li><code>http.pool.maxTotal</code>: the maximum number of pooled connections, 20 by default.</li>
+ * <li><code>http.pool.maxPerRoute</code>: the maximum number of connections per host, 10 by
+ * default.</li>
+ * <li><code>http.connectTimeout</code>: 5000 by default.</li>
+ * <li><code>http.readTimeout</code>: 10000 by default.</li>
+ * <li><code>http.connectionRequestTimeout</code>: the maximum wait for a pooled connection, 5000 by
+ * default.</li>
+ * <li><code>http.idleTimeout</code>: the time after which idle connections are closed, 30000 by
+ * default.</li>
+ * <li><code>circuitBreaker.failureThreshold</code>: the number of consecutive failures after which
+ * the calls to an endpoint are rejected, 5 by default.</li>
+ * <li><code>circuitBreaker.openDuration</code>: how long the calls are rejected before a probe
+ * call is let through, 30000 by default.</li>
+ * </ul>
+ * Each endpoint, a URL without its query, is guarded by its own {@link CircuitBreaker}. Connection
+ * errors, timeouts and 5xx responses count as failures.
+ */
+public class IdpHttpClient implements Closeable {
+	
+	public static final String PROP_MAX_TOTAL = "http.pool.maxTotal";
+	
+	public static final String PROP_MAX_PER_ROUTE = "http.pool.maxPerRoute";
+	
+	public static final String PROP_CONNECT_TIMEOUT = "http.connectTimeout";
+	
+	public static final String PROP_READ_TIMEOUT = "http.readTimeout";
+	
+	public static final String PROP_CONNECTION_REQUEST_TIMEOUT = "http.connectionRequestTimeout";
+	
+	public static final String PROP_IDLE_TIMEOUT = "http.idleTimeout";
+	
+	public static final String PROP_FAILURE_THRESHOLD = "circuitBreaker.failureThreshold";
+	
+	public static final String PROP_OPEN_DURATION = "circuitBreaker.openDuration";
+	
+	public static final String METRIC_REQUESTS = "http.requests";
+	
+	private final PoolingHttpClientConnectionManager connectionManager;
+	
+	private final CloseableHttpClient httpClient;
+	
+	private final ClientHttpRequestFactory requestFactory;
+	
+	private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+	
+	private final int failureThreshold;
+	
+	private final long openMillis;
+	
+	private final LongSupplier clock;
+	
+	public IdpHttpClient(Properties props) {
+		this(props, System::nanoTime);
+	}
+	
+	IdpHttpClient(Properties props, LongSupplier clock) {
+		this.clock = clock;
+		failureThreshold = getInt(props, PROP_FAILURE_THRESHOLD, 5);
+		openMillis = getInt(props, PROP_OPEN_DURATION, 30000);
+		
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(getInt(props, PROP_MAX_TOTAL, 20));
+		connectionManager.setDefaultMaxPerRoute(getInt(props, PROP_MAX_PER_ROUTE, 10));
+		
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(getInt(props, PROP_CONNECT_TIMEOUT, 5000))
+		        .setSocketTimeout(getInt(props, PROP_READ_TIMEOUT, 10000))
+		        .setConnectionRequestTimeout(getInt(props, PROP_CONNECTION_REQUEST_TIMEOUT, 5000)).build();
+		
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig)
+		        .evictExpiredConnections()
+		        .evictIdleConnections(getInt(props, PROP_IDLE_TIMEOUT, 30000), TimeUnit.MILLISECONDS)
+		        .addInterceptorFirst((HttpRequestInterceptor) (request, context) -> OAuth2LoginMetrics
+		                .increment(METRIC_REQUESTS))
+		        .useSystemProperties().build();
+		
+		requestFactory = new InterceptingClientHttpRequestFactory(new HttpComponentsClientHttpRequestFactory(httpClient),
+		        Collections.<ClientHttpRequestInterceptor> singletonList((request, body, execution) -> {
+			        CircuitBreaker breaker = getCircuitBreaker(request.getURI());
+			        breaker.acquire();
+			        try {
+				        ClientHttpResponse response = execution.execute(request, body);
+				        record(breaker, response.getRawStatusCode());
+				        return response;
+			        }
+			        catch (IOException | RuntimeException e) {
+				        breaker.onFailure();
+				        throw e;
+			        }
+		        }));
+		
+		OAuth2LoginMetrics.gauge("http.pool.leased", () -> connectionManager.getTotalStats().getLeased());
+		OAuth2LoginMetrics.gauge("http.pool.available", () -> connectionManager.getTotalStats().getAvailable());
+		OAuth2LoginMetrics.gauge("http.pool.pending", () -> connectionManager.getTotalStats().getPending());
+		OAuth2LoginMetrics.gauge("http.pool.max", () -> connectionManager.getTotalStats().getMax());
+	}
+	
+	/**
+	 * @return The request factory to use with Spring's REST templates, its requests are guarded by
+	 *         the circuit breakers.
+	 */
+	public ClientHttpRequestFactory getRequestFactory() {
+		return requestFactory;
+	}
+	
+	/**
+	 * Fetches a JSON document.
+	 * 
+	 * @param url The URL.
+	 * @return The response body.
+	 * @throws IOException if the call fails, see
+	 *             {@link org.openmrs.module.oauth2login.CircuitBreakerOpenException} when it is
+	 *             rejected.
+	 * @throws APIException if the response status is not 200.
+	 */
+	public String getJson(String url) throws IOException {
+		HttpGet get = new HttpGet(url);
+		get.setHeader("Accept", "application/json");
+		CircuitBreaker breaker = getCircuitBreaker(get.getURI());
+		breaker.acquire();
+		String body;
+		try (CloseableHttpResponse response = httpClient.execute(get)) {
+			record(breaker, response.getStatusLine().getStatusCode());
+			body = response.getEntity() == null ? null : EntityUtils.toString(response.getEntity(), "UTF-8");
+			if (response.getStatusLine().getStatusCode() != 200) {
+				throw new APIException("Unexpected response " + statusOf(response) + " from identity provider");
+			}
+		}
+		catch (IOException e) {
+			breaker.onFailure();
+			throw e;
+		}
+		return body;
+	}
+	
+	/**
+	 * @param uri A request URI.
+	 * @return The circuit breaker guarding the endpoint of the URI.
+	 */
+	CircuitBreaker getCircuitBreaker(URI uri) {
+		String endpoint = uri.getHost() + (uri.getPort() == -1 ? "" : ":" + uri.getPort())
+		        + (uri.getPath() == null ? "" : uri.getPath());
+		return breakers.computeIfAbsent(endpoint, name -> new CircuitBreaker(name, failureThreshold, openMillis, clock));
+	}
+	
+	@Override
+	public void close() throws IOException {
+		httpClient.close();
+	}
+	
+	private static void record(CircuitBreaker breaker, int status) {
+		if (status >= 500) {
+			breaker.onFailure();
+		} else {
+			breaker.onSuccess();
+		}
+	}
+	
+	private static String statusOf(HttpResponse response) {
+		return response.getStatusLine().getStatusCode() + " " + response.getStatusLine().getReasonPhrase();
+	}
+	
+	private static int getInt(Properties props, String key, int defaultValue) {
+		return NumberUtils.toInt(props.getProperty(key), defaultValue);
+	}
+}
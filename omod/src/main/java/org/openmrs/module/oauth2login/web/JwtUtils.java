@@ -8,22 +8,30 @@ import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.jose4j.json.JsonUtil;
 import org.jose4j.jwa.AlgorithmConstraints;
 import org.jose4j.jwk.JsonWebKey;
 import org.jose4j.jwk.JsonWebKeySet;
 import org.jose4j.jwk.VerificationJwkSelector;
 import org.jose4j.jws.AlgorithmIdentifiers;
 import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.lang.JoseException;
 import org.openmrs.api.APIException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.PrematureJwtException;
 import io.jsonwebtoken.security.SignatureException;
 
 /**
@@ -39,12 +47,30 @@ public class JwtUtils {
 	
 	public static final String OAUTH_PROP_KEYS_URL = "keysUrl";
 	
+	/**
+	 * The minimum time in seconds between two refreshes of the identity provider's keys.
+	 */
+	public static final String OAUTH_PROP_KEYS_REFRESH_INTERVAL = "keysRefreshInterval";
+	
 	public static PublicKey localPublicKey = null;
 	
 	public static boolean keysInitialized = false;
 	
 	public static JsonWebKeySet remoteJsonWebKeySet = null;
 	
+	private static long keysFetchedAt;
+	
+	// the key settings the keys were loaded with, the keys are loaded again when they change
+	private static volatile String keySettings;
+	
+	// the JSON web keys last fetched from the identity provider
+	private static String jsonWebKeys;
+	
+	// identifies the keys in use, the tokens verified with other keys are not trusted
+	private static volatile String keysId;
+	
+	private static volatile SharedVerificationState sharedState;
+	
 	public static final String[] SUPPORTED_ALGORITHMS = new String[] { AlgorithmIdentifiers.RSA_USING_SHA256,
 	        AlgorithmIdentifiers.RSA_USING_SHA384, AlgorithmIdentifiers.RSA_USING_SHA512,
 	        AlgorithmIdentifiers.RSA_PSS_USING_SHA256, AlgorithmIdentifiers.RSA_PSS_USING_SHA384,
@@ -59,17 +85,100 @@ public class JwtUtils {
 	 * @throws Exception
 	 */
 	public static Claims parseAndVerifyToken(String jwtToken, Properties oauthProps) throws Exception {
+		SharedVerificationState shared = sharedState;
+		if (shared != null) {
+			reloadKeysIfSettingsChanged(oauthProps);
+			String keys = keysId;
+			if (keys != null && shared.isVerified(keys, jwtToken)) {
+				Claims claims = Jwts.claims(getUnverifiedClaims(jwtToken));
+				Date notBefore = claims.getNotBefore();
+				if (notBefore != null && notBefore.getTime() > System.currentTimeMillis()) {
+					throw new PrematureJwtException(null, claims, "JWT must not be accepted before " + notBefore);
+				}
+				return claims;
+			}
+		}
+		
 		PublicKey effectiveKey = getPublicKey(jwtToken, oauthProps);
 		if (effectiveKey == null) {
 			throw new APIException("Unable to find public key to verify JWT token signatures");
 		}
 		
-		return Jwts.parserBuilder().setSigningKey(effectiveKey).build().parseClaimsJws(jwtToken).getBody();
+		Claims claims = Jwts.parserBuilder().setSigningKey(effectiveKey).build().parseClaimsJws(jwtToken).getBody();
+		String keys = keysId;
+		if (shared != null && keys != null) {
+			shared.verified(keys, jwtToken, claims);
+		}
+		return claims;
+	}
+	
+	/**
+	 * Shares the identity provider's keys and the verified tokens with the other nodes of a cluster.
+	 * 
+	 * @param state The shared state, or null to stop sharing.
+	 */
+	static void setSharedState(SharedVerificationState state) {
+		sharedState = state;
+	}
+	
+	/**
+	 * Parses and verifies an OpenID Connect id_token, which must also be intended for this client.
+	 * 
+	 * @param idToken the id_token
+	 * @param oauthProps oauth2 properties instance
+	 * @return Claims object
+	 * @throws Exception if the token cannot be verified or is not intended for the client ID
+	 */
+	public static Claims parseAndVerifyIdToken(String idToken, Properties oauthProps) throws Exception {
+		Claims claims = parseAndVerifyToken(idToken, oauthProps);
+		String clientId = oauthProps.getProperty("clientId");
+		if (!hasAudience(claims, clientId)) {
+			throw new APIException("The id_token audience " + claims.get(Claims.AUDIENCE) + " does not include the client '"
+			        + clientId + "'");
+		}
+		return claims;
+	}
+	
+	/**
+	 * Reads the claims of a JWT without verifying it, this is only meant for tokens obtained
+	 * directly from the identity provider, such as the id_token of the token response.
+	 * 
+	 * @param jwt the JWT token
+	 * @return the claims
+	 * @throws JoseException if the token is not a JWT
+	 */
+	public static Map<String, Object> getUnverifiedClaims(String jwt) throws JoseException {
+		String[] parts = StringUtils.split(jwt, '.');
+		if (parts == null || parts.length < 2) {
+			throw new JoseException("Not a JWT token");
+		}
+		try {
+			return JsonUtil.parseJson(new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8));
+		}
+		catch (IllegalArgumentException e) {
+			throw new JoseException("Not a JWT token", e);
+		}
+	}
+	
+	/**
+	 * Checks the audience of a token, that can be either a single string or an array of strings.
+	 * 
+	 * @param claims the token claims
+	 * @param audience the expected audience
+	 * @return true if the audience is one of the token audiences
+	 */
+	public static boolean hasAudience(Claims claims, String audience) {
+		Object aud = claims.get(Claims.AUDIENCE);
+		if (aud instanceof Collection) {
+			return ((Collection<?>) aud).contains(audience);
+		}
+		return aud != null && aud.equals(audience);
 	}
 	
 	/**
 	 * Gets the public key based on the specified oauthProps properties. Lookup order is the oauth
-	 * property, and then the configured file containing the key.
+	 * property, and then the configured file containing the key. The keys are loaded again when
+	 * these settings change.
 	 * 
 	 * @param jwt the JWT token that will verified with the public key
 	 * @param oauthProps Properties instance
@@ -77,7 +186,9 @@ public class JwtUtils {
 	 * @throws Exception
 	 */
 	public synchronized static PublicKey getPublicKey(String jwt, Properties oauthProps) throws Exception {
+		reloadKeysIfSettingsChanged(oauthProps);
 		if (!keysInitialized) {
+			String settings = getKeySettings(oauthProps);
 			String publicKeyTxt = null;
 			if (StringUtils.isNotBlank(oauthProps.getProperty(OAUTH_PROP_KEY))) {
 				log.info("Using public key specified via the oauth property named: " + OAUTH_PROP_KEY);
@@ -101,10 +212,14 @@ public class JwtUtils {
 			}
 			
 			if (localPublicKey == null && StringUtils.isNotBlank(oauthProps.getProperty(OAUTH_PROP_KEYS_URL))) {
-				String keys = HttpUtils.getJsonWebKeys(oauthProps.getProperty(OAUTH_PROP_KEYS_URL).trim());
+				String keys = getJsonWebKeys(oauthProps.getProperty(OAUTH_PROP_KEYS_URL).trim());
 				remoteJsonWebKeySet = new JsonWebKeySet(keys);
+				jsonWebKeys = keys;
+				keysFetchedAt = System.nanoTime();
 			}
 			
+			keySettings = settings;
+			keysId = RevokedTokens.digest(settings + "|" + StringUtils.defaultString(jsonWebKeys));
 			keysInitialized = true;
 		}
 		
@@ -119,6 +234,10 @@ public class JwtUtils {
 			jws.setCompactSerialization(jwt);
 			VerificationJwkSelector keySelector = new VerificationJwkSelector();
 			JsonWebKey jwk = keySelector.select(jws, remoteJsonWebKeySet.getJsonWebKeys());
+			if (jwk == null && refreshJsonWebKeys(oauthProps)) {
+				//The identity provider may have rotated its keys
+				jwk = keySelector.select(jws, remoteJsonWebKeySet.getJsonWebKeys());
+			}
 			if (jwk != null) {
 				jws.setKey(jwk.getKey());
 				//Do a quick check of the signature, an exception will be thrown in case of an unsupported algorithm
@@ -135,6 +254,84 @@ public class JwtUtils {
 		return null;
 	}
 	
+	/**
+	 * Drops the keys when the key settings changed since they were loaded, the keys are then loaded
+	 * again and the tokens verified with the former keys are forgotten.
+	 * 
+	 * @param oauthProps Properties instance
+	 */
+	private static void reloadKeysIfSettingsChanged(Properties oauthProps) {
+		String settings = getKeySettings(oauthProps);
+		if (settings == null || keySettings == null || settings.equals(keySettings)) {
+			return;
+		}
+		synchronized (JwtUtils.class) {
+			if (keysInitialized && keySettings != null && !settings.equals(keySettings)) {
+				log.info("The public key settings changed, loading the keys again");
+				localPublicKey = null;
+				remoteJsonWebKeySet = null;
+				jsonWebKeys = null;
+				keySettings = null;
+				keysId = null;
+				keysInitialized = false;
+				keysChanged();
+			}
+		}
+	}
+	
+	private static void keysChanged() {
+		SharedVerificationState shared = sharedState;
+		if (shared != null) {
+			shared.keysChanged();
+		}
+	}
+	
+	private static String getKeySettings(Properties oauthProps) {
+		if (oauthProps == null) {
+			return null;
+		}
+		return StringUtils.join(new String[] { oauthProps.getProperty(OAUTH_PROP_KEY),
+		        oauthProps.getProperty(OAUTH_PROP_KEY_FILE), oauthProps.getProperty(OAUTH_PROP_KEYS_URL) }, '|');
+	}
+	
+	/**
+	 * Fetches the keys again from the identity provider, at most once per refresh interval. The
+	 * cached keys remain in use if the keys cannot be fetched, for instance while the circuit breaker
+	 * to the identity provider is open.
+	 * 
+	 * @param oauthProps Properties instance
+	 * @return true if the keys were refreshed
+	 */
+	private static boolean refreshJsonWebKeys(Properties oauthProps) {
+		String url = oauthProps.getProperty(OAUTH_PROP_KEYS_URL);
+		long interval = TimeUnit.SECONDS
+		        .toNanos(NumberUtils.toLong(oauthProps.getProperty(OAUTH_PROP_KEYS_REFRESH_INTERVAL), 60));
+		if (StringUtils.isBlank(url) || System.nanoTime() - keysFetchedAt < interval) {
+			return false;
+		}
+		
+		keysFetchedAt = System.nanoTime();
+		try {
+			String keys = getJsonWebKeys(url.trim());
+			remoteJsonWebKeySet = new JsonWebKeySet(keys);
+			if (!keys.equals(jsonWebKeys)) {
+				jsonWebKeys = keys;
+				keysId = RevokedTokens.digest(keySettings + "|" + keys);
+				keysChanged();
+			}
+			return true;
+		}
+		catch (Exception e) {
+			log.warn("Failed to refresh the JSON web keys from the identity provider, using the cached keys", e);
+			return false;
+		}
+	}
+	
+	private static String getJsonWebKeys(String url) throws Exception {
+		SharedVerificationState shared = sharedState;
+		return shared != null ? shared.getJsonWebKeys(url) : HttpUtils.getJsonWebKeys(url);
+	}
+	
 	/**
 	 * Parses a base64 encoded string and creates a PublicKey object
 	 * 
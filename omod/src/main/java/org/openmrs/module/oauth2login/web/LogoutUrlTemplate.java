@@ -0,0 +1,138 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * The <code>logoutUri</code> of the OAuth 2 properties, parsed and encoded once into literal
+ * segments around the <code>[token]</code> slots, so that a logout URL is built with a single
+ * append per segment. The URL used when there is no token to fill the slots, with the
+ * <code>client_id</code> fallback, is also precomputed.
+ * <p>
+ * The URLs are the same as those obtained by replacing the token in the template and then encoding
+ * the result with {@link Utils#encodeUrl(String)}.
+ */
+public class LogoutUrlTemplate {
+	
+	public static final String PROP_LOGOUT_URI = "logoutUri";
+	
+	public static final String PROP_ENCODE_DISABLED = "logoutUri.encode.disabled";
+	
+	public static final String TOKEN = "[token]";
+	
+	// only made of characters that are left as they are when URL encoded
+	private static final String SLOT = "oauth2loginTokenSlot";
+	
+	private static volatile LogoutUrlTemplate cached;
+	
+	private final Properties source;
+	
+	private final boolean encode;
+	
+	/**
+	 * The URL when there is no token, possibly null.
+	 */
+	private final String fallbackUrl;
+	
+	/**
+	 * The literal segments around the token slots, null when there are no slots.
+	 */
+	private final String[] segments;
+	
+	/**
+	 * Whether each slot is in the query, the query being encoded once more.
+	 */
+	private final boolean[] slotInQuery;
+	
+	private final int literalLength;
+	
+	LogoutUrlTemplate(Properties props) {
+		source = props;
+		encode = !Boolean.valueOf(props.getProperty(PROP_ENCODE_DISABLED));
+		String template = props.getProperty(PROP_LOGOUT_URI);
+		
+		if (StringUtils.isBlank(template) || !template.contains(TOKEN)) {
+			fallbackUrl = StringUtils.isBlank(template) ? null : finish(template);
+			segments = null;
+			slotInQuery = null;
+			literalLength = 0;
+			return;
+		}
+		
+		//Oauth2 specification requires the id_token_hint or client_id, fallback to client_id
+		String fallback = template;
+		if (!UriComponentsBuilder.fromHttpUrl(template).build().getQueryParams().containsKey("client_id")) {
+			fallback = StringUtils.replace(template, "id_token_hint=" + TOKEN, "client_id=" + props.getProperty("clientId"));
+		}
+		fallbackUrl = finish(fallback);
+		
+		String compiled = finish(StringUtils.replace(template, TOKEN, SLOT));
+		segments = StringUtils.splitByWholeSeparatorPreserveAllTokens(compiled, SLOT);
+		slotInQuery = new boolean[segments.length - 1];
+		int queryStart = compiled.indexOf('?');
+		int fragmentStart = compiled.indexOf('#');
+		int length = 0;
+		for (int i = 0; i < slotInQuery.length; i++) {
+			length += segments[i].length();
+			int position = length + i * SLOT.length();
+			slotInQuery[i] = queryStart >= 0 && queryStart < position && (fragmentStart < 0 || position < fragmentStart);
+		}
+		literalLength = length + segments[segments.length - 1].length();
+	}
+	
+	/**
+	 * @param props The OAuth 2 properties.
+	 * @return The template of the logout URI, compiled again only when the properties change.
+	 */
+	public static LogoutUrlTemplate get(Properties props) {
+		LogoutUrlTemplate template = cached;
+		if (template == null || template.source != props) {
+			template = new LogoutUrlTemplate(props);
+			cached = template;
+		}
+		return template;
+	}
+	
+	/**
+	 * @return true if the logout URI has a token slot, ie. the id_token should be looked up.
+	 */
+	public boolean hasTokenSlot() {
+		return segments != null;
+	}
+	
+	/**
+	 * @param token The id_token, possibly null.
+	 * @return The logout URL, or null if there is no logout URI.
+	 */
+	public String build(String token) throws UnsupportedEncodingException {
+		if (segments == null || StringUtils.isBlank(token)) {
+			return fallbackUrl;
+		}
+		String encoded = URLEncoder.encode(token, "UTF-8");
+		String encodedInQuery = encode ? URLEncoder.encode(encoded, "UTF-8") : encoded;
+		
+		StringBuilder url = new StringBuilder(literalLength + slotInQuery.length * encodedInQuery.length());
+		url.append(segments[0]);
+		for (int i = 0; i < slotInQuery.length; i++) {
+			url.append(slotInQuery[i] ? encodedInQuery : encoded).append(segments[i + 1]);
+		}
+		return url.toString();
+	}
+	
+	private String finish(String url) {
+		return encode ? Utils.encodeUrl(url) : url;
+	}
+}
@@ -0,0 +1,433 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The bearer tokens revoked before they expire, identified by their <code>jti</code> or, for
+ * tokens without one, by the SHA-256 digest of the token.
+ * <p>
+ * The exact sets are fronted by a Bloom filter, so that checking a token that is not revoked, which
+ * is nearly always the case, only reads a few bits and allocates nothing. Tokens without a
+ * <code>jti</code> are digested first, and only when some tokens are revoked by digest. The entries
+ * are dropped once the tokens have expired, the Bloom filter is then rebuilt.
+ * <p>
+ * Revocations are added through the admin endpoint or listed in a file of the application data
+ * directory, one per line: <code>&lt;jti&gt; &lt;exp&gt;</code> or
+ * <code>sha256:&lt;hex digest&gt; &lt;exp&gt;</code>, the expiry being in seconds since the epoch.
+ * The revocations of the admin endpoint are appended to that file, without it they are only known
+ * to this node until it restarts. The file is durable, and shared by the nodes of a cluster when
+ * the application data directory is.
+ * <p>
+ * Settings in oauth2.properties:
+ * <ul>
+ * <li><code>revocation.filename</code>: the revocation file, none by default.</li>
+ * <li><code>revocation.expectedTokens</code>: the number of revocations the Bloom filter is sized
+ * for, 10000 by default, it grows beyond that.</li>
+ * <li><code>revocation.checkInterval</code>: how often the file is checked for changes and the
+ * expired entries are dropped, 60 seconds by default.</li>
+ * </ul>
+ */
+public class RevokedTokens implements Closeable {
+	
+	private static final Logger log = LoggerFactory.getLogger(RevokedTokens.class);
+	
+	public static final String PROP_FILENAME = "revocation.filename";
+	
+	public static final String PROP_EXPECTED_TOKENS = "revocation.expectedTokens";
+	
+	public static final String PROP_CHECK_INTERVAL = "revocation.checkInterval";
+	
+	public static final String DIGEST_PREFIX = "sha256:";
+	
+	public static final String METRIC_ENTRIES = "revocation.entries";
+	
+	public static final String METRIC_REJECTED = "revocation.rejected";
+	
+	private static final long JTI_SEED = 0x9E3779B97F4A7C15L;
+	
+	private static final long DIGEST_SEED = 0xC2B2AE3D27D4EB4FL;
+	
+	private final ConcurrentMap<String, Long> jtis = new ConcurrentHashMap<>();
+	
+	private final ConcurrentMap<String, Long> digests = new ConcurrentHashMap<>();
+	
+	private final LongSupplier clock;
+	
+	private final int expectedTokens;
+	
+	private final Path file;
+	
+	private final long checkInterval;
+	
+	private volatile BloomFilter bloom;
+	
+	private long fileLastModified;
+	
+	private ScheduledExecutorService scheduler;
+	
+	public RevokedTokens(Properties props) {
+		this(props, () -> TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+	}
+	
+	/**
+	 * @param clock The current time in seconds since the epoch.
+	 */
+	RevokedTokens(Properties props, LongSupplier clock) {
+		this(props, clock, StringUtils.isBlank(props.getProperty(PROP_FILENAME)) ? null
+		        : Utils.getFileInAppDataDirectory(props.getProperty(PROP_FILENAME).trim()).toPath());
+	}
+	
+	/**
+	 * @param clock The current time in seconds since the epoch.
+	 * @param file The revocation file, possibly null.
+	 */
+	RevokedTokens(Properties props, LongSupplier clock, Path file) {
+		this.clock = clock;
+		this.file = file;
+		expectedTokens = Math.max(NumberUtils.toInt(props.getProperty(PROP_EXPECTED_TOKENS), 10000), 16);
+		checkInterval = Math.max(NumberUtils.toLong(props.getProperty(PROP_CHECK_INTERVAL), 60), 1);
+		bloom = new BloomFilter(expectedTokens);
+		OAuth2LoginMetrics.gauge(METRIC_ENTRIES, this::size);
+	}
+	
+	/**
+	 * Loads the revocation file and starts checking it for changes, and dropping the expired
+	 * entries, in the background.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		reloadFileIfChanged();
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "oauth2login-revocations");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			reloadFileIfChanged();
+			purgeExpired();
+		}, checkInterval, checkInterval, TimeUnit.SECONDS);
+	}
+	
+	@Override
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+	
+	/**
+	 * @param jti The <code>jti</code> of the token to revoke.
+	 * @param exp The expiry of the token, in seconds since the epoch.
+	 */
+	public void revokeJti(String jti, long exp) {
+		add(jtis, JTI_SEED, jti, exp);
+	}
+	
+	/**
+	 * Revokes a token by its digest, meant for tokens without <code>jti</code>: the tokens that
+	 * have one are only looked up by their <code>jti</code>.
+	 * 
+	 * @param token The token to revoke.
+	 * @param exp The expiry of the token, in seconds since the epoch.
+	 */
+	public void revokeToken(String token, long exp) {
+		revokeDigest(digest(token), exp);
+	}
+	
+	/**
+	 * Revokes a token by its <code>jti</code> and appends the revocation to the revocation file,
+	 * when there is one.
+	 * 
+	 * @param jti The <code>jti</code> of the token to revoke.
+	 * @param exp The expiry of the token, in seconds since the epoch.
+	 * @return true if the revocation was appended to the file.
+	 * @throws IOException if the revocation can't be appended, it is still in effect on this node.
+	 */
+	public boolean persistJti(String jti, long exp) throws IOException {
+		if (StringUtils.containsWhitespace(jti)) {
+			throw new IllegalArgumentException("The jti of a revoked token can't contain whitespace");
+		}
+		revokeJti(jti, exp);
+		return append(jti, exp);
+	}
+	
+	/**
+	 * Revokes a token by its digest and appends the revocation to the revocation file, when there
+	 * is one.
+	 * 
+	 * @param token The token to revoke.
+	 * @param exp The expiry of the token, in seconds since the epoch.
+	 * @return true if the revocation was appended to the file.
+	 * @throws IOException if the revocation can't be appended, it is still in effect on this node.
+	 */
+	public boolean persistToken(String token, long exp) throws IOException {
+		String digest = digest(token);
+		revokeDigest(digest, exp);
+		return append(DIGEST_PREFIX + digest, exp);
+	}
+	
+	/**
+	 * @param digest The hexadecimal SHA-256 digest of the token to revoke.
+	 * @param exp The expiry of the token, in seconds since the epoch.
+	 */
+	public void revokeDigest(String digest, long exp) {
+		add(digests, DIGEST_SEED, StringUtils.lowerCase(digest), exp);
+	}
+	
+	/**
+	 * Checks whether a token is revoked, by its <code>jti</code> when it has one and by its digest
+	 * otherwise.
+	 * 
+	 * @param jti The <code>jti</code> of the token, possibly null.
+	 * @param token The token.
+	 * @return true if the token is revoked.
+	 */
+	public boolean isRevoked(String jti, String token) {
+		BloomFilter current = bloom;
+		if (jti != null) {
+			return current.mightContain(JTI_SEED, jti) && jtis.containsKey(jti);
+		}
+		if (token == null || digests.isEmpty()) {
+			return false;
+		}
+		String digest = digest(token);
+		return current.mightContain(DIGEST_SEED, digest) && digests.containsKey(digest);
+	}
+	
+	/**
+	 * @return The number of revoked tokens.
+	 */
+	public int size() {
+		return jtis.size() + digests.size();
+	}
+	
+	/**
+	 * Drops the entries of the tokens that have expired, which are rejected anyway, and rebuilds
+	 * the Bloom filter without them.
+	 * 
+	 * @return The number of entries dropped.
+	 */
+	public synchronized int purgeExpired() {
+		long now = clock.getAsLong();
+		int before = size();
+		jtis.values().removeIf(exp -> exp <= now);
+		digests.values().removeIf(exp -> exp <= now);
+		int purged = before - size();
+		if (purged > 0) {
+			rebuild();
+		}
+		return purged;
+	}
+	
+	/**
+	 * Adds the revocations listed in a file.
+	 * 
+	 * @param path The revocation file.
+	 * @return The number of revocations read.
+	 * @throws IOException if the file can't be read.
+	 */
+	public int load(Path path) throws IOException {
+		int count = 0;
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = StringUtils.split(line);
+				if (parts.length != 2 || !NumberUtils.isDigits(parts[1])) {
+					log.warn("Ignoring the invalid revocation '{}' in {}", line, path);
+					continue;
+				}
+				long exp = Long.parseLong(parts[1]);
+				if (parts[0].startsWith(DIGEST_PREFIX)) {
+					revokeDigest(parts[0].substring(DIGEST_PREFIX.length()), exp);
+				} else {
+					revokeJti(parts[0], exp);
+				}
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private synchronized void reloadFileIfChanged() {
+		if (file == null) {
+			return;
+		}
+		try {
+			if (!Files.exists(file)) {
+				return;
+			}
+			long lastModified = Files.getLastModifiedTime(file).toMillis();
+			if (lastModified != fileLastModified) {
+				int count = load(file);
+				fileLastModified = lastModified;
+				log.info("Loaded {} revocation(s) from {}", count, file);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			log.warn("Failed to load the revocations from " + file, e);
+		}
+	}
+	
+	private synchronized boolean append(String key, long exp) throws IOException {
+		if (file == null || exp <= clock.getAsLong()) {
+			return false;
+		}
+		String line = key + " " + exp + System.lineSeparator();
+		if (!endsWithNewLine(file)) {
+			line = System.lineSeparator() + line;
+		}
+		Files.write(file, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		return true;
+	}
+	
+	private static boolean endsWithNewLine(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return true;
+		}
+		try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+			if (channel.size() == 0) {
+				return true;
+			}
+			ByteBuffer last = ByteBuffer.allocate(1);
+			channel.position(channel.size() - 1).read(last);
+			return last.get(0) == '\n';
+		}
+	}
+	
+	private synchronized void add(ConcurrentMap<String, Long> entries, long seed, String key, long exp) {
+		if (StringUtils.isBlank(key) || exp <= clock.getAsLong()) {
+			return;
+		}
+		entries.merge(key, exp, Math::max);
+		if (size() > bloom.capacity) {
+			rebuild();
+		} else {
+			bloom.put(seed, key);
+		}
+	}
+	
+	private void rebuild() {
+		BloomFilter fresh = new BloomFilter(Math.max(expectedTokens, size() * 2));
+		jtis.keySet().forEach(jti -> fresh.put(JTI_SEED, jti));
+		digests.keySet().forEach(digest -> fresh.put(DIGEST_SEED, digest));
+		bloom = fresh;
+	}
+	
+	static String digest(String token) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * A Bloom filter sized for a 1% false positive rate at capacity, with the bit indexes derived
+	 * from a single 64 bits hash by double hashing.
+	 */
+	static final class BloomFilter {
+		
+		final int capacity;
+		
+		private final int numBits;
+		
+		private final int numHashes;
+		
+		private final AtomicLongArray bits;
+		
+		BloomFilter(int capacity) {
+			this.capacity = capacity;
+			long m = (long) Math.ceil(-capacity * Math.log(0.01) / (Math.log(2) * Math.log(2)));
+			numBits = (int) Math.min(Math.max(m, 64), Integer.MAX_VALUE - 63);
+			numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * Math.log(2)));
+			bits = new AtomicLongArray((numBits + 63) / 64);
+		}
+		
+		void put(long seed, CharSequence key) {
+			long h1 = hash(seed, key);
+			long h2 = mix(h1 ^ seed) | 1;
+			for (int i = 0; i < numHashes; i++) {
+				int index = (int) Math.floorMod(h1 + i * h2, (long) numBits);
+				long mask = 1L << index;
+				int word = index >>> 6;
+				long current;
+				do {
+					current = bits.get(word);
+				} while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+			}
+		}
+		
+		boolean mightContain(long seed, CharSequence key) {
+			long h1 = hash(seed, key);
+			long h2 = mix(h1 ^ seed) | 1;
+			for (int i = 0; i < numHashes; i++) {
+				int index = (int) Math.floorMod(h1 + i * h2, (long) numBits);
+				if ((bits.get(index >>> 6) & (1L << index)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private static long hash(long seed, CharSequence key) {
+			long h = seed ^ key.length();
+			for (int i = 0; i < key.length(); i++) {
+				h ^= key.charAt(i);
+				h *= 0x100000001B3L;
+			}
+			return mix(h);
+		}
+		
+		private static long mix(long z) {
+			z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+			z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+			return z ^ (z >>> 33);
+		}
+	}
+}
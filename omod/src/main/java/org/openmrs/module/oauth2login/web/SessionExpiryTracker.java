@@ -0,0 +1,273 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.Properties;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evicts the HTTP sessions opened through the identity provider once their access token has
+ * expired and they are idle, rather than keeping them for the container's session timeout.
+ * <p>
+ * The sessions are queued by token expiry and a single thread waits on the earliest one. When it
+ * is due, a session whose tokens were renewed meanwhile is queued again by its new expiry, a
+ * session still in use is queued again until it has been idle long enough, and any other session
+ * is invalidated. A session leaves the queue when it ends, through a binding listener stored as a
+ * session attribute.
+ * <p>
+ * Settings in oauth2.properties:
+ * <ul>
+ * <li><code>session.expiry.enabled</code>: whether the sessions are evicted, false by default.</li>
+ * <li><code>session.expiry.idleTime</code>: how long a session with an expired token must have
+ * been idle to be evicted, 300 seconds by default.</li>
+ * </ul>
+ * Both settings are read when they are needed and follow the changes to oauth2.properties: the
+ * sessions tracked while enabled are left to the container once disabled.
+ */
+public class SessionExpiryTracker implements Closeable {
+	
+	private static final Logger log = LoggerFactory.getLogger(SessionExpiryTracker.class);
+	
+	public static final String SESSION_ATTRIBUTE = SessionExpiryTracker.class.getName();
+	
+	public static final String PROP_ENABLED = "session.expiry.enabled";
+	
+	public static final String PROP_IDLE_TIME = "session.expiry.idleTime";
+	
+	public static final String METRIC_TRACKED = "sessionExpiry.tracked";
+	
+	public static final String METRIC_EVICTED = "sessionExpiry.evicted";
+	
+	private final DelayQueue<Deadline> deadlines = new DelayQueue<>();
+	
+	private final AtomicInteger tracked = new AtomicInteger();
+	
+	private final LongSupplier clock;
+	
+	private final Properties props;
+	
+	private Thread sweeper;
+	
+	public SessionExpiryTracker(Properties props) {
+		this(props, System::currentTimeMillis);
+	}
+	
+	/**
+	 * @param clock The current time in milliseconds since the epoch.
+	 */
+	SessionExpiryTracker(Properties props, LongSupplier clock) {
+		this.clock = clock;
+		this.props = props;
+		OAuth2LoginMetrics.gauge(METRIC_TRACKED, tracked::get);
+	}
+	
+	public boolean isEnabled() {
+		return Boolean.parseBoolean(props.getProperty(PROP_ENABLED, "false").trim());
+	}
+	
+	private long getIdleTime() {
+		return TimeUnit.SECONDS.toMillis(Math.max(NumberUtils.toLong(props.getProperty(PROP_IDLE_TIME), 300), 0));
+	}
+	
+	/**
+	 * Starts evicting the sessions in the background. The thread only waits while no session is
+	 * tracked, so that the eviction can be enabled without a restart.
+	 */
+	public synchronized void start() {
+		if (sweeper != null) {
+			return;
+		}
+		sweeper = new Thread(() -> {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					process(deadlines.take());
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "oauth2login-session-expiry");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+	
+	@Override
+	public synchronized void close() {
+		if (sweeper != null) {
+			sweeper.interrupt();
+			sweeper = null;
+		}
+	}
+	
+	/**
+	 * Tracks a session until its access token expires, replacing any previous tracking of the same
+	 * session.
+	 * 
+	 * @param session The HTTP session.
+	 * @param expiresAt When the access token expires, in milliseconds since the epoch, possibly
+	 *            null in which case the session is left to the container.
+	 */
+	public void track(HttpSession session, Long expiresAt) {
+		if (!isEnabled() || expiresAt == null) {
+			return;
+		}
+		// unbound first, so that the previous tracking doesn't count the new one
+		Object previous = session.getAttribute(SESSION_ATTRIBUTE);
+		if (previous != null) {
+			session.removeAttribute(SESSION_ATTRIBUTE);
+			if (previous instanceof Tracking) {
+				((Tracking) previous).untrack();
+			}
+		}
+		
+		Tracking tracking = new Tracking(this, session);
+		tracked.incrementAndGet();
+		session.setAttribute(SESSION_ATTRIBUTE, tracking);
+		deadlines.add(new Deadline(tracking, expiresAt));
+	}
+	
+	/**
+	 * @return The number of tracked sessions.
+	 */
+	public int size() {
+		return tracked.get();
+	}
+	
+	/**
+	 * Processes the deadlines that are due.
+	 * 
+	 * @return The number of sessions evicted.
+	 */
+	int sweep() {
+		int evicted = 0;
+		Deadline deadline;
+		while ((deadline = deadlines.poll()) != null) {
+			if (process(deadline)) {
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+	
+	/**
+	 * @return true if the session was evicted.
+	 */
+	private boolean process(Deadline deadline) {
+		HttpSession session = deadline.tracking.session;
+		if (session == null) {
+			return false;
+		}
+		if (!isEnabled()) {
+			deadline.tracking.untrack();
+			return false;
+		}
+		long now = clock.getAsLong();
+		try {
+			SessionTokens tokens = (SessionTokens) session.getAttribute(SessionTokens.SESSION_ATTRIBUTE);
+			if (tokens != null && tokens.getExpiresAt() != null && tokens.getExpiresAt() > now) {
+				deadlines.add(new Deadline(deadline.tracking, tokens.getExpiresAt()));
+				return false;
+			}
+			long idleUntil = session.getLastAccessedTime() + getIdleTime();
+			if (idleUntil > now) {
+				deadlines.add(new Deadline(deadline.tracking, idleUntil));
+				return false;
+			}
+			session.invalidate();
+			OAuth2LoginMetrics.increment(METRIC_EVICTED);
+			log.debug("Evicted an idle session with an expired token");
+			return true;
+		}
+		catch (IllegalStateException e) {
+			log.debug("A tracked session was already invalidated");
+			deadline.tracking.untrack();
+			return false;
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to evict an idle session with an expired token", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * A tracked session, removed from the count and released when it is unbound, ie. when the
+	 * session ends. Its deadlines left in the queue are then ignored.
+	 */
+	static final class Tracking implements HttpSessionBindingListener, Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		// sessions restored from a previous run are not tracked
+		private final transient SessionExpiryTracker tracker;
+		
+		private transient volatile HttpSession session;
+		
+		Tracking(SessionExpiryTracker tracker, HttpSession session) {
+			this.tracker = tracker;
+			this.session = session;
+		}
+		
+		synchronized void untrack() {
+			if (session != null) {
+				session = null;
+				tracker.tracked.decrementAndGet();
+			}
+		}
+		
+		@Override
+		public void valueBound(HttpSessionBindingEvent event) {
+		}
+		
+		@Override
+		public void valueUnbound(HttpSessionBindingEvent event) {
+			untrack();
+		}
+	}
+	
+	/**
+	 * When a tracked session is to be looked at next.
+	 */
+	private final class Deadline implements Delayed {
+		
+		private final Tracking tracking;
+		
+		private final long at;
+		
+		private Deadline(Tracking tracking, long at) {
+			this.tracking = tracking;
+			this.at = at;
+		}
+		
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(at - clock.getAsLong(), TimeUnit.MILLISECONDS);
+		}
+		
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(at, ((Deadline) other).at);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The HTTP sessions opened through the identity provider, indexed by the session ID
+ * (<code>sid</code>) and the subject (<code>sub</code>) of their id_token, so that a back-channel
+ * logout only visits the sessions it affects.
+ * <p>
+ * A session is registered at login and leaves the indexes when it is invalidated or expires,
+ * through a binding listener stored as a session attribute.
+ * <p>
+ * The registry is held in memory and only knows the sessions of this node, it is not shared
+ * between the nodes of a cluster.
+ */
+public class SessionRegistry {
+	
+	private static final Logger log = LoggerFactory.getLogger(SessionRegistry.class);
+	
+	public static final String SESSION_ATTRIBUTE = SessionRegistry.class.getName();
+	
+	public static final String METRIC_SESSIONS = "sessionRegistry.sessions";
+	
+	private final ConcurrentMap<String, Set<HttpSession>> bySid = new ConcurrentHashMap<>();
+	
+	private final ConcurrentMap<String, Set<HttpSession>> bySub = new ConcurrentHashMap<>();
+	
+	private final Set<HttpSession> sessions = ConcurrentHashMap.newKeySet();
+	
+	public SessionRegistry() {
+		OAuth2LoginMetrics.gauge(METRIC_SESSIONS, sessions::size);
+	}
+	
+	/**
+	 * Registers a session, replacing any previous registration of the same session.
+	 * 
+	 * @param session The HTTP session.
+	 * @param sid The <code>sid</code> claim of the id_token, possibly null.
+	 * @param sub The <code>sub</code> claim of the id_token, possibly null.
+	 */
+	public void register(HttpSession session, String sid, String sub) {
+		if (StringUtils.isBlank(sid) && StringUtils.isBlank(sub)) {
+			return;
+		}
+		// unbound first, so that the previous registration doesn't remove the new one
+		Object previous = session.getAttribute(SESSION_ATTRIBUTE);
+		if (previous != null) {
+			session.removeAttribute(SESSION_ATTRIBUTE);
+			if (previous instanceof Registration) {
+				((Registration) previous).unregister(session);
+			}
+		}
+		
+		Registration registration = new Registration(this, sid, sub);
+		add(bySid, sid, session);
+		add(bySub, sub, session);
+		sessions.add(session);
+		session.setAttribute(SESSION_ATTRIBUTE, registration);
+	}
+	
+	/**
+	 * Invalidates the sessions of a <code>sid</code>, or all those of a <code>sub</code> when there
+	 * is no <code>sid</code>. When both are given the sessions must match both. The sessions leave
+	 * the indexes as they are invalidated.
+	 * 
+	 * @param sid The session ID at the identity provider, possibly null.
+	 * @param sub The subject, possibly null.
+	 * @return The number of sessions invalidated.
+	 */
+	public int invalidate(String sid, String sub) {
+		List<HttpSession> affected;
+		if (StringUtils.isNotBlank(sid)) {
+			affected = new ArrayList<>(bySid.getOrDefault(sid, Collections.emptySet()));
+			if (StringUtils.isNotBlank(sub)) {
+				affected.retainAll(bySub.getOrDefault(sub, Collections.emptySet()));
+			}
+		} else if (StringUtils.isNotBlank(sub)) {
+			affected = new ArrayList<>(bySub.getOrDefault(sub, Collections.emptySet()));
+		} else {
+			return 0;
+		}
+		
+		int invalidated = 0;
+		for (HttpSession session : affected) {
+			try {
+				session.invalidate();
+				invalidated++;
+			}
+			catch (IllegalStateException e) {
+				log.debug("A session was already invalidated");
+			}
+		}
+		return invalidated;
+	}
+	
+	/**
+	 * @return The number of registered sessions.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+	
+	void unregister(HttpSession session, String sid, String sub) {
+		remove(bySid, sid, session);
+		remove(bySub, sub, session);
+		sessions.remove(session);
+	}
+	
+	private static void add(ConcurrentMap<String, Set<HttpSession>> index, String key, HttpSession session) {
+		if (StringUtils.isNotBlank(key)) {
+			index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(session);
+		}
+	}
+	
+	private static void remove(ConcurrentMap<String, Set<HttpSession>> index, String key, HttpSession session) {
+		if (StringUtils.isNotBlank(key)) {
+			index.computeIfPresent(key, (k, set) -> {
+				set.remove(session);
+				return set.isEmpty() ? null : set;
+			});
+		}
+	}
+	
+	/**
+	 * Removes its session from the indexes when it is unbound, ie. when the session ends.
+	 */
+	static final class Registration implements HttpSessionBindingListener, Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		// sessions restored from a previous run are not registered
+		private final transient SessionRegistry registry;
+		
+		private final String sid;
+		
+		private final String sub;
+		
+		Registration(SessionRegistry registry, String sid, String sub) {
+			this.registry = registry;
+			this.sid = sid;
+			this.sub = sub;
+		}
+		
+		void unregister(HttpSession session) {
+			if (registry != null) {
+				registry.unregister(session, sid, sub);
+			}
+		}
+		
+		@Override
+		public void valueBound(HttpSessionBindingEvent event) {
+		}
+		
+		@Override
+		public void valueUnbound(HttpSessionBindingEvent event) {
+			unregister(event.getSession());
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.openmrs.module.oauth2login.SingleFlight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestOperations;
+
+/**
+ * Renews the tokens of a session with the refresh token, in a single back-channel call to the
+ * identity provider, shortly before the access token expires. This keeps a session bound to a live
+ * session at the identity provider without sending the user through the authorization flow again.
+ * <p>
+ * Settings in oauth2.properties:
+ * <ul>
+ * <li><code>session.renewal.enabled</code>: false by default, the refresh tokens are only kept in
+ * the sessions when enabled.</li>
+ * <li><code>session.renewal.window</code>: how long before the access token expiry the tokens are
+ * renewed, 60 seconds by default.</li>
+ * </ul>
+ */
+public class SessionRenewer {
+	
+	private static final Logger log = LoggerFactory.getLogger(SessionRenewer.class);
+	
+	public static final String PROP_ENABLED = "session.renewal.enabled";
+	
+	public static final String PROP_WINDOW = "session.renewal.window";
+	
+	public static final String METRIC_RENEWALS = "session.renewals";
+	
+	public static final String METRIC_REJECTED = "session.renewals.rejected";
+	
+	public static final String METRIC_FAILURES = "session.renewals.failures";
+	
+	/**
+	 * Thrown when the identity provider refuses to renew the tokens with an
+	 * <code>invalid_grant</code> error, the session has ended there.
+	 */
+	public static class RenewalRejectedException extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		public RenewalRejectedException(Throwable cause) {
+			super("The identity provider refused to renew the session tokens", cause);
+		}
+	}
+	
+	private final Properties props;
+	
+	private final RestOperations restTemplate;
+	
+	private final LongSupplier clock;
+	
+	private final SingleFlight<String, SessionTokens> inFlight = new SingleFlight<>();
+	
+	public SessionRenewer(Properties props, RestOperations restTemplate) {
+		this(props, restTemplate, System::currentTimeMillis);
+	}
+	
+	SessionRenewer(Properties props, RestOperations restTemplate, LongSupplier clock) {
+		this.props = props;
+		this.restTemplate = restTemplate;
+		this.clock = clock;
+	}
+	
+	/**
+	 * @param props The OAuth 2 properties.
+	 * @return true if the session renewal is enabled.
+	 */
+	public static boolean isEnabled(Properties props) {
+		return Boolean.parseBoolean(props.getProperty(PROP_ENABLED, "false"));
+	}
+	
+	/**
+	 * @param tokens The session tokens.
+	 * @return true if the tokens should be renewed now.
+	 */
+	public boolean isDue(SessionTokens tokens) {
+		if (tokens == null || tokens.getRefreshToken() == null || tokens.getExpiresAt() == null || !isEnabled(props)) {
+			return false;
+		}
+		long windowMillis = TimeUnit.SECONDS.toMillis(NumberUtils.toLong(props.getProperty(PROP_WINDOW), 60));
+		return clock.getAsLong() >= tokens.getExpiresAt() - windowMillis;
+	}
+	
+	/**
+	 * Renews the tokens, concurrent renewals for the same session are coalesced into one call.
+	 * 
+	 * @param sessionId The session ID.
+	 * @param tokens The current session tokens.
+	 * @return The renewed tokens.
+	 * @throws RenewalRejectedException if the identity provider refused the refresh token.
+	 * @throws RuntimeException if the identity provider could not be reached or failed otherwise,
+	 *             eg. rate limited the call or refused the client credentials.
+	 */
+	public SessionTokens renew(String sessionId, SessionTokens tokens) {
+		return inFlight.execute(sessionId, () -> refresh(tokens));
+	}
+	
+	private SessionTokens refresh(SessionTokens tokens) {
+		MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+		form.add("grant_type", "refresh_token");
+		form.add("refresh_token", tokens.getRefreshToken());
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+		headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+		String credentials = props.getProperty("clientId") + ":" + props.getProperty("clientSecret");
+		headers.set(HttpHeaders.AUTHORIZATION,
+		    "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+		
+		String response;
+		try {
+			response = restTemplate.exchange(props.getProperty("accessTokenUri"), HttpMethod.POST,
+			    new HttpEntity<>(form, headers), String.class).getBody();
+		}
+		catch (HttpClientErrorException e) {
+			if (isInvalidGrant(e)) {
+				OAuth2LoginMetrics.increment(METRIC_REJECTED);
+				throw new RenewalRejectedException(e);
+			}
+			OAuth2LoginMetrics.increment(METRIC_FAILURES);
+			throw e;
+		}
+		catch (RuntimeException e) {
+			OAuth2LoginMetrics.increment(METRIC_FAILURES);
+			throw e;
+		}
+		
+		OAuth2AccessToken accessToken = parse(response);
+		SessionTokens renewed = SessionTokens.of(accessToken, true);
+		OAuth2LoginMetrics.increment(METRIC_RENEWALS);
+		log.debug("Renewed the session tokens, the access token now expires at {}", renewed.getExpiresAt());
+		//the identity provider may not rotate the refresh token or reissue an id_token
+		return new SessionTokens(StringUtils.defaultIfEmpty(renewed.getIdToken(), tokens.getIdToken()),
+		        StringUtils.defaultIfEmpty(renewed.getRefreshToken(), tokens.getRefreshToken()), renewed.getExpiresAt());
+	}
+	
+	/**
+	 * @param e The client error of the token endpoint.
+	 * @return true if the refresh token itself was refused, as opposed to a rate limit or a client
+	 *         misconfiguration that does not mean the session has ended.
+	 */
+	private static boolean isInvalidGrant(HttpClientErrorException e) {
+		if (e.getStatusCode() != HttpStatus.BAD_REQUEST && e.getStatusCode() != HttpStatus.UNAUTHORIZED) {
+			return false;
+		}
+		try {
+			return "invalid_grant".equals(JsonUtil.parseJson(e.getResponseBodyAsString()).get("error"));
+		}
+		catch (JoseException | RuntimeException ex) {
+			log.debug("The error response of the token endpoint could not be parsed", ex);
+			return false;
+		}
+	}
+	
+	private static OAuth2AccessToken parse(String response) {
+		try {
+			Map<String, String> values = new HashMap<>();
+			JsonUtil.parseJson(response).forEach((k, v) -> values.put(k, v == null ? null : v.toString()));
+			return DefaultOAuth2AccessToken.valueOf(values);
+		}
+		catch (JoseException e) {
+			OAuth2LoginMetrics.increment(METRIC_FAILURES);
+			throw new IllegalStateException("The token response could not be parsed", e);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web;
+
+import java.io.Serializable;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+/**
+ * The tokens obtained from the identity provider for an HTTP session. They are kept as a session
+ * attribute rather than persisted with the user, so they live and die with the session.
+ */
+public class SessionTokens implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public static final String SESSION_ATTRIBUTE = SessionTokens.class.getName();
+	
+	private final String idToken;
+	
+	private final String refreshToken;
+	
+	private final Long expiresAt;
+	
+	public SessionTokens(String idToken) {
+		this(idToken, null, null);
+	}
+	
+	/**
+	 * @param idToken The id_token.
+	 * @param refreshToken The refresh token, only kept when the session renewal is enabled.
+	 * @param expiresAt When the access token expires, in milliseconds since the epoch.
+	 */
+	public SessionTokens(String idToken, String refreshToken, Long expiresAt) {
+		this.idToken = idToken;
+		this.refreshToken = refreshToken;
+		this.expiresAt = expiresAt;
+	}
+	
+	/**
+	 * @param accessToken The access token obtained from the identity provider.
+	 * @param keepRefreshToken Whether the refresh token should be kept.
+	 * @return The session tokens.
+	 */
+	public static SessionTokens of(OAuth2AccessToken accessToken, boolean keepRefreshToken) {
+		Object idToken = accessToken.getAdditionalInformation().get("id_token");
+		String refreshToken = keepRefreshToken && accessToken.getRefreshToken() != null ? accessToken.getRefreshToken()
+		        .getValue() : null;
+		Long expiresAt = accessToken.getExpiration() == null ? null : accessToken.getExpiration().getTime();
+		return new SessionTokens(idToken == null ? null : idToken.toString(), refreshToken, expiresAt);
+	}
+	
+	public String getIdToken() {
+		return idToken;
+	}
+	
+	public String getRefreshToken() {
+		return refreshToken;
+	}
+	
+	public Long getExpiresAt() {
+		return expiresAt;
+	}
+	
+	/**
+	 * @param request The HTTP request.
+	 * @return The tokens of the request's session, or null if there is no session or no tokens.
+	 */
+	public static SessionTokens get(HttpServletRequest request) {
+		HttpSession session = request.getSession(false);
+		return session == null ? null : (SessionTokens) session.getAttribute(SESSION_ATTRIBUTE);
+	}
+	
+	/**
+	 * Stores the tokens in the request's session, creating the session if needed.
+	 * 
+	 * @param request The HTTP request.
+	 * @param tokens The tokens.
+	 */
+	public static void set(HttpServletRequest request, SessionTokens tokens) {
+		request.getSession().setAttribute(SESSION_ATTRIBUTE, tokens);
+	}
+}
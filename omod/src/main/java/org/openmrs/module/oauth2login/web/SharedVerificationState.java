@@ -0,0 +1,333 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.openmrs.module.oauth2login.db.SharedStateDao;
+import org.openmrs.module.oauth2login.db.StoredJsonWebKeys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.jsonwebtoken.Claims;
+
+/**
+ * The token verification state shared by the nodes of a cluster through the database, see
+ * {@link SharedStateDao}.
+ * <p>
+ * The identity provider's JSON web keys are fetched by a single node at a time, the one holding
+ * the lease, and the other nodes read them from the database. The digests of the verified tokens
+ * are kept in memory and written to the database in the background, a node that starts loads them
+ * so that it does not verify again the tokens already verified by the cluster. The digests are
+ * taken together with an identifier of the keys the tokens were verified with, and all of them are
+ * dropped when the keys change, so that a token signed with former keys is verified again.
+ * <p>
+ * Settings in oauth2.properties:
+ * <ul>
+ * <li><code>sharedState.enabled</code>: whether the state is shared, false by default.</li>
+ * <li><code>sharedState.leaseDuration</code>: how long a node may take to fetch the keys before
+ * another node can, 30 seconds by default.</li>
+ * <li><code>sharedState.maxTokens</code>: the maximum number of verified tokens kept in memory,
+ * 10000 by default.</li>
+ * <li><code>sharedState.purgeInterval</code>: how often the expired tokens are deleted, 300
+ * seconds by default.</li>
+ * </ul>
+ */
+public class SharedVerificationState implements Closeable {
+	
+	private static final Logger log = LoggerFactory.getLogger(SharedVerificationState.class);
+	
+	public static final String PROP_ENABLED = "sharedState.enabled";
+	
+	public static final String PROP_LEASE_DURATION = "sharedState.leaseDuration";
+	
+	public static final String PROP_MAX_TOKENS = "sharedState.maxTokens";
+	
+	public static final String PROP_PURGE_INTERVAL = "sharedState.purgeInterval";
+	
+	public static final String METRIC_HITS = "sharedState.hits";
+	
+	public static final String METRIC_KEYS_FETCHES = "sharedState.keysFetches";
+	
+	public static final String METRIC_KEYS_READS = "sharedState.keysReads";
+	
+	private final SharedStateDao dao;
+	
+	private final LongSupplier clock;
+	
+	private final boolean enabled;
+	
+	private final long leaseDuration;
+	
+	private final int maxTokens;
+	
+	private final long purgeInterval;
+	
+	private final String nodeId = UUID.randomUUID().toString();
+	
+	private final ConcurrentMap<String, Long> verifiedTokens = new ConcurrentHashMap<>();
+	
+	private long keysFetchedAt;
+	
+	private ScheduledExecutorService executor;
+	
+	public SharedVerificationState(SharedStateDao dao, Properties props) {
+		this(dao, props, System::currentTimeMillis);
+	}
+	
+	/**
+	 * @param clock The current time in milliseconds since the epoch.
+	 */
+	SharedVerificationState(SharedStateDao dao, Properties props, LongSupplier clock) {
+		this.dao = dao;
+		this.clock = clock;
+		enabled = isEnabled(props);
+		leaseDuration = TimeUnit.SECONDS.toMillis(Math.max(NumberUtils.toLong(props.getProperty(PROP_LEASE_DURATION), 30), 1));
+		maxTokens = Math.max(NumberUtils.toInt(props.getProperty(PROP_MAX_TOKENS), 10000), 1);
+		purgeInterval = Math.max(NumberUtils.toLong(props.getProperty(PROP_PURGE_INTERVAL), 300), 1);
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * @param props The OAuth 2 properties.
+	 * @return true if the state is shared by the nodes of a cluster.
+	 */
+	public static boolean isEnabled(Properties props) {
+		return Boolean.parseBoolean(StringUtils.trim(props.getProperty(PROP_ENABLED)));
+	}
+	
+	/**
+	 * Loads the tokens verified by the cluster, starts deleting the expired ones in the background
+	 * and makes the state available to {@link JwtUtils}. Nothing is done unless the state is shared.
+	 */
+	public synchronized void start() {
+		if (!enabled || executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "oauth2login-shared-state");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			verifiedTokens.putAll(dao.getVerifiedTokens(clock.getAsLong(), maxTokens));
+			log.info("Loaded {} verified token(s) shared by the cluster", verifiedTokens.size());
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to load the verified tokens shared by the cluster", e);
+		}
+		executor.scheduleWithFixedDelay(this::purgeExpired, purgeInterval, purgeInterval, TimeUnit.SECONDS);
+		JwtUtils.setSharedState(this);
+	}
+	
+	@Override
+	public synchronized void close() {
+		if (executor != null) {
+			JwtUtils.setSharedState(null);
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+	
+	/**
+	 * Gets the identity provider's JSON web keys. The keys stored by the cluster are used if they
+	 * were fetched from the same URL after the keys last returned, otherwise they are fetched by this
+	 * node if it gets the lease. The stored keys are used while another node holds the lease, they
+	 * are fetched anyway if there are none.
+	 * 
+	 * @param url The URL of the keys.
+	 * @return The JSON web key set.
+	 * @throws Exception if the keys cannot be fetched.
+	 */
+	public synchronized String getJsonWebKeys(String url) throws Exception {
+		StoredJsonWebKeys stored = null;
+		try {
+			stored = dao.getJsonWebKeys();
+			if (!url.equals(stored.getKeysUrl()) || stored.getJwks() == null) {
+				stored = null;
+			} else if (stored.getFetchedAt() > keysFetchedAt) {
+				keysFetchedAt = stored.getFetchedAt();
+				OAuth2LoginMetrics.increment(METRIC_KEYS_READS);
+				return stored.getJwks();
+			}
+			
+			long now = clock.getAsLong();
+			if (!dao.acquireJsonWebKeysLease(nodeId, now, now + leaseDuration)) {
+				if (stored != null) {
+					log.debug("Another node is refreshing the JSON web keys, using the stored keys");
+					return stored.getJwks();
+				}
+				return fetchJsonWebKeys(url);
+			}
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to read the JSON web keys shared by the cluster", e);
+			return fetchJsonWebKeys(url);
+		}
+		
+		String jwks;
+		try {
+			jwks = fetchJsonWebKeys(url);
+		}
+		catch (Exception e) {
+			releaseLease();
+			throw e;
+		}
+		try {
+			dao.saveJsonWebKeys(nodeId, new StoredJsonWebKeys(url, jwks, keysFetchedAt));
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to share the JSON web keys with the cluster", e);
+			releaseLease();
+		}
+		return jwks;
+	}
+	
+	/**
+	 * @param keys Identifies the keys in use.
+	 * @param token The token.
+	 * @return true if the token was already verified with the keys, by this node or another node,
+	 *         and has not expired.
+	 */
+	public boolean isVerified(String keys, String token) {
+		if (verifiedTokens.isEmpty()) {
+			return false;
+		}
+		String digest = digest(keys, token);
+		Long expiresAt = verifiedTokens.get(digest);
+		if (expiresAt == null) {
+			return false;
+		}
+		if (expiresAt <= clock.getAsLong()) {
+			verifiedTokens.remove(digest, expiresAt);
+			return false;
+		}
+		OAuth2LoginMetrics.increment(METRIC_HITS);
+		return true;
+	}
+	
+	/**
+	 * Records a verified token, tokens without an expiry are not recorded.
+	 * 
+	 * @param keys Identifies the keys the token was verified with.
+	 * @param token The token.
+	 * @param claims The token claims.
+	 */
+	public void verified(String keys, String token, Claims claims) {
+		Date expiration = claims.getExpiration();
+		if (expiration == null || expiration.getTime() <= clock.getAsLong()) {
+			return;
+		}
+		if (verifiedTokens.size() >= maxTokens) {
+			verifiedTokens.clear();
+		}
+		String digest = digest(keys, token);
+		long expiresAt = expiration.getTime();
+		verifiedTokens.put(digest, expiresAt);
+		
+		ScheduledExecutorService executor = this.executor;
+		if (executor != null) {
+			try {
+				executor.execute(() -> {
+					try {
+						dao.saveVerifiedToken(digest, expiresAt);
+					}
+					catch (RuntimeException e) {
+						log.debug("Failed to share a verified token with the cluster", e);
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				log.debug("Not sharing a verified token, the shared state is closed");
+			}
+		}
+	}
+	
+	/**
+	 * Forgets all the verified tokens, from memory and from the database, when the keys they were
+	 * verified with are no longer in use.
+	 */
+	public void keysChanged() {
+		verifiedTokens.clear();
+		ScheduledExecutorService executor = this.executor;
+		if (executor != null) {
+			try {
+				executor.execute(() -> {
+					try {
+						int count = dao.deleteVerifiedTokens();
+						log.info("The keys changed, deleted {} verified token(s)", count);
+					}
+					catch (RuntimeException e) {
+						log.warn("Failed to delete the verified tokens after the keys changed", e);
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				log.debug("Not deleting the verified tokens, the shared state is closed");
+			}
+		}
+	}
+	
+	/**
+	 * Drops the expired tokens, from memory and from the database.
+	 */
+	void purgeExpired() {
+		long now = clock.getAsLong();
+		verifiedTokens.values().removeIf(expiresAt -> expiresAt <= now);
+		try {
+			int count = dao.deleteExpiredVerifiedTokens(now);
+			log.debug("Deleted {} expired verified token(s)", count);
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to delete the expired verified tokens", e);
+		}
+	}
+	
+	int size() {
+		return verifiedTokens.size();
+	}
+	
+	private static String digest(String keys, String token) {
+		return RevokedTokens.digest(keys + " " + token);
+	}
+	
+	private String fetchJsonWebKeys(String url) throws Exception {
+		String jwks = HttpUtils.getJsonWebKeys(url);
+		keysFetchedAt = clock.getAsLong();
+		OAuth2LoginMetrics.increment(METRIC_KEYS_FETCHES);
+		return jwks;
+	}
+	
+	private void releaseLease() {
+		try {
+			dao.releaseJsonWebKeysLease(nodeId);
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to release the lease on the JSON web keys", e);
+		}
+	}
+}
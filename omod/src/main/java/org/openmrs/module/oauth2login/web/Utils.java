@@ -6,14 +6,13 @@ import java.net.URLEncoder;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.lang3.StringUtils;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.oauth2login.OAuth2Configuration;
 import org.openmrs.module.oauth2login.OAuth2LoginConstants;
-import org.openmrs.module.oauth2login.PropertyUtils;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.util.UriComponents;
@@ -36,34 +35,19 @@ public class Utils {
 	}
 	
 	public static String getPostLogoutRedirectUrl(HttpServletRequest request) throws IOException {
-		Properties properties = PropertyUtils.getProperties(PropertyUtils.getOAuth2PropertiesPath());
-		String redirectPath = properties.getProperty("logoutUri");
-		boolean encodeDisabled = Boolean.valueOf(properties.getProperty("logoutUri.encode.disabled"));
+		LogoutUrlTemplate template = LogoutUrlTemplate.get(OAuth2Configuration.getInstance().get());
 		//the redirect path can contain a [token] that should be replaced by the auth token
-		if (StringUtils.isNoneBlank(redirectPath) && redirectPath.contains("[token]")) {
-			String token = null;
-			if (Context.getAuthenticatedUser() != null) {
+		String token = null;
+		if (template.hasTokenSlot()) {
+			SessionTokens tokens = SessionTokens.get(request);
+			if (tokens != null) {
+				token = tokens.getIdToken();
+			} else if (Context.getAuthenticatedUser() != null) {
+				//id_token persisted by earlier versions of the module
 				token = Context.getAuthenticatedUser().getUserProperty(OAuth2LoginConstants.USER_PROP_ID_TOKEN);
 			}
-			
-			if (StringUtils.isNotBlank(token)) {
-				String encoded = URLEncoder.encode(token, "UTF-8");
-				redirectPath = StringUtils.replace(redirectPath, "[token]", encoded);
-			} else {
-				//Oauth2 specification requires the id_token_hint or client_id, fallback to client_id
-				UriComponentsBuilder urlBuilder = UriComponentsBuilder.fromHttpUrl(redirectPath);
-				MultiValueMap<String, String> params = urlBuilder.build().getQueryParams();
-				if (!params.containsKey("client_id")) {
-					redirectPath = StringUtils.replace(redirectPath, "id_token_hint=[token]",
-					    "client_id=" + properties.getProperty("clientId"));
-				}
-			}
-		}
-		
-		if (!encodeDisabled) {
-			redirectPath = encodeUrl(redirectPath);
 		}
-		return StringUtils.defaultIfBlank(redirectPath, request.getContextPath() + "/oauth2login");
+		return StringUtils.defaultIfBlank(template.build(token), request.getContextPath() + "/oauth2login");
 	}
 	
 	protected static String encodeUrl(String logoutUrl) {
@@ -14,6 +14,7 @@ import java.io.IOException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.openmrs.api.context.Context;
 import org.openmrs.module.oauth2login.web.Utils;
@@ -28,6 +29,11 @@ public class CustomLogoutSuccessHandler extends SimpleUrlLogoutSuccessHandler im
 	        throws IOException, ServletException {
 		final String redirectUrl = Utils.getPostLogoutRedirectUrl(request);
 		Context.logout();
+		//the session is invalidated here rather than by the logout filter, after its id_token was read
+		HttpSession session = request.getSession(false);
+		if (session != null) {
+			session.invalidate();
+		}
 		super.getRedirectStrategy().sendRedirect(request, response, redirectUrl);
 	}
 	
@@ -0,0 +1,23 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web.controller;
+
+/**
+ * Thrown when a login cannot proceed because the calls to the identity provider are rejected by
+ * its circuit breaker.
+ */
+public class IdentityProviderUnavailableException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public IdentityProviderUnavailableException(Throwable cause) {
+		super("The identity provider is currently unavailable", cause);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web.controller;
+
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.openmrs.module.oauth2login.web.JwtUtils;
+import org.openmrs.module.oauth2login.web.SessionRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import io.jsonwebtoken.Claims;
+
+/**
+ * The OpenID Connect back-channel logout endpoint: the identity provider posts a logout token when
+ * a user logs out there, and the OpenMRS sessions of that user are invalidated.
+ * <p>
+ * The logout tokens must be issued by the <code>issuer</code> set in oauth2.properties, and can
+ * only be used once within <code>backchannelLogout.maxAge</code> seconds of being issued, 300 by
+ * default. Both the sessions and the used tokens are only known to the node that receives the
+ * logout, see {@link SessionRegistry}.
+ * 
+ * @see <a href="https://openid.net/specs/openid-connect-backchannel-1_0.html">OpenID Connect
+ *      Back-Channel Logout</a>
+ */
+@Controller
+public class OAuth2BackchannelLogoutController {
+	
+	private static final Logger log = LoggerFactory.getLogger(OAuth2BackchannelLogoutController.class);
+	
+	public static final String BACKCHANNEL_LOGOUT_EVENT = "http://schemas.openid.net/event/backchannel-logout";
+	
+	public static final String METRIC_REQUESTS = "backchannelLogout.requests";
+	
+	public static final String METRIC_REJECTED = "backchannelLogout.rejected";
+	
+	public static final String METRIC_SESSIONS = "backchannelLogout.sessions";
+	
+	public static final String PROP_ISSUER = "issuer";
+	
+	public static final String PROP_MAX_AGE = "backchannelLogout.maxAge";
+	
+	private Properties oauth2Props;
+	
+	/**
+	 * The IDs of the logout tokens already used, until they are too old to be accepted anyway.
+	 */
+	private final ConcurrentMap<String, Long> usedTokens = new ConcurrentHashMap<>();
+	
+	private SessionRegistry sessionRegistry;
+	
+	@Autowired
+	public void setOAuth2Properties(@Qualifier("oauth2.properties") Properties oauth2Props) {
+		this.oauth2Props = oauth2Props;
+	}
+	
+	@Autowired
+	public void setSessionRegistry(@Qualifier("oauth2.sessionRegistry") SessionRegistry sessionRegistry) {
+		this.sessionRegistry = sessionRegistry;
+	}
+	
+	@RequestMapping(value = "/oauth2logout/backchannel", method = POST)
+	public void logout(@RequestParam(value = "logout_token", required = false) String logoutToken,
+	        HttpServletResponse response) {
+		
+		OAuth2LoginMetrics.increment(METRIC_REQUESTS);
+		response.setHeader("Cache-Control", "no-store");
+		
+		Claims claims;
+		try {
+			claims = verifyLogoutToken(logoutToken);
+		}
+		catch (Exception e) {
+			OAuth2LoginMetrics.increment(METRIC_REJECTED);
+			log.warn("Rejected a back-channel logout: " + e.getMessage());
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		
+		int invalidated = sessionRegistry.invalidate(claims.get("sid", String.class), claims.getSubject());
+		OAuth2LoginMetrics.add(METRIC_SESSIONS, invalidated);
+		log.info("Back-channel logout of sid={}, sub={}: {} session(s) invalidated", claims.get("sid"),
+		    claims.getSubject(), invalidated);
+		response.setStatus(HttpServletResponse.SC_OK);
+	}
+	
+	/**
+	 * Validates a logout token as per the specification: signed by the identity provider, issued by
+	 * it, intended for this client, recent and not used before, carrying the back-channel logout
+	 * event and a <code>sid</code> or a <code>sub</code>, but no <code>nonce</code>.
+	 */
+	private Claims verifyLogoutToken(String logoutToken) throws Exception {
+		if (StringUtils.isBlank(logoutToken)) {
+			throw new IllegalArgumentException("The logout token is missing");
+		}
+		String issuer = StringUtils.trimToNull(oauth2Props.getProperty(PROP_ISSUER));
+		if (issuer == null) {
+			throw new IllegalStateException("The '" + PROP_ISSUER + "' must be set to accept back-channel logouts");
+		}
+		Claims claims = JwtUtils.parseAndVerifyToken(logoutToken, oauth2Props);
+		if (!issuer.equals(claims.getIssuer())) {
+			throw new IllegalArgumentException("The logout token was not issued by " + issuer);
+		}
+		if (!JwtUtils.hasAudience(claims, oauth2Props.getProperty("clientId"))) {
+			throw new IllegalArgumentException("The logout token is not intended for this client");
+		}
+		if (claims.getIssuedAt() == null) {
+			throw new IllegalArgumentException("The logout token has no iat claim");
+		}
+		long now = System.currentTimeMillis();
+		long expiresAt = claims.getIssuedAt().getTime()
+		        + TimeUnit.SECONDS.toMillis(NumberUtils.toLong(oauth2Props.getProperty(PROP_MAX_AGE), 300));
+		if (expiresAt <= now) {
+			throw new IllegalArgumentException("The logout token is too old");
+		}
+		if (StringUtils.isBlank(claims.getId())) {
+			throw new IllegalArgumentException("The logout token has no jti claim");
+		}
+		Object events = claims.get("events");
+		if (!(events instanceof Map) || !((Map<?, ?>) events).containsKey(BACKCHANNEL_LOGOUT_EVENT)) {
+			throw new IllegalArgumentException("The logout token has no back-channel logout event");
+		}
+		if (claims.containsKey("nonce")) {
+			throw new IllegalArgumentException("The logout token must not have a nonce");
+		}
+		if (StringUtils.isBlank(claims.get("sid", String.class)) && StringUtils.isBlank(claims.getSubject())) {
+			throw new IllegalArgumentException("The logout token has neither a sid nor a sub claim");
+		}
+		usedTokens.values().removeIf(usedUntil -> usedUntil <= now);
+		if (usedTokens.putIfAbsent(claims.getId(), expiresAt) != null) {
+			throw new IllegalArgumentException("The logout token was already used, jti: " + claims.getId());
+		}
+		return claims;
+	}
+}
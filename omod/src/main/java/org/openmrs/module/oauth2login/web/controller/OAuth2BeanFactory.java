@@ -9,18 +9,52 @@
  */
 package org.openmrs.module.oauth2login.web.controller;
 
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.IDP_USER_SOURCE_COMPONENT;
+import static org.openmrs.module.oauth2login.OAuth2LoginConstants.SHARED_STATE_DAO_COMPONENT;
+
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.module.oauth2login.PropertyUtils;
+import org.openmrs.module.oauth2login.OAuth2Configuration;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.openmrs.module.oauth2login.authscheme.UserInfo;
+import org.openmrs.module.oauth2login.db.SharedStateDao;
+import org.openmrs.module.oauth2login.provisioning.FileIdpUserSource;
+import org.openmrs.module.oauth2login.provisioning.IdpUserSource;
+import org.openmrs.module.oauth2login.provisioning.UserImporter;
+import org.openmrs.module.oauth2login.web.CookieOAuth2ClientContext;
+import org.openmrs.module.oauth2login.web.HttpUtils;
+import org.openmrs.module.oauth2login.web.IdpHttpClient;
+import org.openmrs.module.oauth2login.web.RevokedTokens;
+import org.openmrs.module.oauth2login.web.SessionExpiryTracker;
+import org.openmrs.module.oauth2login.web.SessionRegistry;
+import org.openmrs.module.oauth2login.web.SessionRenewer;
+import org.openmrs.module.oauth2login.web.SharedVerificationState;
+import org.openmrs.module.oauth2login.web.provisioning.HttpIdpUserSource;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.oauth2.client.OAuth2ClientContext;
 import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.token.AccessTokenProviderChain;
+import org.springframework.security.oauth2.client.token.AccessTokenRequest;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsAccessTokenProvider;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeAccessTokenProvider;
 import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeResourceDetails;
 import org.springframework.security.oauth2.config.annotation.web.configuration.EnableOAuth2Client;
 import org.springframework.web.client.RestTemplate;
@@ -39,27 +73,49 @@ public class OAuth2BeanFactory {
 	/**
 	 * Accessor to the properties files that contains the OAuth 2 client configuration: - client ID
 	 * - client secret - user authorization URI - access token URI and - user info URI
+	 * <p>
+	 * This is a live view of the configuration, the settings read at request time see the changes to
+	 * the file, see {@link OAuth2Configuration#live()}.
 	 */
 	@Bean(name = "oauth2.properties")
 	public Properties getOAuth2Properties() throws IOException {
-		return PropertyUtils.getOAuth2Properties();
+		OAuth2Configuration config = OAuth2Configuration.getInstance();
+		// fails the context startup when the configuration can't be loaded
+		config.get();
+		return config.live();
 	}
 	
 	@Bean(name = "oauth2.userInfoUri")
-	public String getOAuth2UserInfoUri() throws IOException {
-		Properties props = getOAuth2Properties();
+	public String getOAuth2UserInfoUri(@Qualifier("oauth2.properties") Properties props) {
 		return props.getProperty("userInfoUri");
 	}
 	
+	/**
+	 * The pooled HTTP client shared by all the calls to the OAuth 2 Resource Provider.
+	 * 
+	 * @param props The OAuth 2 properties, see {@link IdpHttpClient} for the HTTP settings.
+	 */
+	@Bean(name = "oauth2.httpClient", destroyMethod = "close")
+	public IdpHttpClient getIdpHttpClient(@Qualifier("oauth2.properties") Properties props) {
+		IdpHttpClient httpClient = new IdpHttpClient(props);
+		HttpUtils.setHttpClient(httpClient);
+		return httpClient;
+	}
+	
 	/**
 	 * The Spring REST template to transact with the OAuth 2 Resource Provider over HTTP.
 	 * 
 	 * @param props The OAuth 2 properties (client ID, client secret... etc).
-	 * @param oauth2Context Spring Security's client context as driven by @EnableOAuth2Client
+	 * @param oauth2Context Spring Security's client context as driven by @EnableOAuth2Client, kept in
+	 *            the HTTP session unless <code>login.stateCookie.enabled</code>, see
+	 *            {@link CookieOAuth2ClientContext}
+	 * @param accessTokenRequest The request scoped access token request as driven by @EnableOAuth2Client
+	 * @param httpClient The pooled HTTP client, used for both the token and the user info requests.
 	 */
 	@Bean(name = "oauth2.restTemplate")
 	public RestTemplate getOAuth2RestTemplate(@Qualifier("oauth2.properties") Properties props,
-	        OAuth2ClientContext oauth2Context) {
+	        OAuth2ClientContext oauth2Context, @Qualifier("accessTokenRequest") AccessTokenRequest accessTokenRequest,
+	        @Qualifier("oauth2.httpClient") IdpHttpClient httpClient) {
 		
 		AuthorizationCodeResourceDetails resource = new AuthorizationCodeResourceDetails();
 		resource.setClientId(props.getProperty("clientId"));
@@ -68,6 +124,131 @@ public class OAuth2BeanFactory {
 		resource.setUserAuthorizationUri(props.getProperty("userAuthorizationUri"));
 		resource.setScope(Arrays.asList(props.getProperty("scope").trim().split(",")));
 		
-		return new OAuth2RestTemplate(resource, oauth2Context);
+		AuthorizationCodeAccessTokenProvider tokenProvider = new AuthorizationCodeAccessTokenProvider();
+		tokenProvider.setRequestFactory(httpClient.getRequestFactory());
+		
+		if (CookieOAuth2ClientContext.isEnabled(props)) {
+			oauth2Context = new CookieOAuth2ClientContext(accessTokenRequest, props);
+		}
+		OAuth2RestTemplate restTemplate = new OAuth2RestTemplate(resource, oauth2Context);
+		restTemplate.setRequestFactory(httpClient.getRequestFactory());
+		restTemplate.setAccessTokenProvider(new AccessTokenProviderChain(Arrays.asList(tokenProvider)));
+		return restTemplate;
+	}
+	
+	/**
+	 * Renews the session tokens with the refresh token when <code>session.renewal.enabled</code>.
+	 * 
+	 * @param props The OAuth 2 properties.
+	 * @param httpClient The pooled HTTP client.
+	 */
+	@Bean(name = "oauth2.sessionRenewer")
+	public SessionRenewer getSessionRenewer(@Qualifier("oauth2.properties") Properties props,
+	        @Qualifier("oauth2.httpClient") IdpHttpClient httpClient) {
+		return new SessionRenewer(props, new RestTemplate(httpClient.getRequestFactory()));
+	}
+	
+	/**
+	 * The sessions opened through the identity provider, indexed for the back-channel logouts.
+	 */
+	@Bean(name = "oauth2.sessionRegistry")
+	public SessionRegistry getSessionRegistry() {
+		return new SessionRegistry();
+	}
+	
+	/**
+	 * The bearer tokens revoked before they expire, see {@link RevokedTokens} for the settings.
+	 * 
+	 * @param props The OAuth 2 properties.
+	 */
+	@Bean(name = "oauth2.revokedTokens", initMethod = "start", destroyMethod = "close")
+	public RevokedTokens getRevokedTokens(@Qualifier("oauth2.properties") Properties props) {
+		return new RevokedTokens(props);
+	}
+	
+	/**
+	 * Evicts the idle sessions once their access token has expired, see {@link SessionExpiryTracker}
+	 * for the settings.
+	 * 
+	 * @param props The OAuth 2 properties.
+	 */
+	@Bean(name = "oauth2.sessionExpiryTracker", initMethod = "start", destroyMethod = "close")
+	public SessionExpiryTracker getSessionExpiryTracker(@Qualifier("oauth2.properties") Properties props) {
+		return new SessionExpiryTracker(props);
+	}
+	
+	/**
+	 * The token verification state shared with the other nodes of a cluster, see
+	 * {@link SharedVerificationState} for the settings.
+	 * 
+	 * @param props The OAuth 2 properties.
+	 * @param dao The module's tables.
+	 */
+	@Bean(name = "oauth2.sharedVerificationState", initMethod = "start", destroyMethod = "close")
+	public SharedVerificationState getSharedVerificationState(@Qualifier("oauth2.properties") Properties props,
+	        @Qualifier(SHARED_STATE_DAO_COMPONENT) SharedStateDao dao) {
+		return new SharedVerificationState(dao, props);
+	}
+	
+	/**
+	 * The bounded executor running the login callbacks asynchronously, so that the container threads
+	 * are not held while waiting on the OAuth 2 Resource Provider. Its threads are only started when
+	 * needed and logins are rejected rather than queued beyond <code>login.async.queueSize</code>.
+	 * 
+	 * @param props The OAuth 2 properties.
+	 */
+	@Bean(name = "oauth2.loginExecutor", destroyMethod = "shutdown")
+	public ExecutorService getLoginExecutor(@Qualifier("oauth2.properties") Properties props) {
+		int threads = Math.max(NumberUtils.toInt(props.getProperty("login.async.threads"), 20), 1);
+		int queueSize = Math.max(NumberUtils.toInt(props.getProperty("login.async.queueSize"), 100), 1);
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory threadFactory = r -> {
+			Thread thread = new Thread(r, "oauth2login-async-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+		        new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		
+		OAuth2LoginMetrics.gauge("login.async.active", executor::getActiveCount);
+		OAuth2LoginMetrics.gauge("login.async.queued", () -> executor.getQueue().size());
+		return executor;
+	}
+	
+	/**
+	 * The source of the IdP users for the background user reconciliation: the IdP admin endpoint
+	 * accessed with the client credentials grant when <code>userSync.usersUrl</code> is set,
+	 * otherwise the local export file set with <code>userSync.file</code>.
+	 * 
+	 * @param props The OAuth 2 properties.
+	 * @param httpClient The pooled HTTP client.
+	 */
+	@Bean(name = IDP_USER_SOURCE_COMPONENT)
+	public IdpUserSource getIdpUserSource(@Qualifier("oauth2.properties") Properties props,
+	        @Qualifier("oauth2.httpClient") IdpHttpClient httpClient) {
+		
+		Properties syncMappings = UserImporter.getSyncMappings(props);
+		if (StringUtils.isNotBlank(props.getProperty(HttpIdpUserSource.PROP_USERS_URL))) {
+			ClientCredentialsResourceDetails resource = new ClientCredentialsResourceDetails();
+			resource.setClientId(props.getProperty("clientId"));
+			resource.setClientSecret(props.getProperty("clientSecret"));
+			resource.setAccessTokenUri(props.getProperty("accessTokenUri"));
+			resource.setScope(Arrays.asList(props.getProperty("scope").trim().split(",")));
+			
+			ClientCredentialsAccessTokenProvider tokenProvider = new ClientCredentialsAccessTokenProvider();
+			tokenProvider.setRequestFactory(httpClient.getRequestFactory());
+			
+			OAuth2RestTemplate restTemplate = new OAuth2RestTemplate(resource);
+			restTemplate.setRequestFactory(httpClient.getRequestFactory());
+			restTemplate.setAccessTokenProvider(new AccessTokenProviderChain(Arrays.asList(tokenProvider)));
+			return new HttpIdpUserSource(syncMappings, restTemplate);
+		}
+		
+		Path file = null;
+		if (StringUtils.isNotBlank(props.getProperty("userSync.file"))) {
+			file = Paths.get(OpenmrsUtil.getApplicationDataDirectory()).resolve(props.getProperty("userSync.file"));
+		}
+		return new FileIdpUserSource(file, syncMappings.getProperty(UserInfo.PROP_ROLES));
 	}
 }
@@ -11,14 +11,33 @@ package org.openmrs.module.oauth2login.web.controller;
 
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
 import org.openmrs.Provider;
 import org.openmrs.User;
 import org.openmrs.api.PersonService;
@@ -26,24 +45,66 @@ import org.openmrs.api.ProviderService;
 import org.openmrs.api.UserService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.oauth2login.CircuitBreakerOpenException;
+import org.openmrs.module.oauth2login.ModuleSettings;
 import org.openmrs.module.oauth2login.OAuth2LoginConstants;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
 import org.openmrs.module.oauth2login.authscheme.OAuth2TokenCredentials;
+import org.openmrs.module.oauth2login.authscheme.ProviderStateCache;
 import org.openmrs.module.oauth2login.authscheme.UserInfo;
+import org.openmrs.module.oauth2login.web.IdpHttpClient;
+import org.openmrs.module.oauth2login.web.JwtUtils;
+import org.openmrs.module.oauth2login.web.SessionExpiryTracker;
+import org.openmrs.module.oauth2login.web.SessionRegistry;
+import org.openmrs.module.oauth2login.web.SessionRenewer;
+import org.openmrs.module.oauth2login.web.SessionTokens;
 import org.openmrs.util.PrivilegeConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.OAuth2ClientContext;
 import org.springframework.security.oauth2.client.OAuth2RestOperations;
+import org.springframework.security.oauth2.client.resource.UserRedirectRequiredException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.client.RestOperations;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.servlet.ModelAndView;
 
 @Controller
 public class OAuth2LoginController {
 	
+	/**
+	 * Where the user info is obtained from: the user info URI (default) or the id_token claims.
+	 */
+	public static final String PROP_USER_INFO_SOURCE = "userInfo.source";
+	
+	public static final String USER_INFO_SOURCE_ID_TOKEN = "idToken";
+	
+	/**
+	 * Whether the login callbacks are handled asynchronously, true by default.
+	 */
+	public static final String PROP_ASYNC_ENABLED = "login.async.enabled";
+	
+	/**
+	 * The time in milliseconds after which an asynchronous login is answered with a 503.
+	 */
+	public static final String PROP_ASYNC_TIMEOUT = "login.async.timeout";
+	
+	private static final String ATTR_ASYNC_OUTCOME = OAuth2LoginController.class.getName() + ".asyncOutcome";
+	
+	/**
+	 * The session attribute of the session scoped client context set up by @EnableOAuth2Client.
+	 */
+	static final String ATTR_SESSION_CLIENT_CONTEXT = "scopedTarget.oauth2ClientContext";
+	
 	protected final Log log = LogFactory.getLog(getClass());
 	
 	private String userInfoUri;
@@ -62,6 +123,18 @@ public class OAuth2LoginController {
 	@Qualifier("providerService")
 	private ProviderService ps;
 	
+	private ProviderStateCache providerStates = new ProviderStateCache();
+	
+	private ModuleSettings settings = new ModuleSettings();
+	
+	private volatile User daemonUser;
+	
+	private ExecutorService loginExecutor;
+	
+	private SessionRegistry sessionRegistry;
+	
+	private SessionExpiryTracker sessionExpiryTracker;
+	
 	@Autowired
 	public void setRestTemplate(@Qualifier("oauth2.restTemplate") RestOperations restTemplate) {
 		this.restTemplate = restTemplate;
@@ -72,22 +145,200 @@ public class OAuth2LoginController {
 		this.oauth2Props = oauth2Props;
 	}
 	
+	@Autowired(required = false)
+	public void setProviderStateCache(ProviderStateCache providerStates) {
+		this.providerStates = providerStates;
+	}
+	
+	@Autowired(required = false)
+	public void setModuleSettings(@Qualifier(OAuth2LoginConstants.MODULE_SETTINGS_COMPONENT) ModuleSettings settings) {
+		this.settings = settings;
+	}
+	
+	@Autowired(required = false)
+	public void setLoginExecutor(@Qualifier("oauth2.loginExecutor") ExecutorService loginExecutor) {
+		this.loginExecutor = loginExecutor;
+	}
+	
+	@Autowired(required = false)
+	public void setSessionRegistry(@Qualifier("oauth2.sessionRegistry") SessionRegistry sessionRegistry) {
+		this.sessionRegistry = sessionRegistry;
+	}
+	
+	@Autowired(required = false)
+	public void setSessionExpiryTracker(
+	        @Qualifier("oauth2.sessionExpiryTracker") SessionExpiryTracker sessionExpiryTracker) {
+		this.sessionExpiryTracker = sessionExpiryTracker;
+	}
+	
 	@Autowired
 	public void setUserInfoUri(@Qualifier("oauth2.userInfoUri") String userInfoUri) {
 		this.userInfoUri = userInfoUri;
 	}
 	
+	/**
+	 * Handles the callback from the OAuth 2 Resource Provider on the login executor when the
+	 * container supports it: the container thread is released while the authorization code is
+	 * exchanged and the user info fetched, and the request is dispatched back to this handler with
+	 * the outcome of the login. A login that times out is answered with a 503 and the user is not
+	 * logged in, even if the identity provider eventually responds.
+	 */
+	@RequestMapping(value = "/oauth2login", method = GET, params = "code")
+	public ModelAndView loginCallback(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		Object outcome = request.getAttribute(ATTR_ASYNC_OUTCOME);
+		if (outcome != null) {
+			request.removeAttribute(ATTR_ASYNC_OUTCOME);
+			if (outcome instanceof RuntimeException) {
+				throw (RuntimeException) outcome;
+			}
+			if (outcome instanceof Error) {
+				throw (Error) outcome;
+			}
+			return (ModelAndView) outcome;
+		}
+		
+		if (loginExecutor == null || !request.isAsyncSupported()
+		        || "false".equalsIgnoreCase(oauth2Props.getProperty(PROP_ASYNC_ENABLED))) {
+			return login();
+		}
+		
+		final UserContext userContext = Context.getUserContext();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(NumberUtils.toLong(oauth2Props.getProperty(PROP_ASYNC_TIMEOUT), 30000));
+		asyncContext.addListener(new AsyncListener() {
+			
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (done.compareAndSet(false, true)) {
+					log.warn("The login timed out while waiting on the identity provider.");
+					OAuth2LoginMetrics.increment("login.async.timeouts");
+					((HttpServletResponse) event.getSuppliedResponse()).sendError(
+					    HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The identity provider did not respond in time");
+					event.getAsyncContext().complete();
+				}
+			}
+			
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+			
+			@Override
+			public void onError(AsyncEvent event) {
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+		
+		try {
+			loginExecutor.execute(() -> {
+				// the outcome is claimed before the user is logged in, not to log in a timed out request
+				AtomicBoolean claimed = new AtomicBoolean();
+				BooleanSupplier claim = () -> {
+					if (!claimed.get()) {
+						claimed.set(done.compareAndSet(false, true));
+					}
+					return claimed.get();
+				};
+				Object result = loginInBackground(request, response, userContext, claim);
+				if (claim.getAsBoolean()) {
+					request.setAttribute(ATTR_ASYNC_OUTCOME, result);
+					try {
+						asyncContext.dispatch();
+					}
+					catch (IllegalStateException e) {
+						// the container timed the request out while the user was being logged in
+						log.warn("The login outcome could not be dispatched, the request is no longer available.", e);
+					}
+				} else {
+					log.info("The login completed after it timed out, the user was not logged in.");
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			log.warn("The login is rejected, too many logins are waiting on the identity provider.");
+			OAuth2LoginMetrics.increment("login.async.rejected");
+			if (done.compareAndSet(false, true)) {
+				response.setHeader("Retry-After", "1");
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many logins in progress");
+				asyncContext.complete();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Runs the login on a login executor thread, bound to the request and to the user context of the
+	 * original request.
+	 * 
+	 * @param claim Claims the outcome of the request, false if it already timed out.
+	 * @return The login outcome: the view or the exception thrown.
+	 */
+	private Object loginInBackground(HttpServletRequest request, HttpServletResponse response, UserContext userContext,
+	        BooleanSupplier claim) {
+		ServletRequestAttributes requestAttributes = new ServletRequestAttributes(request, response);
+		RequestContextHolder.setRequestAttributes(requestAttributes);
+		Context.openSession();
+		Context.setUserContext(userContext);
+		try {
+			return login(claim);
+		}
+		catch (RuntimeException | Error e) {
+			return e;
+		}
+		finally {
+			Context.clearUserContext();
+			Context.closeSession();
+			SecurityContextHolder.clearContext();
+			requestAttributes.requestCompleted();
+			RequestContextHolder.resetRequestAttributes();
+		}
+	}
+	
 	@RequestMapping(value = "/oauth2login", method = GET)
 	public ModelAndView login() {
+		return login(() -> true);
+	}
+	
+	/**
+	 * @param claim Claims the outcome of the request once the user info is obtained, before the user
+	 *            is logged in. The login is cancelled when the outcome cannot be claimed.
+	 */
+	private ModelAndView login(BooleanSupplier claim) {
 		
 		authenticateWithSpringSecurity();
 		
-		String userInfoJson = "{}";
 		try {
-			userInfoJson = restTemplate.getForObject(new URI(userInfoUri), String.class);
+			ModelAndView view = loginWithIdentityProvider(claim);
+			releaseLoginState();
+			return view;
 		}
-		catch (URISyntaxException e) {
-			throw new RuntimeException(e);
+		catch (UserRedirectRequiredException e) {
+			//the client context keeps the preserved state until the callback
+			SecurityContextHolder.clearContext();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			releaseLoginState();
+			throw e;
+		}
+	}
+	
+	private ModelAndView loginWithIdentityProvider(BooleanSupplier claim) {
+		String userInfoJson;
+		try {
+			userInfoJson = getUserInfoJson();
+		}
+		catch (RuntimeException e) {
+			if (CircuitBreakerOpenException.isCause(e)) {
+				throw new IdentityProviderUnavailableException(e);
+			}
+			throw e;
+		}
+		if (!claim.getAsBoolean()) {
+			throw new CancellationException("The login timed out before the user info was obtained.");
 		}
 		
 		final UserInfo userInfo = new UserInfo(oauth2Props, userInfoJson);
@@ -95,13 +346,19 @@ public class OAuth2LoginController {
 			Context.authenticate(new OAuth2TokenCredentials(userInfo));
 			if (Context.isAuthenticated()) {
 				User user = Context.getAuthenticatedUser();
-				final String idToken = ((OAuth2RestOperations) restTemplate).getAccessToken().getAdditionalInformation()
-				        .get("id_token").toString();
-				user.setUserProperty(OAuth2LoginConstants.USER_PROP_ID_TOKEN, idToken);
-				if ("true".equalsIgnoreCase(userInfo.getString(UserInfo.PROP_PROVIDER, "true"))) {
-					activateProviderAccount(Context.getAuthenticatedUser());
-				} else {
-					deactivateProviderAccount(Context.getAuthenticatedUser());
+				OAuth2AccessToken accessToken = ((OAuth2RestOperations) restTemplate).getAccessToken();
+				storeSessionTokens(SessionTokens.of(accessToken, SessionRenewer.isEnabled(oauth2Props)));
+				if (StringUtils.isNotEmpty(user.getUserProperty(OAuth2LoginConstants.USER_PROP_ID_TOKEN))) {
+					//id_token persisted by earlier versions of the module, the service saves the user
+					userService.removeUserProperty(user, OAuth2LoginConstants.USER_PROP_ID_TOKEN);
+				}
+				boolean provider = "true".equalsIgnoreCase(userInfo.getString(UserInfo.PROP_PROVIDER, "true"));
+				Integer personId = user.getPerson() == null ? null : user.getPerson().getPersonId();
+				if (!providerStates.isApplied(personId, provider)) {
+					boolean applied = provider ? activateProviderAccount(user) : deactivateProviderAccount(user);
+					if (applied) {
+						providerStates.applied(personId, provider);
+					}
 				}
 			}
 		}
@@ -116,7 +373,107 @@ public class OAuth2LoginController {
 		return new ModelAndView("redirect:" + getRedirectUri());
 	}
 	
-	private void activateProviderAccount(User user) {
+	/**
+	 * Releases the state only needed while logging in, once the OpenMRS context is established or
+	 * the login has failed: the access token held by the client context, with its additional
+	 * information, and the Spring Security authentication. Only the {@link SessionTokens} are kept
+	 * in the HTTP session.
+	 */
+	private void releaseLoginState() {
+		SecurityContextHolder.clearContext();
+		OAuth2ClientContext clientContext = ((OAuth2RestOperations) restTemplate).getOAuth2ClientContext();
+		if (clientContext != null) {
+			clientContext.setAccessToken(null);
+		}
+		RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+		if (requestAttributes != null) {
+			requestAttributes.removeAttribute(ATTR_SESSION_CLIENT_CONTEXT, RequestAttributes.SCOPE_SESSION);
+		}
+	}
+	
+	/**
+	 * Fails fast while the identity provider is known to be down, rather than letting the login
+	 * wait for timeouts.
+	 */
+	@ExceptionHandler(IdentityProviderUnavailableException.class)
+	public void handleIdentityProviderUnavailable(IdentityProviderUnavailableException e, HttpServletResponse response)
+	        throws IOException {
+		log.warn(e.getMessage() + ": " + e.getCause().getMessage());
+		long openMillis = NumberUtils.toLong(oauth2Props.getProperty(IdpHttpClient.PROP_OPEN_DURATION), 30000);
+		response.setHeader("Retry-After", String.valueOf(Math.max(TimeUnit.MILLISECONDS.toSeconds(openMillis), 1)));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+	}
+	
+	/**
+	 * Fetches the user info JSON, either from the claims of the verified id_token when
+	 * <code>userInfo.source=idToken</code>, or from the user info endpoint. The user info endpoint
+	 * remains the fallback when the id_token cannot be verified or does not hold the username.
+	 * 
+	 * @return The user info JSON.
+	 */
+	private String getUserInfoJson() {
+		if (USER_INFO_SOURCE_ID_TOKEN.equalsIgnoreCase(oauth2Props.getProperty(PROP_USER_INFO_SOURCE))) {
+			try {
+				Object idToken = ((OAuth2RestOperations) restTemplate).getAccessToken().getAdditionalInformation()
+				        .get("id_token");
+				if (idToken != null) {
+					String userInfoJson = JsonUtil.toJson(JwtUtils.parseAndVerifyIdToken(idToken.toString(), oauth2Props));
+					if (StringUtils.isNotBlank(new UserInfo(oauth2Props, userInfoJson).getUsername())) {
+						return userInfoJson;
+					}
+					log.warn("The id_token does not hold the username, falling back to the user info URI.");
+				}
+			}
+			catch (Exception e) {
+				log.warn("The user info could not be obtained from the id_token, falling back to the user info URI.", e);
+			}
+		}
+		
+		try {
+			return restTemplate.getForObject(new URI(userInfoUri), String.class);
+		}
+		catch (URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Keeps the tokens in the HTTP session of the request being handled, if any.
+	 */
+	private void storeSessionTokens(SessionTokens tokens) {
+		RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+		if (requestAttributes instanceof ServletRequestAttributes) {
+			HttpServletRequest request = ((ServletRequestAttributes) requestAttributes).getRequest();
+			SessionTokens.set(request, tokens);
+			registerSession(request.getSession(), tokens.getIdToken());
+			if (sessionExpiryTracker != null) {
+				sessionExpiryTracker.track(request.getSession(), tokens.getExpiresAt());
+			}
+		}
+	}
+	
+	/**
+	 * Indexes the session by the <code>sid</code> and <code>sub</code> of its id_token, for the
+	 * back-channel logouts.
+	 */
+	private void registerSession(HttpSession session, String idToken) {
+		if (sessionRegistry == null || StringUtils.isBlank(idToken)) {
+			return;
+		}
+		try {
+			Map<String, Object> claims = JwtUtils.getUnverifiedClaims(idToken);
+			sessionRegistry.register(session, Objects.toString(claims.get("sid"), null),
+			    Objects.toString(claims.get("sub"), null));
+		}
+		catch (JoseException e) {
+			log.warn("The session can't be logged out through the back-channel, the id_token could not be read", e);
+		}
+	}
+	
+	/**
+	 * @return true if the provider account is now active.
+	 */
+	private boolean activateProviderAccount(User user) {
 		try {
 			Context.addProxyPrivilege(PrivilegeConstants.GET_PROVIDERS);
 			Context.addProxyPrivilege(PrivilegeConstants.GET_PERSONS);
@@ -128,7 +485,7 @@ public class OAuth2LoginController {
 				Provider provider = new Provider();
 				provider.setIdentifier(user.getSystemId());
 				provider.setPerson(personService.getPerson(user.getPerson().getId()));
-				provider.setCreator(userService.getUserByUsername("daemon"));
+				provider.setCreator(getDaemonUser());
 				ps.saveProvider(provider);
 			} else {
 				possibleProvider.stream().forEach(provider -> {
@@ -136,9 +493,11 @@ public class OAuth2LoginController {
 						ps.unretireProvider(provider);
 				});
 			}
+			return true;
 		}
 		catch (Exception e) {
 			log.error("Could not create provider account associated with user '" + user.getDisplayString(), e);
+			return false;
 		}
 		finally {
 			Context.removeProxyPrivilege(PrivilegeConstants.GET_PROVIDERS);
@@ -148,7 +507,10 @@ public class OAuth2LoginController {
 		}
 	}
 	
-	private void deactivateProviderAccount(User user) {
+	/**
+	 * @return true if the provider accounts are now retired.
+	 */
+	private boolean deactivateProviderAccount(User user) {
 		try {
 			Context.addProxyPrivilege(PrivilegeConstants.GET_PROVIDERS);
 			Context.addProxyPrivilege(PrivilegeConstants.MANAGE_PROVIDERS);
@@ -156,9 +518,11 @@ public class OAuth2LoginController {
 			Collection<Provider> possibleProvider = ps.getProvidersByPerson(user.getPerson());
 			possibleProvider.stream().forEach(provider -> ps.retireProvider(provider,
 			    "Disabling provider account by " + OAuth2LoginConstants.MODULE_ARTIFACT_ID));
+			return true;
 		}
 		catch (Exception e) {
 			log.error("Could not retire provider account associated with user '" + user.getDisplayString(), e);
+			return false;
 		}
 		finally {
 			Context.removeProxyPrivilege(PrivilegeConstants.GET_PROVIDERS);
@@ -166,16 +530,26 @@ public class OAuth2LoginController {
 		}
 	}
 	
+	/**
+	 * @return The daemon user, fetched only once.
+	 */
+	private User getDaemonUser() {
+		if (daemonUser == null) {
+			daemonUser = userService.getUserByUsername("daemon");
+		}
+		return daemonUser;
+	}
+	
 	private String getRedirectUri() {
-		final String gpRedirectUri = "oauth2login.redirectUriAfterLogin";
-		
-		String redirectUri = Context.getAdministrationService().getGlobalProperty(gpRedirectUri);
+		final String redirectUri = settings.get(OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN);
 		final String defaultRedirectUri = "/";
 		if (StringUtils.isEmpty(redirectUri)) {
-			log.info("Redirecting user to the default URI '" + defaultRedirectUri
-			        + "'. This can be changed through the global property '" + gpRedirectUri + "'.");
+			log.debug("Redirecting user to the default URI '" + defaultRedirectUri
+			        + "'. This can be changed through the global property '"
+			        + OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN + "'.");
 		} else {
-			log.info("Redirecting user to '" + redirectUri + "' as defined by the global property '" + gpRedirectUri + "'.");
+			log.debug("Redirecting user to '" + redirectUri + "' as defined by the global property '"
+			        + OAuth2LoginConstants.GP_REDIRECT_URI_AFTER_LOGIN + "'.");
 		}
 		
 		return StringUtils.defaultIfBlank(redirectUri, defaultRedirectUri);
@@ -0,0 +1,112 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web.controller;
+
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jose4j.lang.JoseException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.oauth2login.web.JwtUtils;
+import org.openmrs.module.oauth2login.web.RevokedTokens;
+import org.openmrs.util.PrivilegeConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Revokes bearer tokens before they expire, see {@link RevokedTokens}. A token is revoked by its
+ * <code>jti</code>, given directly or read from the token, or by its digest when it has none. The
+ * revocations are appended to the revocation file when there is one.
+ */
+@Controller
+public class OAuth2RevocationController {
+	
+	private static final Logger log = LoggerFactory.getLogger(OAuth2RevocationController.class);
+	
+	private RevokedTokens revokedTokens;
+	
+	@Autowired
+	public void setRevokedTokens(@Qualifier("oauth2.revokedTokens") RevokedTokens revokedTokens) {
+		this.revokedTokens = revokedTokens;
+	}
+	
+	/**
+	 * @param jti The <code>jti</code> of the token to revoke.
+	 * @param token The token to revoke, when its <code>jti</code> is not given.
+	 * @param exp The expiry of the token in seconds since the epoch, read from the token when not
+	 *            given.
+	 */
+	@RequestMapping(value = "/oauth2login/revocations", method = POST)
+	public void revoke(@RequestParam(value = "jti", required = false) String jti,
+	        @RequestParam(value = "token", required = false) String token,
+	        @RequestParam(value = "exp", required = false) Long exp, HttpServletResponse response) {
+		
+		if (!Context.isAuthenticated()) {
+			response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		if (!Context.hasPrivilege(PrivilegeConstants.EDIT_USERS)) {
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		
+		Map<String, Object> claims = Collections.emptyMap();
+		if (StringUtils.isBlank(jti) && StringUtils.isNotBlank(token)) {
+			try {
+				claims = JwtUtils.getUnverifiedClaims(token);
+				jti = claims.get("jti") == null ? null : claims.get("jti").toString();
+			}
+			catch (JoseException e) {
+				log.debug("The revoked token is not a JWT, it is revoked by its digest");
+			}
+		}
+		if (exp == null && claims.get("exp") instanceof Number) {
+			exp = ((Number) claims.get("exp")).longValue();
+		}
+		if ((StringUtils.isBlank(jti) && StringUtils.isBlank(token)) || exp == null) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		
+		boolean persisted;
+		try {
+			persisted = StringUtils.isNotBlank(jti) ? revokedTokens.persistJti(jti, exp)
+			        : revokedTokens.persistToken(token, exp);
+		}
+		catch (IllegalArgumentException e) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		catch (IOException e) {
+			log.error("The token revocation could not be written to the revocation file, it is only in effect on this node"
+			        + " until it restarts, jti: " + jti, e);
+			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		}
+		if (persisted) {
+			log.info("{} revoked a token until {}, jti: {}", Context.getAuthenticatedUser(), exp, jti);
+		} else {
+			log.info("{} revoked a token until {} on this node only, there is no revocation file, jti: {}",
+			    Context.getAuthenticatedUser(), exp, jti);
+		}
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+}
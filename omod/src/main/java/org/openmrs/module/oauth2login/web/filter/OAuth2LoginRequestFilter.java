@@ -10,8 +10,6 @@
 package org.openmrs.module.oauth2login.web.filter;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.List;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -21,10 +19,16 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
-import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.oauth2login.web.SessionRenewer;
+import org.openmrs.module.oauth2login.web.SessionTokens;
 import org.openmrs.module.oauth2login.web.Utils;
+import org.openmrs.module.oauth2login.web.filter.RequestClassifier.RequestClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This servlet filter ensures that the only way to authenticate is through the appropriate URI
@@ -33,24 +37,23 @@ import org.openmrs.module.oauth2login.web.Utils;
  */
 public class OAuth2LoginRequestFilter implements Filter {
 	
-	/**
-	 * The list of servlet paths that should not be filtered because they are actually served by
-	 * this module. In other words there are controllers within this module that implement their
-	 * behaviour, and we need to let those controllers run, authenticated or not.
-	 */
-	private List<String> servletPaths;
+	private static final Logger log = LoggerFactory.getLogger(OAuth2LoginRequestFilter.class);
+	
+	static final String WWW_AUTHENTICATE_REALM = "openmrs";
 	
 	/**
-	 * The list of requestURIs that should not be filtered.
+	 * Classifies the requests against the servlet paths that should not be filtered because they are
+	 * actually served by this module, and the request URIs that should not be filtered.
 	 */
-	private List<String> requestURIs;
+	private RequestClassifier classifier;
+	
+	private volatile SessionRenewer sessionRenewer;
 	
 	@Override
 	public void init(FilterConfig filterConfig) {
-		String servletPathsConfig = filterConfig.getInitParameter("servletPaths");
-		servletPaths = Arrays.asList(servletPathsConfig.split(","));
-		String requestURIsConfig = filterConfig.getInitParameter("requestURIs");
-		requestURIs = Arrays.asList(requestURIsConfig.split(","));
+		classifier = new RequestClassifier(filterConfig.getInitParameter("servletPaths"),
+		        filterConfig.getInitParameter("requestURIs"), filterConfig.getInitParameter("logoutPaths"),
+		        filterConfig.getInitParameter("apiPaths"));
 	}
 	
 	@Override
@@ -64,45 +67,117 @@ public class OAuth2LoginRequestFilter implements Filter {
 		HttpServletRequest httpRequest = (HttpServletRequest) servletRequest;
 		HttpServletResponse httpResponse = (HttpServletResponse) servletResponse;
 		
-		String servletPath = StringUtils.defaultString(httpRequest.getServletPath());
-		String requestURI = StringUtils.defaultString(httpRequest.getRequestURI());
-		requestURI = StringUtils.removeStart(requestURI, httpRequest.getContextPath());
-		
-		if (!requestURIs.contains(requestURI) && !servletPaths.contains(servletPath)) {
-			
-			// Logout (forwarding)
-			if (isLogoutRequest(servletPath, requestURI, httpRequest)) {
+		filter(classifier.classify(httpRequest, null), httpRequest, httpResponse, chain);
+	}
+	
+	/**
+	 * Handles a classified request.
+	 * 
+	 * @param requestClass The request class, see {@link RequestClassifier}.
+	 */
+	void filter(RequestClass requestClass, HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+	        FilterChain chain) throws IOException, ServletException {
+		switch (requestClass) {
+			case LOGOUT:
+				// Logout (forwarding)
 				httpResponse.sendRedirect(httpRequest.getContextPath() + "/oauth2logout");
 				return;
-			}
-			
-			// Login
-			if (!Context.isAuthenticated()) {
+			case LOGIN_REDIRECT:
 				// non-authenticated requests are forwarded to the module login controller
-				httpResponse.sendRedirect(httpRequest.getContextPath() + "/oauth2login");
+				loginRequired(httpRequest, httpResponse, null);
 				return;
-			}
-		} else if (requestURI.equals("/ws/rest/v1/session") && "DELETE".equals(httpRequest.getMethod())) {
-			final String redirectUrl = Utils.getPostLogoutRedirectUrl(httpRequest);
-			chain.doFilter(httpRequest, httpResponse);
-			httpResponse.setHeader("Location", redirectUrl);
-			return;
+			case BEARER_API:
+				if (!Context.isAuthenticated()) {
+					loginRequired(httpRequest, httpResponse, "invalid_token");
+					return;
+				}
+				break;
+			case SESSION:
+				if (!renewSessionIfDue(httpRequest)) {
+					loginRequired(httpRequest, httpResponse, null);
+					return;
+				}
+				break;
+			case EXEMPT:
+				if (RequestClassifier.isRestSessionDelete(httpRequest)) {
+					final String redirectUrl = Utils.getPostLogoutRedirectUrl(httpRequest);
+					chain.doFilter(httpRequest, httpResponse);
+					httpResponse.setHeader("Location", redirectUrl);
+					return;
+				}
+				break;
+			default:
+				break;
 		}
 		
 		chain.doFilter(httpRequest, httpResponse);
 	}
 	
-	private boolean isLogoutRequest(String path, String uri, HttpServletRequest httpServletRequest) {
-		//"manual-logout": should be a constant from org.openmrs.module.appui.AppUiConstants
-		//in OpenMRS the path is ../../logout.action : should we use this in this test ?
-		//the attribute seems to be used in any case.
-		//TODO The module assumes that only legacyUI and RA logout endpoints are in use or won't change, they should 
-		//instead be configurable to adapt to changes and support other distributions that might use custom endpoints.
-		return path.equalsIgnoreCase("/logout")
-		        || uri.equalsIgnoreCase("/ms/logout")
-		        //				|| path.equalsIgnoreCase("/oauth2logout")
-		        || (httpServletRequest.getSession() != null && "true".equals(httpServletRequest.getSession().getAttribute(
-		            "manual-logout")));
+	/**
+	 * Browser navigations are redirected to the module login, whereas API clients get an immediate
+	 * 401 with a bearer challenge instead of following redirects to the identity provider's login
+	 * page.
+	 * 
+	 * @param error The bearer token error code, see RFC 6750, or null when no token was provided.
+	 */
+	private void loginRequired(HttpServletRequest httpRequest, HttpServletResponse httpResponse, String error)
+	        throws IOException {
+		if (!classifier.isApiRequest(httpRequest)) {
+			httpResponse.sendRedirect(httpRequest.getContextPath() + "/oauth2login");
+			return;
+		}
+		String challenge = "Bearer realm=\"" + WWW_AUTHENTICATE_REALM + "\"";
+		if (error != null) {
+			challenge += ", error=\"" + error + "\"";
+		}
+		httpResponse.setHeader("WWW-Authenticate", challenge);
+		httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+	}
+	
+	/**
+	 * Renews the session tokens shortly before the access token expires.
+	 * 
+	 * @return false if the identity provider ended the session, the user is then logged out.
+	 */
+	private boolean renewSessionIfDue(HttpServletRequest httpRequest) {
+		HttpSession session = httpRequest.getSession(false);
+		SessionTokens tokens = session == null ? null : (SessionTokens) session.getAttribute(SessionTokens.SESSION_ATTRIBUTE);
+		if (tokens == null || tokens.getRefreshToken() == null) {
+			return true;
+		}
+		
+		SessionRenewer renewer = getSessionRenewer();
+		if (renewer == null || !renewer.isDue(tokens)) {
+			return true;
+		}
+		
+		try {
+			session.setAttribute(SessionTokens.SESSION_ATTRIBUTE, renewer.renew(session.getId(), tokens));
+			return true;
+		}
+		catch (SessionRenewer.RenewalRejectedException e) {
+			log.info("The session has ended at the identity provider, logging out: " + e.getCause().getMessage());
+			Context.logout();
+			session.invalidate();
+			return false;
+		}
+		catch (RuntimeException e) {
+			// the access token is renewed again on a later request
+			log.warn("The session tokens could not be renewed: " + e.getMessage());
+			return true;
+		}
+	}
+	
+	private SessionRenewer getSessionRenewer() {
+		if (sessionRenewer == null) {
+			try {
+				sessionRenewer = Context.getRegisteredComponent("oauth2.sessionRenewer", SessionRenewer.class);
+			}
+			catch (APIException e) {
+				log.warn("The session renewal is not available: " + e.getMessage());
+			}
+		}
+		return sessionRenewer;
 	}
 	
 }
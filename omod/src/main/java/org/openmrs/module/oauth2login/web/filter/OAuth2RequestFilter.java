@@ -0,0 +1,72 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web.filter;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openmrs.module.oauth2login.web.filter.RequestClassifier.RequestClass;
+
+/**
+ * The module's single filter on all requests: each request is classified once by the
+ * {@link RequestClassifier} and then handled accordingly, service accounts are authenticated with
+ * {@link OAuth2ServiceAccountFilter} and the other requests are handled by
+ * {@link OAuth2LoginRequestFilter}.
+ * <p>
+ * It takes the same init parameters as {@link OAuth2LoginRequestFilter}.
+ */
+public class OAuth2RequestFilter implements Filter {
+	
+	private final OAuth2ServiceAccountFilter serviceAccountFilter = new OAuth2ServiceAccountFilter();
+	
+	private final OAuth2LoginRequestFilter loginRequestFilter = new OAuth2LoginRequestFilter();
+	
+	private RequestClassifier classifier;
+	
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		serviceAccountFilter.init(filterConfig);
+		loginRequestFilter.init(filterConfig);
+		classifier = new RequestClassifier(filterConfig.getInitParameter("servletPaths"),
+		        filterConfig.getInitParameter("requestURIs"), filterConfig.getInitParameter("logoutPaths"),
+		        filterConfig.getInitParameter("apiPaths"));
+	}
+	
+	@Override
+	public void destroy() {
+		serviceAccountFilter.destroy();
+		loginRequestFilter.destroy();
+	}
+	
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+	        ServletException {
+		if (!(request instanceof HttpServletRequest)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		String token = OAuth2ServiceAccountFilter.getToken(httpRequest);
+		RequestClass requestClass = classifier.classify(httpRequest, token);
+		if (token != null && (requestClass == RequestClass.BEARER_API || requestClass == RequestClass.EXEMPT)) {
+			serviceAccountFilter.authenticate(token);
+		}
+		loginRequestFilter.filter(requestClass, httpRequest, (HttpServletResponse) response, chain);
+	}
+}
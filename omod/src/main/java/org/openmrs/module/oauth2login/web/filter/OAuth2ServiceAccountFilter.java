@@ -13,6 +13,7 @@ import static org.openmrs.module.oauth2login.OAuth2LoginConstants.OAUTH_PROP_BEA
 
 import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -24,10 +25,13 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.lang3.StringUtils;
 import org.jose4j.json.JsonUtil;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
 import org.openmrs.module.oauth2login.authscheme.OAuth2TokenCredentials;
 import org.openmrs.module.oauth2login.authscheme.UserInfo;
 import org.openmrs.module.oauth2login.web.JwtUtils;
+import org.openmrs.module.oauth2login.web.RevokedTokens;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,6 +50,12 @@ public class OAuth2ServiceAccountFilter implements Filter {
 	
 	public static final String SCHEME_BEARER = "Bearer";
 	
+	private static final long LOOKUP_RETRY_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	
+	private volatile RevokedTokens revokedTokens;
+	
+	private volatile long revokedTokensRetryAt;
+	
 	/**
 	 * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
 	 */
@@ -63,59 +73,96 @@ public class OAuth2ServiceAccountFilter implements Filter {
 	}
 	
 	/**
-	 * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest,
-	 *      javax.servlet.ServletResponse, javax.servlet.FilterChain)
+	 * @param httpRequest The HTTP request.
+	 * @return The token from the bearer authorization header or the JWT assertion header, or null if
+	 *         there is none. Other authorization schemes, such as Basic, carry no token.
 	 */
-	@Override
-	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
-	        ServletException {
-		
-		if (request instanceof HttpServletRequest) {
-			//TODO should we limit this authentication mechanism to webservice calls only?
-			HttpServletRequest httpRequest = (HttpServletRequest) request;
-			String headerValue = httpRequest.getHeader(HEADER_NAME_AUTH);
-			String token;
-			if (StringUtils.isNotBlank(headerValue)) {
-				token = headerValue.substring(SCHEME_BEARER.length() + 1);
-			} else {
-				token = httpRequest.getHeader(HEADER_NAME_X_JWT_ASSERT);
+	public static String getToken(HttpServletRequest httpRequest) {
+		String headerValue = httpRequest.getHeader(HEADER_NAME_AUTH);
+		if (StringUtils.startsWithIgnoreCase(headerValue, SCHEME_BEARER + " ")) {
+			return StringUtils.trimToNull(headerValue.substring(SCHEME_BEARER.length() + 1));
+		}
+		return httpRequest.getHeader(HEADER_NAME_X_JWT_ASSERT);
+	}
+	
+	/**
+	 * Authenticates the service account of a JWT token, other tokens are ignored. Failures are only
+	 * logged, the API takes care of the unauthenticated requests.
+	 * 
+	 * @param token The token, possibly null.
+	 */
+	public void authenticate(String token) {
+		if (StringUtils.isNotBlank(token)) {
+			if (log.isDebugEnabled()) {
+				log.debug("Found Authorization header on request");
 			}
 			
-			if (StringUtils.isNotBlank(token)) {
-				if (log.isDebugEnabled()) {
-					log.debug("Found Authorization header on request");
-				}
-				
-				String[] parts = token.split("\\.");
-				//Ignore if this is not a JWT token
-				if (parts.length == 3) {
-					try {
-						//for Service Account it's possible to use another property to retrieve the username
-						Properties props = Context.getRegisteredComponent(OAUTH_PROP_BEAN_NAME, Properties.class);
-						String serviceAccountProperty = props.getProperty(UserInfo.PROP_USERNAME_SERVICE_ACCOUNT, null);
-						if (serviceAccountProperty != null) {
-							props = (Properties) props.clone();
-							props.put(UserInfo.PROP_USERNAME, serviceAccountProperty);
-						}
-						
-						Claims claims = JwtUtils.parseAndVerifyToken(token, props);
-						String userInfoJson = JsonUtil.toJson(claims);
-						Context.authenticate(new OAuth2TokenCredentials(new UserInfo(props, userInfoJson), true));
+			String[] parts = token.split("\\.");
+			//Ignore if this is not a JWT token
+			if (parts.length == 3) {
+				try {
+					//for Service Account it's possible to use another property to retrieve the username
+					Properties props = Context.getRegisteredComponent(OAUTH_PROP_BEAN_NAME, Properties.class);
+					String serviceAccountProperty = props.getProperty(UserInfo.PROP_USERNAME_SERVICE_ACCOUNT, null);
+					if (serviceAccountProperty != null) {
+						props = (Properties) props.clone();
+						props.put(UserInfo.PROP_USERNAME, serviceAccountProperty);
 					}
-					catch (Throwable e) {
-						//Ignore and let the API take care of authentication issues
-						log.warn("Failed to authenticate user using oauth token", e);
-					}
-				} else {
-					if (log.isDebugEnabled()) {
-						log.debug("Ignoring non JWT token");
+					
+					Claims claims = JwtUtils.parseAndVerifyToken(token, props);
+					RevokedTokens revokedTokens = getRevokedTokens();
+					if (revokedTokens != null && revokedTokens.isRevoked(claims.getId(), token)) {
+						OAuth2LoginMetrics.increment(RevokedTokens.METRIC_REJECTED);
+						log.warn("Rejected a revoked token, jti: " + claims.getId());
+						return;
 					}
+					String userInfoJson = JsonUtil.toJson(claims);
+					Context.authenticate(new OAuth2TokenCredentials(new UserInfo(props, userInfoJson), true));
+				}
+				catch (Throwable e) {
+					//Ignore and let the API take care of authentication issues
+					log.warn("Failed to authenticate user using oauth token", e);
 				}
 			} else {
 				if (log.isDebugEnabled()) {
-					log.debug("No oauth token specified via supported header names");
+					log.debug("Ignoring non JWT token");
 				}
 			}
+		} else {
+			if (log.isDebugEnabled()) {
+				log.debug("No oauth token specified via supported header names");
+			}
+		}
+	}
+	
+	/**
+	 * Looks up the revoked tokens once they are available, a failed lookup is only retried after
+	 * {@link #LOOKUP_RETRY_INTERVAL} rather than on every request.
+	 */
+	private RevokedTokens getRevokedTokens() {
+		if (revokedTokens == null && System.currentTimeMillis() >= revokedTokensRetryAt) {
+			try {
+				revokedTokens = Context.getRegisteredComponent("oauth2.revokedTokens", RevokedTokens.class);
+			}
+			catch (APIException e) {
+				revokedTokensRetryAt = System.currentTimeMillis() + LOOKUP_RETRY_INTERVAL;
+				log.warn("The token revocations are not available: " + e.getMessage());
+			}
+		}
+		return revokedTokens;
+	}
+	
+	/**
+	 * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest,
+	 *      javax.servlet.ServletResponse, javax.servlet.FilterChain)
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+	        ServletException {
+		
+		if (request instanceof HttpServletRequest) {
+			//TODO should we limit this authentication mechanism to webservice calls only?
+			authenticate(getToken((HttpServletRequest) request));
 		}
 		
 		chain.doFilter(request, response);
@@ -0,0 +1,226 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.context.Context;
+
+/**
+ * Classifies each request once, so that the module's filtering can be dispatched on the outcome.
+ * The paths are looked up in hash tables built once from the filter configuration rather than
+ * compared one by one on each request.
+ */
+public class RequestClassifier {
+	
+	/**
+	 * How a request is handled by the module.
+	 */
+	public enum RequestClass {
+		/**
+		 * Served by the module or explicitly excluded, passed through as is.
+		 */
+		EXEMPT,
+		/**
+		 * A logout of OpenMRS, forwarded to the module's logout.
+		 */
+		LOGOUT,
+		/**
+		 * Carries a bearer token or a JWT assertion for a service account.
+		 */
+		BEARER_API,
+		/**
+		 * Made within an authenticated session.
+		 */
+		SESSION,
+		/**
+		 * Not authenticated, redirected to the module's login.
+		 */
+		LOGIN_REDIRECT
+	}
+	
+	public static final String REST_SESSION_URI = "/ws/rest/v1/session";
+	
+	/**
+	 * The logout endpoints of the legacy UI and of the reference application.
+	 */
+	public static final String DEFAULT_LOGOUT_PATHS = "/logout,/ms/logout";
+	
+	/**
+	 * The REST and FHIR web services.
+	 */
+	public static final String DEFAULT_API_PATHS = "/ws/";
+	
+	private final Set<String> exemptServletPaths;
+	
+	private final Set<String> exemptRequestURIs;
+	
+	private final Set<String> logoutPaths;
+	
+	private final List<String> logoutPathPrefixes;
+	
+	private final List<String> apiPathPrefixes;
+	
+	/**
+	 * @param exemptServletPaths The servlet paths that are not filtered, comma separated.
+	 * @param exemptRequestURIs The request URIs that are not filtered, comma separated.
+	 */
+	public RequestClassifier(String exemptServletPaths, String exemptRequestURIs) {
+		this(exemptServletPaths, exemptRequestURIs, null);
+	}
+	
+	/**
+	 * @param exemptServletPaths The servlet paths that are not filtered, comma separated.
+	 * @param exemptRequestURIs The request URIs that are not filtered, comma separated.
+	 * @param logoutPaths The logout endpoints, comma separated, matched case insensitively against
+	 *            the servlet path and the request URI. A path ending with <code>/*</code> matches
+	 *            everything below it. Defaults to {@link #DEFAULT_LOGOUT_PATHS} when blank.
+	 */
+	public RequestClassifier(String exemptServletPaths, String exemptRequestURIs, String logoutPaths) {
+		this(exemptServletPaths, exemptRequestURIs, logoutPaths, null);
+	}
+	
+	/**
+	 * @param exemptServletPaths The servlet paths that are not filtered, comma separated.
+	 * @param exemptRequestURIs The request URIs that are not filtered, comma separated.
+	 * @param logoutPaths The logout endpoints, comma separated, see
+	 *            {@link #RequestClassifier(String, String, String)}.
+	 * @param apiPaths The prefixes of the request URIs of API endpoints, comma separated. Defaults to
+	 *            {@link #DEFAULT_API_PATHS} when blank.
+	 */
+	public RequestClassifier(String exemptServletPaths, String exemptRequestURIs, String logoutPaths, String apiPaths) {
+		this.exemptServletPaths = toSet(exemptServletPaths);
+		this.exemptRequestURIs = toSet(exemptRequestURIs);
+		
+		Set<String> paths = new HashSet<>();
+		List<String> prefixes = new ArrayList<>();
+		String logoutPathList = StringUtils.defaultIfBlank(logoutPaths, DEFAULT_LOGOUT_PATHS).toLowerCase(Locale.ROOT);
+		for (String path : toSet(logoutPathList)) {
+			if (path.endsWith("/*")) {
+				prefixes.add(StringUtils.removeEnd(path, "*"));
+			} else {
+				paths.add(path);
+			}
+		}
+		this.logoutPaths = Collections.unmodifiableSet(paths);
+		this.logoutPathPrefixes = Collections.unmodifiableList(prefixes);
+		this.apiPathPrefixes = Collections.unmodifiableList(new ArrayList<>(toSet(StringUtils.defaultIfBlank(apiPaths,
+		    DEFAULT_API_PATHS))));
+	}
+	
+	/**
+	 * @param request The HTTP request.
+	 * @param token The bearer token or JWT assertion of the request, possibly null.
+	 * @return The request class.
+	 */
+	public RequestClass classify(HttpServletRequest request, String token) {
+		String servletPath = StringUtils.defaultString(request.getServletPath());
+		String requestURI = getRequestURI(request);
+		if (isExempt(servletPath, requestURI)) {
+			return RequestClass.EXEMPT;
+		}
+		if (isLogout(servletPath, requestURI, request)) {
+			return RequestClass.LOGOUT;
+		}
+		if (StringUtils.isNotBlank(token)) {
+			return RequestClass.BEARER_API;
+		}
+		return Context.isAuthenticated() ? RequestClass.SESSION : RequestClass.LOGIN_REDIRECT;
+	}
+	
+	public boolean isExempt(String servletPath, String requestURI) {
+		return exemptRequestURIs.contains(requestURI) || exemptServletPaths.contains(servletPath);
+	}
+	
+	public boolean isLogout(String servletPath, String requestURI, HttpServletRequest request) {
+		if (isLogoutPath(servletPath.toLowerCase(Locale.ROOT)) || isLogoutPath(requestURI.toLowerCase(Locale.ROOT))) {
+			return true;
+		}
+		//"manual-logout": should be a constant from org.openmrs.module.appui.AppUiConstants
+		//the attribute seems to be used in any case.
+		//The session is not created when there is none, there is nothing to log out of then.
+		HttpSession session = request.getSession(false);
+		return session != null && "true".equals(session.getAttribute("manual-logout"));
+	}
+	
+	private boolean isLogoutPath(String path) {
+		if (logoutPaths.contains(path)) {
+			return true;
+		}
+		for (String prefix : logoutPathPrefixes) {
+			if (path.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Tells API clients apart from browser navigations, the former should be challenged rather than
+	 * redirected to the login page of the identity provider.
+	 * 
+	 * @param request The HTTP request.
+	 * @return true if the request is an XHR, accepts JSON or XML but not HTML, or targets an API path.
+	 */
+	public boolean isApiRequest(HttpServletRequest request) {
+		if ("XMLHttpRequest".equalsIgnoreCase(request.getHeader("X-Requested-With"))) {
+			return true;
+		}
+		String accept = StringUtils.lowerCase(request.getHeader("Accept"), Locale.ROOT);
+		if (accept != null && !accept.contains("text/html") && (accept.contains("json") || accept.contains("xml"))) {
+			return true;
+		}
+		String requestURI = getRequestURI(request);
+		for (String prefix : apiPathPrefixes) {
+			if (requestURI.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @param request The HTTP request.
+	 * @return true if the request ends a REST web services session.
+	 */
+	public static boolean isRestSessionDelete(HttpServletRequest request) {
+		return REST_SESSION_URI.equals(getRequestURI(request)) && "DELETE".equals(request.getMethod());
+	}
+	
+	/**
+	 * @param request The HTTP request.
+	 * @return The request URI without the context path.
+	 */
+	public static String getRequestURI(HttpServletRequest request) {
+		return StringUtils.removeStart(StringUtils.defaultString(request.getRequestURI()), request.getContextPath());
+	}
+	
+	private static Set<String> toSet(String commaSeparated) {
+		if (StringUtils.isBlank(commaSeparated)) {
+			return Collections.emptySet();
+		}
+		Set<String> set = new HashSet<>();
+		for (String value : commaSeparated.split(",")) {
+			if (StringUtils.isNotBlank(value)) {
+				set.add(value.trim());
+			}
+		}
+		return Collections.unmodifiableSet(set);
+	}
+}
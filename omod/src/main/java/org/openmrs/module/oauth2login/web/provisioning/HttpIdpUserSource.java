@@ -0,0 +1,205 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.oauth2login.web.provisioning;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.module.oauth2login.authscheme.UserInfo;
+import org.openmrs.module.oauth2login.provisioning.IdpUserSource;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestOperations;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.PathNotFoundException;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONValue;
+
+/**
+ * Pages through the users of an identity provider admin endpoint, eg. Keycloak's
+ * <code>/admin/realms/{realm}/users</code>.
+ * <p>
+ * Two paging modes are supported:
+ * <ul>
+ * <li>By offset (default): the offset and page size are sent as query parameters, named
+ * <code>first</code> and <code>max</code> by default, until a page is not full.</li>
+ * <li>By link: when <code>userSync.nextPagePath</code> is set, it is the JSON path to the URL of the
+ * next page in the response.</li>
+ * </ul>
+ * When <code>userSync.updatedSinceParam</code> is set the watermark is sent as an ISO-8601 instant
+ * with that query parameter name, otherwise all users are fetched at each run.
+ * <p>
+ * Admin endpoints such as Keycloak's do not list the roles of the users. When
+ * <code>userSync.rolesUrl</code> is set, eg.
+ * <code>.../users/{id}/role-mappings/realm/composite</code>, the role names of each user are
+ * fetched from it and added to the user under the key of the roles mapping. The <code>{id}</code> placeholder is replaced by the value at
+ * <code>userSync.userIdPath</code> in the user, <code>$.id</code> by default, and the role names
+ * are read at <code>userSync.rolesPath</code>, <code>$[*].name</code> by default.
+ */
+public class HttpIdpUserSource implements IdpUserSource {
+	
+	public static final String PROP_USERS_URL = "userSync.usersUrl";
+	
+	public static final String PROP_USERS_PATH = "userSync.usersPath";
+	
+	public static final String PROP_NEXT_PAGE_PATH = "userSync.nextPagePath";
+	
+	public static final String PROP_UPDATED_SINCE_PARAM = "userSync.updatedSinceParam";
+	
+	public static final String PROP_OFFSET_PARAM = "userSync.offsetParam";
+	
+	public static final String PROP_PAGE_SIZE_PARAM = "userSync.pageSizeParam";
+	
+	public static final String PROP_PAGE_SIZE = "userSync.pageSize";
+	
+	public static final String PROP_ROLES_URL = "userSync.rolesUrl";
+	
+	public static final String PROP_USER_ID_PATH = "userSync.userIdPath";
+	
+	public static final String PROP_ROLES_PATH = "userSync.rolesPath";
+	
+	private final RestOperations restTemplate;
+	
+	private final String usersUrl;
+	
+	private final String usersPath;
+	
+	private final String nextPagePath;
+	
+	private final String updatedSinceParam;
+	
+	private final String offsetParam;
+	
+	private final String pageSizeParam;
+	
+	private final int pageSize;
+	
+	private final String rolesUrl;
+	
+	private final String userIdPath;
+	
+	private final String rolesPath;
+	
+	private final String rolesKey;
+	
+	/**
+	 * @param props The OAuth 2 properties, with the mappings of the reconciled users.
+	 * @param restTemplate The REST template authenticated with the IdP admin API.
+	 */
+	public HttpIdpUserSource(Properties props, RestOperations restTemplate) {
+		this.restTemplate = restTemplate;
+		this.usersUrl = props.getProperty(PROP_USERS_URL);
+		this.usersPath = props.getProperty(PROP_USERS_PATH, "$");
+		this.nextPagePath = StringUtils.trimToNull(props.getProperty(PROP_NEXT_PAGE_PATH));
+		this.updatedSinceParam = StringUtils.trimToNull(props.getProperty(PROP_UPDATED_SINCE_PARAM));
+		this.offsetParam = props.getProperty(PROP_OFFSET_PARAM, "first");
+		this.pageSizeParam = props.getProperty(PROP_PAGE_SIZE_PARAM, "max");
+		this.pageSize = NumberUtils.toInt(props.getProperty(PROP_PAGE_SIZE), 100);
+		this.rolesUrl = StringUtils.trimToNull(props.getProperty(PROP_ROLES_URL));
+		this.userIdPath = props.getProperty(PROP_USER_ID_PATH, "$.id");
+		this.rolesPath = props.getProperty(PROP_ROLES_PATH, "$[*].name");
+		this.rolesKey = props.getProperty(UserInfo.PROP_ROLES, "roles");
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public Page getUsers(Instant updatedSince, String pageToken) throws IOException {
+		URI uri;
+		int offset = 0;
+		if (nextPagePath != null && pageToken != null) {
+			uri = URI.create(pageToken);
+		} else {
+			UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(usersUrl);
+			if (updatedSinceParam != null && updatedSince != null) {
+				builder.queryParam(updatedSinceParam, updatedSince.toString());
+			}
+			if (nextPagePath == null) {
+				offset = NumberUtils.toInt(pageToken, 0);
+				builder.queryParam(offsetParam, offset).queryParam(pageSizeParam, pageSize);
+			}
+			uri = builder.build().encode().toUri();
+		}
+		
+		String json;
+		try {
+			json = restTemplate.getForObject(uri, String.class);
+		}
+		catch (RestClientException e) {
+			throw new IOException("The users could not be fetched from " + uri, e);
+		}
+		
+		List<Object> users = JsonPath.read(json, usersPath);
+		List<String> page = new ArrayList<>(users.size());
+		for (Object user : users) {
+			if (rolesUrl != null && user instanceof Map) {
+				((Map<String, Object>) user).put(rolesKey, getRoleNames(user));
+			}
+			page.add(JSONValue.toJSONString(user));
+		}
+		
+		String next;
+		if (nextPagePath != null) {
+			next = readOrNull(json, nextPagePath);
+		} else {
+			next = users.size() < pageSize ? null : String.valueOf(offset + users.size());
+		}
+		return new Page(page, StringUtils.trimToNull(next));
+	}
+	
+	private JSONArray getRoleNames(Object user) throws IOException {
+		String id = readOrNull(user, userIdPath);
+		if (id == null) {
+			throw new IOException("The roles cannot be fetched for a user without " + userIdPath + ": "
+			        + JSONValue.toJSONString(user));
+		}
+		URI uri = UriComponentsBuilder.fromHttpUrl(rolesUrl).buildAndExpand(id).encode().toUri();
+		
+		String json;
+		try {
+			json = restTemplate.getForObject(uri, String.class);
+		}
+		catch (RestClientException e) {
+			throw new IOException("The roles could not be fetched from " + uri, e);
+		}
+		
+		JSONArray roleNames = new JSONArray();
+		List<Object> roles = JsonPath.read(json, rolesPath);
+		for (Object role : roles) {
+			if (role != null) {
+				roleNames.add(role.toString());
+			}
+		}
+		return roleNames;
+	}
+	
+	private static String readOrNull(Object json, String path) {
+		try {
+			Object value;
+			if (json instanceof String) {
+				value = JsonPath.read((String) json, path);
+			} else {
+				value = JsonPath.read(json, path);
+			}
+			return value == null ? null : value.toString();
+		}
+		catch (PathNotFoundException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package org.openmrs.module.oauth2login.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.oauth2.client.token.DefaultAccessTokenRequest;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+public class CookieOAuth2ClientContextTest {
+	
+	private static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+	
+	private AtomicLong now = new AtomicLong(1_000_000);
+	
+	private Properties props;
+	
+	@Before
+	public void setup() {
+		props = new Properties();
+		props.setProperty(CookieOAuth2ClientContext.PROP_ENABLED, "true");
+		props.setProperty(CookieOAuth2ClientContext.PROP_KEY, KEY);
+		bind(new MockHttpServletRequest());
+	}
+	
+	@After
+	public void tearDown() {
+		RequestContextHolder.resetRequestAttributes();
+	}
+	
+	@Test
+	public void removePreservedState_shouldRestoreTheStateOnAnotherNode() {
+		// setup
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setContextPath("/openmrs");
+		MockHttpServletResponse response = bind(request);
+		new CookieOAuth2ClientContext(null, props, now::get).setPreservedState("aBc123", "https://openmrs/oauth2login");
+		Cookie cookie = response.getCookie(CookieOAuth2ClientContext.COOKIE_PREFIX + "aBc123");
+		MockHttpServletRequest callback = new MockHttpServletRequest();
+		callback.setCookies(cookie);
+		response = bind(callback);
+		
+		// replay
+		Object state = new CookieOAuth2ClientContext(null, props, now::get).removePreservedState("aBc123");
+		
+		// verify
+		assertEquals("https://openmrs/oauth2login", state);
+		assertEquals("/openmrs/oauth2login", cookie.getPath());
+		assertEquals(300, cookie.getMaxAge());
+		assertTrue(cookie.isHttpOnly());
+		assertNotEquals("https://openmrs/oauth2login", cookie.getValue());
+		assertEquals(0, response.getCookie(cookie.getName()).getMaxAge());
+		assertNull(request.getSession(false));
+	}
+	
+	@Test
+	public void removePreservedState_shouldRejectAnExpiredState() {
+		// setup
+		CookieOAuth2ClientContext context = new CookieOAuth2ClientContext(null, props, now::get);
+		Cookie cookie = new Cookie(CookieOAuth2ClientContext.COOKIE_PREFIX + "aBc123",
+		        context.encrypt(CookieOAuth2ClientContext.COOKIE_PREFIX + "aBc123", now.get() + "\n/"));
+		MockHttpServletRequest callback = new MockHttpServletRequest();
+		callback.setCookies(cookie);
+		bind(callback);
+		
+		// replay
+		Object state = context.removePreservedState("aBc123");
+		
+		// verify
+		assertNull(state);
+	}
+	
+	@Test
+	public void removePreservedState_shouldRejectTheStateOfAnotherStateKey() {
+		// setup
+		CookieOAuth2ClientContext context = new CookieOAuth2ClientContext(null, props, now::get);
+		Cookie cookie = new Cookie(CookieOAuth2ClientContext.COOKIE_PREFIX + "aBc123",
+		        context.encrypt(CookieOAuth2ClientContext.COOKIE_PREFIX + "xYz789", (now.get() + 1000) + "\n/"));
+		MockHttpServletRequest callback = new MockHttpServletRequest();
+		callback.setCookies(cookie);
+		bind(callback);
+		
+		// replay
+		Object state = context.removePreservedState("aBc123");
+		
+		// verify
+		assertNull(state);
+	}
+	
+	@Test
+	public void removePreservedState_shouldRejectAStateEncryptedWithAnotherKey() {
+		// setup
+		Properties other = new Properties();
+		CookieOAuth2ClientContext context = new CookieOAuth2ClientContext(null, other, now::get);
+		Cookie cookie = new Cookie(CookieOAuth2ClientContext.COOKIE_PREFIX + "aBc123",
+		        context.encrypt(CookieOAuth2ClientContext.COOKIE_PREFIX + "aBc123", (now.get() + 1000) + "\n/"));
+		MockHttpServletRequest callback = new MockHttpServletRequest();
+		callback.setCookies(cookie);
+		bind(callback);
+		
+		// replay
+		Object state = new CookieOAuth2ClientContext(null, props, now::get).removePreservedState("aBc123");
+		
+		// verify
+		assertNull(state);
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void constructor_shouldRejectAnInvalidKey() {
+		props.setProperty(CookieOAuth2ClientContext.PROP_KEY, Base64.getEncoder().encodeToString(new byte[20]));
+		
+		new CookieOAuth2ClientContext(null, props, now::get);
+	}
+	
+	@Test
+	public void removePreservedState_shouldReturnNullWithoutCookie() {
+		assertNull(new CookieOAuth2ClientContext(null, props, now::get).removePreservedState("aBc123"));
+	}
+	
+	@Test
+	public void getAccessToken_shouldOnlyKeepTheAccessTokenForTheRequest() {
+		// setup
+		CookieOAuth2ClientContext context = new CookieOAuth2ClientContext(new DefaultAccessTokenRequest(), props, now::get);
+		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken("token");
+		
+		// replay
+		context.setAccessToken(token);
+		
+		// verify
+		assertEquals(token, context.getAccessToken());
+		bind(new MockHttpServletRequest());
+		assertNull(context.getAccessToken());
+	}
+	
+	private static MockHttpServletResponse bind(MockHttpServletRequest request) {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request, response));
+		return response;
+	}
+}
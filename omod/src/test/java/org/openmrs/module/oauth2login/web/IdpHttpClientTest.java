@@ -0,0 +1,188 @@
+package org.openmrs.module.oauth2login.web;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.APIException;
+import org.openmrs.module.oauth2login.CircuitBreaker;
+import org.openmrs.module.oauth2login.CircuitBreakerOpenException;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class IdpHttpClientTest {
+	
+	private HttpServer server;
+	
+	private ExecutorService serverExecutor;
+	
+	private IdpHttpClient client;
+	
+	private String baseUrl;
+	
+	private final AtomicLong now = new AtomicLong();
+	
+	private final AtomicInteger hits = new AtomicInteger();
+	
+	private volatile int status = 500;
+	
+	@Before
+	public void setup() throws Exception {
+		OAuth2LoginMetrics.reset();
+		
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.createContext("/jwks", exchange -> respond(exchange, 200, "{\"keys\":[]}"));
+		server.createContext("/missing", exchange -> respond(exchange, 404, ""));
+		server.createContext("/flaky", exchange -> {
+			hits.incrementAndGet();
+			respond(exchange, status, "{}");
+		});
+		server.createContext("/slow", exchange -> {
+			hits.incrementAndGet();
+			try {
+				Thread.sleep(1000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			respond(exchange, 200, "{}");
+		});
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort();
+		
+		Properties props = new Properties();
+		props.setProperty(IdpHttpClient.PROP_MAX_TOTAL, "2");
+		props.setProperty(IdpHttpClient.PROP_MAX_PER_ROUTE, "2");
+		props.setProperty(IdpHttpClient.PROP_READ_TIMEOUT, "200");
+		props.setProperty(IdpHttpClient.PROP_FAILURE_THRESHOLD, "2");
+		props.setProperty(IdpHttpClient.PROP_OPEN_DURATION, "30000");
+		client = new IdpHttpClient(props, now::get);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+	
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+	
+	@Test
+	public void getJson_shouldReuseThePooledConnections() throws Exception {
+		// replay
+		for (int i = 0; i < 5; i++) {
+			assertEquals("{\"keys\":[]}", client.getJson(baseUrl + "/jwks"));
+		}
+		
+		// verify
+		assertEquals(5L, OAuth2LoginMetrics.count(IdpHttpClient.METRIC_REQUESTS));
+		Map<String, Number> metrics = OAuth2LoginMetrics.snapshot();
+		assertEquals(0, metrics.get("http.pool.leased").intValue());
+		assertEquals(2, metrics.get("http.pool.max").intValue());
+		assertThat(metrics.get("http.pool.available").intValue(), greaterThanOrEqualTo(1));
+	}
+	
+	@Test(expected = APIException.class)
+	public void getJson_shouldFailOnUnexpectedStatus() throws Exception {
+		client.getJson(baseUrl + "/missing");
+	}
+	
+	@Test
+	public void getJson_shouldFailFastOnceTheEndpointKeepsTimingOut() throws Exception {
+		// setup
+		for (int i = 0; i < 2; i++) {
+			try {
+				client.getJson(baseUrl + "/slow");
+				fail("The call should have timed out");
+			}
+			catch (SocketTimeoutException e) {
+				// expected
+			}
+		}
+		
+		// replay
+		long start = System.nanoTime();
+		try {
+			client.getJson(baseUrl + "/slow");
+			fail("The call should have been rejected");
+		}
+		catch (CircuitBreakerOpenException e) {
+			// expected
+		}
+		
+		// verify
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+		assertEquals(2, hits.get());
+		assertEquals("{\"keys\":[]}", client.getJson(baseUrl + "/jwks"));
+	}
+	
+	@Test
+	public void getRequestFactory_shouldGuardTheRestTemplateCallsAndProbeOnceTheOpenDurationHasElapsed() throws Exception {
+		// setup
+		RestTemplate restTemplate = new RestTemplate(client.getRequestFactory());
+		URI uri = new URI(baseUrl + "/flaky");
+		for (int i = 0; i < 2; i++) {
+			try {
+				restTemplate.getForObject(uri, String.class);
+				fail("The call should have failed");
+			}
+			catch (HttpServerErrorException e) {
+				// expected
+			}
+		}
+		
+		// replay
+		try {
+			restTemplate.getForObject(uri, String.class);
+			fail("The call should have been rejected");
+		}
+		catch (ResourceAccessException e) {
+			assertTrue(CircuitBreakerOpenException.isCause(e));
+		}
+		status = 200;
+		now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+		
+		// verify
+		assertEquals(2, hits.get());
+		assertEquals("{}", restTemplate.getForObject(uri, String.class));
+		assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitBreaker(uri).getState());
+		String prefix = "circuitBreaker.localhost:" + server.getAddress().getPort() + "/flaky.";
+		assertEquals(1L, OAuth2LoginMetrics.count(prefix + "opened"));
+		assertEquals(1L, OAuth2LoginMetrics.count(prefix + "rejected"));
+		assertEquals(1L, OAuth2LoginMetrics.count(prefix + "halfOpened"));
+		assertEquals(1L, OAuth2LoginMetrics.count(prefix + "closed"));
+	}
+}
@@ -2,8 +2,12 @@ package org.openmrs.module.oauth2login.web;
 
 import static io.jsonwebtoken.SignatureAlgorithm.RS256;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.openmrs.module.oauth2login.web.JwtUtils.OAUTH_PROP_KEY;
 import static org.openmrs.module.oauth2login.web.JwtUtils.OAUTH_PROP_KEYS_URL;
@@ -15,6 +19,7 @@ import java.nio.charset.StandardCharsets;
 import java.security.Key;
 import java.security.KeyPair;
 import java.security.PublicKey;
+import java.util.Base64;
 import java.util.Date;
 import java.util.Properties;
 
@@ -23,12 +28,14 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.hamcrest.Matchers;
 import org.jose4j.jwk.JsonWebKeySet;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.openmrs.api.APIException;
@@ -70,6 +77,13 @@ public class JwtUtilsTest {
 		Whitebox.setInternalState(JwtUtils.class, PublicKey.class, (Object) null);
 		Whitebox.setInternalState(JwtUtils.class, JsonWebKeySet.class, (Object) null);
 		Whitebox.setInternalState(JwtUtils.class, "keysInitialized", false);
+		Whitebox.setInternalState(JwtUtils.class, "keySettings", (Object) null);
+		Whitebox.setInternalState(JwtUtils.class, "keysId", (Object) null);
+	}
+	
+	@After
+	public void tearDown() {
+		JwtUtils.setSharedState(null);
 	}
 	
 	@Test
@@ -115,6 +129,18 @@ public class JwtUtilsTest {
 		assertEquals(expectedKey, JwtUtils.getPublicKey(key, mockProps));
 	}
 	
+	@Test
+	public void getPublicKey_shouldLoadTheKeyAgainWhenTheKeySettingsChange() throws Exception {
+		PublicKey firstKey = Keys.keyPairFor(RS256).getPublic();
+		PublicKey secondKey = Keys.keyPairFor(RS256).getPublic();
+		when(mockProps.getProperty(OAUTH_PROP_KEY)).thenReturn(Base64.getEncoder().encodeToString(firstKey.getEncoded()));
+		assertEquals(firstKey, JwtUtils.getPublicKey(null, mockProps));
+		
+		when(mockProps.getProperty(OAUTH_PROP_KEY)).thenReturn(Base64.getEncoder().encodeToString(secondKey.getEncoded()));
+		
+		assertEquals(secondKey, JwtUtils.getPublicKey(null, mockProps));
+	}
+	
 	@Test
 	public void parseAndVerifyToken_shouldFailIfNoPublicKeyIsSet() throws Exception {
 		Whitebox.setInternalState(JwtUtils.class, "keysInitialized", true);
@@ -201,4 +227,45 @@ public class JwtUtilsTest {
 		JwtUtils.parseAndVerifyToken(jwtToken, null);
 	}
 	
+	@Test
+	public void parseAndVerifyToken_shouldFailForAnAlreadyVerifiedTokenWithAFutureNotBeforeDate() throws Exception {
+		Date notBeforeDate = DateUtils.addMinutes(new Date(), 2);
+		String jwtToken = Jwts.builder().signWith(Keys.keyPairFor(RS256).getPrivate(), RS256).setSubject("tester")
+		        .setNotBefore(notBeforeDate).setExpiration(DateUtils.addMinutes(notBeforeDate, 1)).compact();
+		SharedVerificationState sharedState = mock(SharedVerificationState.class);
+		when(sharedState.isVerified("keys1", jwtToken)).thenReturn(true);
+		JwtUtils.setSharedState(sharedState);
+		Whitebox.setInternalState(JwtUtils.class, "keysId", "keys1");
+		ee.expect(PrematureJwtException.class);
+		
+		JwtUtils.parseAndVerifyToken(jwtToken, null);
+	}
+	
+	@Test
+	public void parseAndVerifyToken_shouldVerifyAgainTheTokensVerifiedWithFormerKeys() throws Exception {
+		KeyPair firstKeyPair = Keys.keyPairFor(RS256);
+		PublicKey secondKey = Keys.keyPairFor(RS256).getPublic();
+		String jwtToken = Jwts.builder().signWith(firstKeyPair.getPrivate(), RS256).setSubject("tester")
+		        .setExpiration(DateUtils.addMinutes(new Date(), 2)).compact();
+		SharedVerificationState sharedState = mock(SharedVerificationState.class);
+		JwtUtils.setSharedState(sharedState);
+		when(mockProps.getProperty(OAUTH_PROP_KEY)).thenReturn(
+		    Base64.getEncoder().encodeToString(firstKeyPair.getPublic().getEncoded()));
+		JwtUtils.parseAndVerifyToken(jwtToken, mockProps);
+		ArgumentCaptor<String> firstKeys = ArgumentCaptor.forClass(String.class);
+		verify(sharedState).verified(firstKeys.capture(), eq(jwtToken), any(Claims.class));
+		when(sharedState.isVerified(firstKeys.getValue(), jwtToken)).thenReturn(true);
+		
+		when(mockProps.getProperty(OAUTH_PROP_KEY)).thenReturn(Base64.getEncoder().encodeToString(secondKey.getEncoded()));
+		try {
+			JwtUtils.parseAndVerifyToken(jwtToken, mockProps);
+			Assert.fail("The token signed with the former key was accepted");
+		}
+		catch (SignatureException e) {
+			// expected
+		}
+		
+		verify(sharedState).keysChanged();
+	}
+	
 }
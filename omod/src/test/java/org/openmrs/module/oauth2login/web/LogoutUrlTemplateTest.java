@@ -0,0 +1,96 @@
+package org.openmrs.module.oauth2login.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class LogoutUrlTemplateTest {
+	
+	private static final String LOGOUT_URI = "http://idp.com/logout?id_token_hint=[token]&post_logout_redirect_uri=http://openmrs.org";
+	
+	private static Properties props(String logoutUri) {
+		Properties props = new Properties();
+		props.setProperty("clientId", "openmrs");
+		if (logoutUri != null) {
+			props.setProperty(LogoutUrlTemplate.PROP_LOGOUT_URI, logoutUri);
+		}
+		return props;
+	}
+	
+	@Test
+	public void build_shouldFillTheTokenSlotAndEncodeTheQuery() throws Exception {
+		LogoutUrlTemplate template = new LogoutUrlTemplate(props(LOGOUT_URI));
+		
+		assertTrue(template.hasTokenSlot());
+		assertEquals("http://idp.com/logout?id_token_hint=my.id.token&post_logout_redirect_uri=http%3A%2F%2Fopenmrs.org",
+		    template.build("my.id.token"));
+	}
+	
+	@Test
+	public void build_shouldEncodeTheTokenAsTheEncodedTemplateWould() throws Exception {
+		LogoutUrlTemplate template = new LogoutUrlTemplate(props(LOGOUT_URI));
+		
+		// the token is URL encoded when it replaces the slot, and once more with the rest of the query
+		assertEquals("http://idp.com/logout?id_token_hint=a%252Fb&post_logout_redirect_uri=http%3A%2F%2Fopenmrs.org",
+		    template.build("a/b"));
+	}
+	
+	@Test
+	public void build_shouldFallbackToTheClientIdWithoutToken() throws Exception {
+		LogoutUrlTemplate template = new LogoutUrlTemplate(props(LOGOUT_URI));
+		
+		String expected = "http://idp.com/logout?client_id=openmrs&post_logout_redirect_uri=http%3A%2F%2Fopenmrs.org";
+		assertEquals(expected, template.build(null));
+		assertEquals(expected, template.build(""));
+	}
+	
+	@Test
+	public void build_shouldNotEncodeTheUrlIfDisabled() throws Exception {
+		Properties props = props(LOGOUT_URI);
+		props.setProperty(LogoutUrlTemplate.PROP_ENCODE_DISABLED, "true");
+		LogoutUrlTemplate template = new LogoutUrlTemplate(props);
+		
+		assertEquals("http://idp.com/logout?id_token_hint=a%2Fb&post_logout_redirect_uri=http://openmrs.org",
+		    template.build("a/b"));
+	}
+	
+	@Test
+	public void build_shouldEncodeTheTokenOnceOutsideOfTheQuery() throws Exception {
+		LogoutUrlTemplate template = new LogoutUrlTemplate(props("https://idp.com/[token]/logout?id_token_hint=[token]"));
+		
+		assertEquals("https://idp.com/a%2Fb/logout?id_token_hint=a%252Fb", template.build("a/b"));
+	}
+	
+	@Test
+	public void build_shouldReturnTheLogoutUriWithoutTokenSlot() throws Exception {
+		LogoutUrlTemplate template = new LogoutUrlTemplate(props("https://www.google.com/accounts/Logout"));
+		
+		assertFalse(template.hasTokenSlot());
+		assertEquals("https://www.google.com/accounts/Logout", template.build("ignored"));
+	}
+	
+	@Test
+	public void build_shouldReturnNullWithoutLogoutUri() throws Exception {
+		LogoutUrlTemplate template = new LogoutUrlTemplate(props(null));
+		
+		assertFalse(template.hasTokenSlot());
+		assertNull(template.build("ignored"));
+	}
+	
+	@Test
+	public void get_shouldCompileTheTemplateOncePerProperties() {
+		Properties props = props(LOGOUT_URI);
+		
+		LogoutUrlTemplate template = LogoutUrlTemplate.get(props);
+		
+		assertSame(template, LogoutUrlTemplate.get(props));
+		assertNotSame(template, LogoutUrlTemplate.get(props(LOGOUT_URI)));
+	}
+}
@@ -0,0 +1,156 @@
+package org.openmrs.module.oauth2login.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RevokedTokensTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private long now = 1000;
+	
+	private final RevokedTokens revokedTokens = new RevokedTokens(new Properties(), () -> now);
+	
+	@Test
+	public void isRevoked_shouldMatchTheRevokedJtis() {
+		// setup
+		revokedTokens.revokeJti("jti1", 2000);
+		
+		// verify
+		assertTrue(revokedTokens.isRevoked("jti1", "a.b.c"));
+		assertFalse(revokedTokens.isRevoked("jti2", "a.b.c"));
+	}
+	
+	@Test
+	public void isRevoked_shouldMatchTheRevokedTokensWithoutJtiByDigest() {
+		// setup
+		revokedTokens.revokeToken("a.b.c", 2000);
+		
+		// verify
+		assertTrue(revokedTokens.isRevoked(null, "a.b.c"));
+		assertFalse(revokedTokens.isRevoked(null, "a.b.d"));
+	}
+	
+	@Test
+	public void isRevoked_shouldRemainExactBeyondTheExpectedNumberOfTokens() {
+		// setup
+		for (int i = 0; i < 30000; i++) {
+			revokedTokens.revokeJti("jti" + i, 2000);
+		}
+		
+		// verify
+		for (int i = 0; i < 30000; i++) {
+			assertTrue(revokedTokens.isRevoked("jti" + i, null));
+		}
+		for (int i = 0; i < 30000; i++) {
+			assertFalse(revokedTokens.isRevoked("other" + i, null));
+		}
+	}
+	
+	@Test
+	public void purgeExpired_shouldDropTheEntriesOfExpiredTokens() {
+		// setup
+		revokedTokens.revokeJti("jti1", 1500);
+		revokedTokens.revokeJti("jti2", 2500);
+		
+		// replay
+		now = 2000;
+		int purged = revokedTokens.purgeExpired();
+		
+		// verify
+		assertEquals(1, purged);
+		assertEquals(1, revokedTokens.size());
+		assertFalse(revokedTokens.isRevoked("jti1", null));
+		assertTrue(revokedTokens.isRevoked("jti2", null));
+	}
+	
+	@Test
+	public void revokeJti_shouldIgnoreTokensThatHaveAlreadyExpired() {
+		revokedTokens.revokeJti("jti1", 1000);
+		
+		assertEquals(0, revokedTokens.size());
+	}
+	
+	@Test
+	public void load_shouldReadTheRevocationsOfAFile() throws Exception {
+		// setup
+		File file = folder.newFile("revoked.txt");
+		String content = "# revoked after the incident\njti1 2000\nsha256:"
+		        + RevokedTokens.digest("a.b.c").toUpperCase() + " 2000\ninvalid\n";
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		
+		// replay
+		int count = revokedTokens.load(file.toPath());
+		
+		// verify
+		assertEquals(2, count);
+		assertTrue(revokedTokens.isRevoked("jti1", null));
+		assertTrue(revokedTokens.isRevoked(null, "a.b.c"));
+	}
+	
+	@Test
+	public void persistJti_shouldAppendTheRevocationToTheFile() throws Exception {
+		// setup
+		File file = folder.newFile("revoked.txt");
+		Files.write(file.toPath(), "jti1 2000".getBytes(StandardCharsets.UTF_8));
+		RevokedTokens revokedTokens = new RevokedTokens(new Properties(), () -> now, file.toPath());
+		
+		// replay
+		boolean persisted = revokedTokens.persistJti("jti2", 2000) && revokedTokens.persistToken("a.b.c", 2000);
+		
+		// verify
+		assertTrue(persisted);
+		assertTrue(revokedTokens.isRevoked("jti2", null));
+		RevokedTokens restarted = new RevokedTokens(new Properties(), () -> now);
+		assertEquals(3, restarted.load(file.toPath()));
+		assertTrue(restarted.isRevoked("jti1", null));
+		assertTrue(restarted.isRevoked("jti2", null));
+		assertTrue(restarted.isRevoked(null, "a.b.c"));
+	}
+	
+	@Test
+	public void persistJti_shouldOnlyRevokeInMemoryWithoutFile() throws Exception {
+		// replay
+		boolean persisted = revokedTokens.persistJti("jti1", 2000);
+		
+		// verify
+		assertFalse(persisted);
+		assertTrue(revokedTokens.isRevoked("jti1", null));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void persistJti_shouldRejectAJtiWithWhitespace() throws Exception {
+		revokedTokens.persistJti("jti1 2000\njti2", 2000);
+	}
+	
+	@Test
+	public void bloomFilter_shouldHaveAFalsePositiveRateAroundOnePercentAtCapacity() {
+		// setup
+		RevokedTokens.BloomFilter bloom = new RevokedTokens.BloomFilter(10000);
+		for (int i = 0; i < 10000; i++) {
+			bloom.put(1L, "jti" + i);
+		}
+		
+		// replay
+		int falsePositives = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (bloom.mightContain(1L, "other" + i)) {
+				falsePositives++;
+			}
+		}
+		
+		// verify
+		assertTrue("false positives: " + falsePositives, falsePositives < 2000);
+	}
+}
@@ -0,0 +1,147 @@
+package org.openmrs.module.oauth2login.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.oauth2login.OAuth2LoginMetrics;
+import org.springframework.mock.web.MockHttpSession;
+
+public class SessionExpiryTrackerTest {
+	
+	private static final long IDLE_TIME = TimeUnit.SECONDS.toMillis(300);
+	
+	private AtomicLong offset = new AtomicLong();
+	
+	private SessionExpiryTracker tracker;
+	
+	@Before
+	public void setup() {
+		Properties props = new Properties();
+		props.setProperty(SessionExpiryTracker.PROP_ENABLED, "true");
+		tracker = new SessionExpiryTracker(props, () -> System.currentTimeMillis() + offset.get());
+	}
+	
+	@Test
+	public void sweep_shouldEvictAnIdleSessionWithAnExpiredToken() {
+		// setup
+		MockHttpSession session = new MockHttpSession();
+		tracker.track(session, now() + 1000);
+		offset.addAndGet(IDLE_TIME + 1000);
+		long evicted = OAuth2LoginMetrics.count(SessionExpiryTracker.METRIC_EVICTED);
+		
+		// replay
+		int count = tracker.sweep();
+		
+		// verify
+		assertEquals(1, count);
+		assertTrue(session.isInvalid());
+		assertEquals(0, tracker.size());
+		assertEquals(evicted + 1, OAuth2LoginMetrics.count(SessionExpiryTracker.METRIC_EVICTED));
+	}
+	
+	@Test
+	public void sweep_shouldNotEvictASessionBeforeItsTokenExpires() {
+		// setup
+		MockHttpSession session = new MockHttpSession();
+		tracker.track(session, now() + 1000);
+		
+		// replay
+		int count = tracker.sweep();
+		
+		// verify
+		assertEquals(0, count);
+		assertFalse(session.isInvalid());
+		assertEquals(1, tracker.size());
+	}
+	
+	@Test
+	public void sweep_shouldKeepASessionInUseUntilItIsIdle() {
+		// setup
+		MockHttpSession session = new MockHttpSession();
+		tracker.track(session, now() - 1000);
+		
+		// replay
+		int count = tracker.sweep();
+		
+		// verify
+		assertEquals(0, count);
+		assertFalse(session.isInvalid());
+		offset.addAndGet(IDLE_TIME);
+		assertEquals(1, tracker.sweep());
+		assertTrue(session.isInvalid());
+	}
+	
+	@Test
+	public void sweep_shouldFollowTheRenewedTokens() {
+		// setup
+		MockHttpSession session = new MockHttpSession();
+		tracker.track(session, now() + 1000);
+		session.setAttribute(SessionTokens.SESSION_ATTRIBUTE, new SessionTokens("idToken", "refreshToken", now()
+		        + IDLE_TIME * 10));
+		offset.addAndGet(IDLE_TIME + 1000);
+		
+		// replay
+		int count = tracker.sweep();
+		
+		// verify
+		assertEquals(0, count);
+		assertFalse(session.isInvalid());
+		assertEquals(1, tracker.size());
+	}
+	
+	@Test
+	public void track_shouldReplaceThePreviousTrackingOfTheSession() {
+		// setup
+		MockHttpSession session = new MockHttpSession();
+		tracker.track(session, now() + 1000);
+		
+		// replay
+		tracker.track(session, now() + IDLE_TIME * 10);
+		
+		// verify
+		assertEquals(1, tracker.size());
+		offset.addAndGet(IDLE_TIME + 1000);
+		assertEquals(0, tracker.sweep());
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void track_shouldStopTrackingASessionInvalidatedElsewhere() {
+		// setup
+		MockHttpSession session = new MockHttpSession();
+		tracker.track(session, now() + 1000);
+		
+		// replay
+		session.invalidate();
+		
+		// verify
+		assertEquals(0, tracker.size());
+		offset.addAndGet(IDLE_TIME + 1000);
+		assertEquals(0, tracker.sweep());
+	}
+	
+	@Test
+	public void track_shouldDoNothingWhenDisabled() {
+		// setup
+		tracker = new SessionExpiryTracker(new Properties());
+		MockHttpSession session = new MockHttpSession();
+		
+		// replay
+		tracker.track(session, now() + 1000);
+		
+		// verify
+		assertEquals(0, tracker.size());
+		assertEquals(null, session.getAttribute(SessionExpiryTracker.SESSION_ATTRIBUTE));
+	}
+	
+	private long now() {
+		return System.currentTimeMillis() + offset.get();
+	}
+}
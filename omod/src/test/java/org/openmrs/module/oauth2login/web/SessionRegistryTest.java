@@ -0,0 +1,96 @@
+package org.openmrs.module.oauth2login.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpSession;
+
+public class SessionRegistryTest {
+	
+	private final SessionRegistry registry = new SessionRegistry();
+	
+	@Test
+	public void invalidate_shouldInvalidateTheSessionsOfASid() {
+		// setup
+		MockHttpSession session1 = new MockHttpSession();
+		MockHttpSession session2 = new MockHttpSession();
+		registry.register(session1, "sid1", "alice");
+		registry.register(session2, "sid2", "alice");
+		
+		// replay
+		int invalidated = registry.invalidate("sid1", null);
+		
+		// verify
+		assertEquals(1, invalidated);
+		assertTrue(session1.isInvalid());
+		assertFalse(session2.isInvalid());
+		assertEquals(1, registry.size());
+	}
+	
+	@Test
+	public void invalidate_shouldInvalidateAllTheSessionsOfASubWithoutSid() {
+		// setup
+		MockHttpSession session1 = new MockHttpSession();
+		MockHttpSession session2 = new MockHttpSession();
+		MockHttpSession session3 = new MockHttpSession();
+		registry.register(session1, "sid1", "alice");
+		registry.register(session2, "sid2", "alice");
+		registry.register(session3, "sid3", "bob");
+		
+		// replay
+		int invalidated = registry.invalidate(null, "alice");
+		
+		// verify
+		assertEquals(2, invalidated);
+		assertTrue(session1.isInvalid());
+		assertTrue(session2.isInvalid());
+		assertFalse(session3.isInvalid());
+		assertEquals(1, registry.size());
+	}
+	
+	@Test
+	public void invalidate_shouldOnlyInvalidateTheSessionsMatchingBothSidAndSub() {
+		// setup
+		MockHttpSession session = new MockHttpSession();
+		registry.register(session, "sid1", "alice");
+		
+		// replay
+		int invalidated = registry.invalidate("sid1", "bob");
+		
+		// verify
+		assertEquals(0, invalidated);
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void invalidate_shouldIgnoreSessionsThatHaveEnded() {
+		// setup
+		MockHttpSession session = new MockHttpSession();
+		registry.register(session, "sid1", "alice");
+		
+		// replay
+		session.invalidate();
+		
+		// verify
+		assertEquals(0, registry.size());
+		assertEquals(0, registry.invalidate("sid1", "alice"));
+	}
+	
+	@Test
+	public void register_shouldReplaceThePreviousRegistrationOfTheSession() {
+		// setup
+		MockHttpSession session = new MockHttpSession();
+		registry.register(session, "sid1", "alice");
+		
+		// replay
+		registry.register(session, "sid2", "alice");
+		
+		// verify
+		assertEquals(1, registry.size());
+		assertEquals(0, registry.invalidate("sid1", null));
+		assertEquals(1, registry.invalidate("sid2", null));
+		assertEquals(0, registry.size());
+	}
+}
@@ -0,0 +1,125 @@
+package org.openmrs.module.oauth2login.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestOperations;
+
+public class SessionRenewerTest {
+	
+	private static final String TOKEN_URI = "http://localhost:8081/auth/token";
+	
+	private final AtomicLong now = new AtomicLong(1_000_000L);
+	
+	private RestOperations restTemplate;
+	
+	private SessionRenewer renewer;
+	
+	@Before
+	public void setup() {
+		Properties props = new Properties();
+		props.setProperty("clientId", "openmrs");
+		props.setProperty("clientSecret", "secret");
+		props.setProperty("accessTokenUri", TOKEN_URI);
+		props.setProperty(SessionRenewer.PROP_ENABLED, "true");
+		props.setProperty(SessionRenewer.PROP_WINDOW, "60");
+		restTemplate = mock(RestOperations.class);
+		renewer = new SessionRenewer(props, restTemplate, now::get);
+	}
+	
+	@Test
+	public void isDue_shouldOnlyBeTrueWithinTheRenewalWindow() {
+		assertFalse(renewer.isDue(new SessionTokens("id", "refresh", now.get() + 61_000)));
+		assertTrue(renewer.isDue(new SessionTokens("id", "refresh", now.get() + 60_000)));
+		assertTrue(renewer.isDue(new SessionTokens("id", "refresh", now.get() - 1)));
+		assertFalse(renewer.isDue(new SessionTokens("id", null, now.get() - 1)));
+		assertFalse(renewer.isDue(new SessionTokens("id")));
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void renew_shouldRefreshTheTokensInASingleCall() {
+		// setup
+		ArgumentCaptor<HttpEntity> request = ArgumentCaptor.forClass(HttpEntity.class);
+		when(restTemplate.exchange(eq(TOKEN_URI), eq(HttpMethod.POST), request.capture(), eq(String.class))).thenReturn(
+		    new ResponseEntity<>("{\"access_token\":\"at2\",\"token_type\":\"bearer\",\"expires_in\":300}", HttpStatus.OK));
+		
+		// replay
+		SessionTokens renewed = renewer.renew("session1", new SessionTokens("id1", "refresh1", now.get()));
+		
+		// verify
+		MultiValueMap<String, String> form = (MultiValueMap<String, String>) request.getValue().getBody();
+		assertEquals("refresh_token", form.getFirst("grant_type"));
+		assertEquals("refresh1", form.getFirst("refresh_token"));
+		assertEquals("Basic b3Blbm1yczpzZWNyZXQ=", request.getValue().getHeaders().getFirst(HttpHeaders.AUTHORIZATION));
+		assertEquals("id1", renewed.getIdToken());
+		assertEquals("refresh1", renewed.getRefreshToken());
+		assertTrue(renewed.getExpiresAt() > System.currentTimeMillis() + 200_000);
+	}
+	
+	@Test
+	public void renew_shouldKeepTheRotatedTokens() {
+		// setup
+		when(restTemplate.exchange(eq(TOKEN_URI), eq(HttpMethod.POST), any(HttpEntity.class), eq(String.class)))
+		        .thenReturn(new ResponseEntity<>("{\"access_token\":\"at2\",\"token_type\":\"bearer\",\"expires_in\":300,"
+		                + "\"refresh_token\":\"refresh2\",\"id_token\":\"id2\"}", HttpStatus.OK));
+		
+		// replay
+		SessionTokens renewed = renewer.renew("session1", new SessionTokens("id1", "refresh1", now.get()));
+		
+		// verify
+		assertEquals("id2", renewed.getIdToken());
+		assertEquals("refresh2", renewed.getRefreshToken());
+	}
+	
+	@Test(expected = SessionRenewer.RenewalRejectedException.class)
+	public void renew_shouldFailWhenTheRefreshTokenIsRefused() {
+		// setup
+		when(restTemplate.exchange(eq(TOKEN_URI), eq(HttpMethod.POST), any(HttpEntity.class), eq(String.class)))
+		        .thenThrow(new HttpClientErrorException(HttpStatus.BAD_REQUEST, "Bad Request",
+		                "{\"error\":\"invalid_grant\"}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+		
+		// replay
+		renewer.renew("session1", new SessionTokens("id1", "refresh1", now.get()));
+	}
+	
+	@Test(expected = HttpClientErrorException.class)
+	public void renew_shouldFailWithoutRejectingTheSessionWhenRateLimited() {
+		// setup
+		when(restTemplate.exchange(eq(TOKEN_URI), eq(HttpMethod.POST), any(HttpEntity.class), eq(String.class)))
+		        .thenThrow(new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS));
+		
+		// replay
+		renewer.renew("session1", new SessionTokens("id1", "refresh1", now.get()));
+	}
+	
+	@Test(expected = HttpClientErrorException.class)
+	public void renew_shouldFailWithoutRejectingTheSessionWhenTheClientIsRefused() {
+		// setup
+		when(restTemplate.exchange(eq(TOKEN_URI), eq(HttpMethod.POST), any(HttpEntity.class), eq(String.class)))
+		        .thenThrow(new HttpClientErrorException(HttpStatus.UNAUTHORIZED, "Unauthorized",
+		                "{\"error\":\"invalid_client\"}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+		
+		// replay
+		renewer.renew("session1", new SessionTokens("id1", "refresh1", now.get()));
+	}
+}
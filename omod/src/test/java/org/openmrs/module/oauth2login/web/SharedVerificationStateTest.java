@@ -0,0 +1,234 @@
+package org.openmrs.module.oauth2login.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.openmrs.module.oauth2login.db.SharedStateDao;
+import org.openmrs.module.oauth2login.db.StoredJsonWebKeys;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(HttpUtils.class)
+public class SharedVerificationStateTest {
+	
+	private static final String URL = "https://idp/keys";
+	
+	private static final String KEYS = "keys1";
+	
+	private SharedStateDao dao;
+	
+	private AtomicLong now = new AtomicLong(1_000_000);
+	
+	private SharedVerificationState state;
+	
+	@Before
+	public void setup() {
+		mockStatic(HttpUtils.class);
+		dao = mock(SharedStateDao.class);
+		when(dao.getJsonWebKeys()).thenReturn(new StoredJsonWebKeys(null, null, null));
+		Properties props = new Properties();
+		props.setProperty(SharedVerificationState.PROP_ENABLED, "true");
+		state = new SharedVerificationState(dao, props, now::get);
+	}
+	
+	@After
+	public void tearDown() {
+		state.close();
+	}
+	
+	@Test
+	public void getJsonWebKeys_shouldFetchAndShareTheKeysWhenHoldingTheLease() throws Exception {
+		// setup
+		when(dao.acquireJsonWebKeysLease(anyString(), eq(now.get()), eq(now.get() + 30000))).thenReturn(true);
+		when(HttpUtils.getJsonWebKeys(URL)).thenReturn("{\"keys\":[]}");
+		
+		// replay
+		String jwks = state.getJsonWebKeys(URL);
+		
+		// verify
+		assertEquals("{\"keys\":[]}", jwks);
+		ArgumentCaptor<StoredJsonWebKeys> stored = ArgumentCaptor.forClass(StoredJsonWebKeys.class);
+		verify(dao).saveJsonWebKeys(anyString(), stored.capture());
+		assertEquals(URL, stored.getValue().getKeysUrl());
+		assertEquals("{\"keys\":[]}", stored.getValue().getJwks());
+		assertEquals(Long.valueOf(now.get()), stored.getValue().getFetchedAt());
+	}
+	
+	@Test
+	public void getJsonWebKeys_shouldReadTheKeysFetchedByAnotherNode() throws Exception {
+		// setup
+		when(dao.getJsonWebKeys()).thenReturn(new StoredJsonWebKeys(URL, "{\"keys\":[1]}", now.get() - 1000));
+		
+		// replay
+		String jwks = state.getJsonWebKeys(URL);
+		
+		// verify
+		assertEquals("{\"keys\":[1]}", jwks);
+		verify(dao, never()).acquireJsonWebKeysLease(anyString(), anyLong(), anyLong());
+		PowerMockito.verifyStatic(never());
+		HttpUtils.getJsonWebKeys(anyString());
+	}
+	
+	@Test
+	public void getJsonWebKeys_shouldUseTheStoredKeysWhileAnotherNodeHoldsTheLease() throws Exception {
+		// setup
+		when(dao.getJsonWebKeys()).thenReturn(new StoredJsonWebKeys(URL, "{\"keys\":[1]}", now.get() - 1000));
+		state.getJsonWebKeys(URL);
+		
+		// replay
+		String jwks = state.getJsonWebKeys(URL);
+		
+		// verify
+		assertEquals("{\"keys\":[1]}", jwks);
+		verify(dao).acquireJsonWebKeysLease(anyString(), anyLong(), anyLong());
+		PowerMockito.verifyStatic(never());
+		HttpUtils.getJsonWebKeys(anyString());
+	}
+	
+	@Test
+	public void getJsonWebKeys_shouldIgnoreTheKeysStoredForAnotherUrl() throws Exception {
+		// setup
+		when(dao.getJsonWebKeys()).thenReturn(new StoredJsonWebKeys("https://other/keys", "{\"keys\":[1]}", now.get()));
+		when(HttpUtils.getJsonWebKeys(URL)).thenReturn("{\"keys\":[]}");
+		
+		// replay
+		String jwks = state.getJsonWebKeys(URL);
+		
+		// verify
+		assertEquals("{\"keys\":[]}", jwks);
+	}
+	
+	@Test
+	public void getJsonWebKeys_shouldReleaseTheLeaseWhenTheKeysCannotBeFetched() throws Exception {
+		// setup
+		when(dao.acquireJsonWebKeysLease(anyString(), anyLong(), anyLong())).thenReturn(true);
+		when(HttpUtils.getJsonWebKeys(URL)).thenThrow(new IllegalStateException("down"));
+		
+		// replay
+		try {
+			state.getJsonWebKeys(URL);
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		
+		// verify
+		verify(dao).releaseJsonWebKeysLease(anyString());
+		verify(dao, never()).saveJsonWebKeys(anyString(), any(StoredJsonWebKeys.class));
+	}
+	
+	@Test
+	public void isVerified_shouldRecognizeTheTokensVerifiedUntilTheyExpire() {
+		// setup
+		Claims claims = Jwts.claims().setExpiration(new Date(now.get() + 60000));
+		
+		// replay
+		state.verified(KEYS, "a.b.c", claims);
+		
+		// verify
+		assertTrue(state.isVerified(KEYS, "a.b.c"));
+		assertFalse(state.isVerified(KEYS, "a.b.d"));
+		now.addAndGet(60000);
+		assertFalse(state.isVerified(KEYS, "a.b.c"));
+		assertEquals(0, state.size());
+	}
+	
+	@Test
+	public void isVerified_shouldNotRecognizeTheTokensVerifiedWithOtherKeys() {
+		// setup
+		state.verified(KEYS, "a.b.c", Jwts.claims().setExpiration(new Date(now.get() + 60000)));
+		
+		// verify
+		assertFalse(state.isVerified("keys2", "a.b.c"));
+	}
+	
+	@Test
+	public void keysChanged_shouldForgetTheVerifiedTokens() {
+		// setup
+		state.start();
+		state.verified(KEYS, "a.b.c", Jwts.claims().setExpiration(new Date(now.get() + 60000)));
+		
+		// replay
+		state.keysChanged();
+		
+		// verify
+		assertFalse(state.isVerified(KEYS, "a.b.c"));
+		assertEquals(0, state.size());
+		verify(dao, timeout(1000)).deleteVerifiedTokens();
+	}
+	
+	@Test
+	public void verified_shouldNotRecordTokensWithoutExpiry() {
+		// replay
+		state.verified(KEYS, "a.b.c", Jwts.claims());
+		
+		// verify
+		assertFalse(state.isVerified(KEYS, "a.b.c"));
+	}
+	
+	@Test
+	public void start_shouldLoadTheTokensVerifiedByTheCluster() {
+		// setup
+		when(dao.getVerifiedTokens(now.get(), 10000)).thenReturn(
+		    Collections.singletonMap(RevokedTokens.digest(KEYS + " a.b.c"), now.get() + 60000));
+		
+		// replay
+		state.start();
+		
+		// verify
+		assertTrue(state.isVerified(KEYS, "a.b.c"));
+	}
+	
+	@Test
+	public void start_shouldDoNothingUnlessEnabled() {
+		// setup
+		state = new SharedVerificationState(dao, new Properties(), now::get);
+		
+		// replay
+		state.start();
+		
+		// verify
+		verify(dao, never()).getVerifiedTokens(anyLong(), anyInt());
+	}
+	
+	@Test
+	public void purgeExpired_shouldDeleteTheExpiredTokens() {
+		// setup
+		state.verified(KEYS, "a.b.c", Jwts.claims().setExpiration(new Date(now.get() + 1000)));
+		now.addAndGet(1000);
+		
+		// replay
+		state.purgeExpired();
+		
+		// verify
+		assertEquals(0, state.size());
+		verify(dao).deleteExpiredVerifiedTokens(now.get());
+	}
+}
@@ -15,11 +15,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.springframework.web.util.UriComponentsBuilder.fromUriString;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Properties;
 
-import org.junit.BeforeClass;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
@@ -44,8 +42,8 @@ public class UtilsTest {
 	
 	protected static final String PARAM_POST_LOGOUT_URL = "post_logout_redirect_uri";
 	
-	@BeforeClass
-	public static void setUp() {
+	@Before
+	public void setUp() {
 		OAuth2IntegrationTest.initPathInSystemProperties("Keycloak");
 	}
 	
@@ -63,6 +61,20 @@ public class UtilsTest {
 		assertEquals(redirect, BASE_URL + "id_token_hint=" + idToken);
 	}
 	
+	@Test
+	public void getPostLogoutRedirectUrl_shouldUseTheIdTokenOfTheSession() throws Exception {
+		PowerMockito.mockStatic(Context.class);
+		User user = new User();
+		user.setUserProperty(OAuth2LoginConstants.USER_PROP_ID_TOKEN, "legacyToken");
+		Mockito.when(Context.getAuthenticatedUser()).thenReturn(user);
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		SessionTokens.set(request, new SessionTokens("sessionToken"));
+		
+		String redirect = Utils.getPostLogoutRedirectUrl(request);
+		
+		assertEquals(redirect, BASE_URL + "id_token_hint=sessionToken");
+	}
+	
 	@Test
 	public void getPostLogoutRedirectUrl_shouldNotSetIdTokenIfUserIsNotAuthenticated() throws Exception {
 		PowerMockito.mockStatic(Context.class);
@@ -176,9 +188,7 @@ public class UtilsTest {
 		props.setProperty("logoutUri", logoutUrl);
 		PowerMockito.mockStatic(Context.class);
 		PowerMockito.mockStatic(PropertyUtils.class);
-		Path path = Paths.get("/test");
-		PowerMockito.when(PropertyUtils.getOAuth2PropertiesPath()).thenReturn(path);
-		PowerMockito.when(PropertyUtils.getProperties(path)).thenReturn(props);
+		PowerMockito.when(PropertyUtils.getOAuth2Properties()).thenReturn(props);
 		
 		MockHttpServletRequest request = new MockHttpServletRequest();
 		
@@ -196,9 +206,7 @@ public class UtilsTest {
 		props.setProperty("logoutUri.encode.disabled", "true");
 		PowerMockito.mockStatic(Context.class);
 		PowerMockito.mockStatic(PropertyUtils.class);
-		Path path = Paths.get("/test");
-		PowerMockito.when(PropertyUtils.getOAuth2PropertiesPath()).thenReturn(path);
-		PowerMockito.when(PropertyUtils.getProperties(path)).thenReturn(props);
+		PowerMockito.when(PropertyUtils.getOAuth2Properties()).thenReturn(props);
 		
 		MockHttpServletRequest request = new MockHttpServletRequest();
 		
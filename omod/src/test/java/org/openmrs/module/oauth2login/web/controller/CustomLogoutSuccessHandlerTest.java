@@ -1,5 +1,6 @@
 package org.openmrs.module.oauth2login.web.controller;
 
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
@@ -14,10 +15,12 @@ import org.mockito.Mockito;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.oauth2login.OAuth2LoginConstants;
+import org.openmrs.module.oauth2login.web.SessionTokens;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
 import org.springframework.security.web.RedirectStrategy;
 
 @RunWith(PowerMockRunner.class)
@@ -53,4 +56,24 @@ public class CustomLogoutSuccessHandlerTest {
 		    "http://localhost:8081/auth/realms/demo/protocol/openid-connect/logout?id_token_hint=" + idToken);
 	}
 	
+	@Test
+	public void onLogoutSuccess_shouldInvalidateTheSessionAfterReadingItsIdToken() throws IOException, ServletException {
+		//setup
+		PowerMockito.mockStatic(Context.class);
+		CustomLogoutSuccessHandler customLogoutSuccessHandler = new CustomLogoutSuccessHandler();
+		RedirectStrategy redirectStrategy = mock(RedirectStrategy.class);
+		customLogoutSuccessHandler.setRedirectStrategy(redirectStrategy);
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		SessionTokens.set(request, new SessionTokens("sessionToken"));
+		MockHttpSession session = (MockHttpSession) request.getSession();
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		//replay
+		customLogoutSuccessHandler.onLogoutSuccess(request, response, null);
+		
+		//verify
+		assertTrue(session.isInvalid());
+		verify(redirectStrategy).sendRedirect(request, response,
+		    "http://localhost:8081/auth/realms/demo/protocol/openid-connect/logout?id_token_hint=sessionToken");
+	}
+	
 }
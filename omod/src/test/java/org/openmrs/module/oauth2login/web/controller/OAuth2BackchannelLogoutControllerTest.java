@@ -0,0 +1,235 @@
+package org.openmrs.module.oauth2login.web.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.openmrs.module.oauth2login.web.JwtUtils;
+import org.openmrs.module.oauth2login.web.SessionRegistry;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.impl.DefaultClaims;
+import io.jsonwebtoken.security.SignatureException;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(JwtUtils.class)
+public class OAuth2BackchannelLogoutControllerTest {
+	
+	private final OAuth2BackchannelLogoutController controller = new OAuth2BackchannelLogoutController();
+	
+	private final SessionRegistry registry = new SessionRegistry();
+	
+	private final Properties props = new Properties();
+	
+	private final MockHttpSession session = new MockHttpSession();
+	
+	@Before
+	public void setup() throws Exception {
+		props.setProperty("clientId", "openmrs");
+		props.setProperty("issuer", "http://localhost:8081/auth/realms/demo");
+		controller.setOAuth2Properties(props);
+		controller.setSessionRegistry(registry);
+		registry.register(session, "sid1", "alice");
+		
+		PowerMockito.mockStatic(JwtUtils.class);
+		Mockito.when(JwtUtils.hasAudience(any(Claims.class), anyString())).thenCallRealMethod();
+	}
+	
+	private Claims logoutTokenClaims() {
+		Claims claims = new DefaultClaims();
+		claims.setIssuer("http://localhost:8081/auth/realms/demo");
+		claims.setAudience("openmrs");
+		claims.setId(UUID.randomUUID().toString());
+		claims.setIssuedAt(new Date());
+		claims.setSubject("alice");
+		claims.put("sid", "sid1");
+		claims.put("events", Collections.singletonMap(OAuth2BackchannelLogoutController.BACKCHANNEL_LOGOUT_EVENT,
+		    Collections.emptyMap()));
+		return claims;
+	}
+	
+	@Test
+	public void logout_shouldInvalidateTheSessionsOfTheLogoutToken() throws Exception {
+		// setup
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenReturn(logoutTokenClaims());
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(200, response.getStatus());
+		assertEquals("no-store", response.getHeader("Cache-Control"));
+		assertTrue(session.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectATokenThatCantBeVerified() throws Exception {
+		// setup
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenThrow(new SignatureException("invalid"));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(400, response.getStatus());
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectATokenWithoutTheLogoutEvent() throws Exception {
+		// setup
+		Claims claims = logoutTokenClaims();
+		claims.remove("events");
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenReturn(claims);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(400, response.getStatus());
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectATokenWithANonce() throws Exception {
+		// setup
+		Claims claims = logoutTokenClaims();
+		claims.put("nonce", "n-0S6_WzA2Mj");
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenReturn(claims);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(400, response.getStatus());
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectATokenForAnotherClient() throws Exception {
+		// setup
+		Claims claims = logoutTokenClaims();
+		claims.setAudience("another");
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenReturn(claims);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(400, response.getStatus());
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectATokenFromAnotherIssuer() throws Exception {
+		// setup
+		Claims claims = logoutTokenClaims();
+		claims.setIssuer("http://localhost:8081/auth/realms/another");
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenReturn(claims);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(400, response.getStatus());
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectAllTokensWhenNoIssuerIsConfigured() throws Exception {
+		// setup
+		props.remove("issuer");
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenReturn(logoutTokenClaims());
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(400, response.getStatus());
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectATokenWithoutJti() throws Exception {
+		// setup
+		Claims claims = logoutTokenClaims();
+		claims.remove(Claims.ID);
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenReturn(claims);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(400, response.getStatus());
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectATokenOlderThanTheMaxAge() throws Exception {
+		// setup
+		Claims claims = logoutTokenClaims();
+		claims.setIssuedAt(new Date(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(6)));
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenReturn(claims);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(400, response.getStatus());
+		assertFalse(session.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectAReplayedToken() throws Exception {
+		// setup
+		Claims claims = logoutTokenClaims();
+		Mockito.when(JwtUtils.parseAndVerifyToken("logoutToken", props)).thenReturn(claims);
+		controller.logout("logoutToken", new MockHttpServletResponse());
+		MockHttpSession newSession = new MockHttpSession();
+		registry.register(newSession, "sid1", "alice");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		// replay
+		controller.logout("logoutToken", response);
+		
+		// verify
+		assertEquals(400, response.getStatus());
+		assertTrue(session.isInvalid());
+		assertFalse(newSession.isInvalid());
+	}
+	
+	@Test
+	public void logout_shouldRejectAMissingToken() {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		controller.logout(null, response);
+		
+		assertEquals(400, response.getStatus());
+	}
+}
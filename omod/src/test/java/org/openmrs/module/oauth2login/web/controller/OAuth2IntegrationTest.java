@@ -36,6 +36,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.api.context.Credentials;
 import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.TestDaemonToken;
+import org.openmrs.module.oauth2login.OAuth2Configuration;
 import org.openmrs.module.oauth2login.PropertyUtils;
 import org.openmrs.module.oauth2login.authscheme.OAuth2TokenCredentials;
 import org.openmrs.module.oauth2login.authscheme.UserInfo;
@@ -78,6 +79,7 @@ public abstract class OAuth2IntegrationTest extends BaseModuleContextSensitiveTe
 	public static void initPathInSystemProperties(String appDataDirName) {
 		String path = normalizePath(OAuth2IntegrationTest.class.getClassLoader().getResource(appDataDirName).getPath());
 		System.setProperty(OPENMRS_APPLICATION_DATA_DIRECTORY, path);
+		OAuth2Configuration.getInstance().invalidate();
 	}
 	
 	private static String normalizePath(String path) {
@@ -10,32 +10,74 @@
  */
 package org.openmrs.module.oauth2login.web.controller;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hamcrest.Matchers;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.openmrs.Person;
+import org.openmrs.Provider;
 import org.openmrs.User;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.PersonService;
 import org.openmrs.api.ProviderService;
 import org.openmrs.api.UserService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.oauth2login.CircuitBreakerOpenException;
 import org.openmrs.module.oauth2login.OAuth2LoginConstants;
+import org.openmrs.module.oauth2login.authscheme.OAuth2TokenCredentials;
+import org.openmrs.module.oauth2login.authscheme.UserInfo;
+import org.openmrs.module.oauth2login.web.JwtUtils;
+import org.openmrs.module.oauth2login.web.SessionTokens;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
 import org.springframework.security.oauth2.client.OAuth2RestOperations;
+import org.springframework.security.oauth2.client.resource.UserRedirectRequiredException;
+import org.springframework.security.oauth2.client.token.DefaultAccessTokenRequest;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.ModelAndView;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({ Context.class })
+@PrepareForTest({ Context.class, JwtUtils.class })
 public class OAuth2LoginControllerTest {
 	
 	@Mock
@@ -59,9 +101,134 @@ public class OAuth2LoginControllerTest {
 	private OAuth2LoginController controller;
 	
 	@Test
-	public void login_shouldStoreTheIdTokenAsAUserProperty() {
-		final String idToken = "myToken";
-		final String userInfUri = "http://test/userinfo";
+	public void login_shouldStoreTheIdTokenInTheSession() {
+		// setup
+		controller = newController(new Properties(), "myToken");
+		User user = Context.getAuthenticatedUser();
+		user.setUserProperty(OAuth2LoginConstants.USER_PROP_ID_TOKEN, "legacyToken");
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+		
+		// replay
+		try {
+			controller.login();
+		}
+		finally {
+			RequestContextHolder.resetRequestAttributes();
+		}
+		
+		// verify
+		Assert.assertEquals("myToken", SessionTokens.get(request).getIdToken());
+		Mockito.verify(mockUserService).removeUserProperty(user, OAuth2LoginConstants.USER_PROP_ID_TOKEN);
+	}
+	
+	@Test
+	public void login_shouldOnlyKeepTheSessionTokensInTheSession() throws Exception {
+		// setup
+		String idToken = StringUtils.repeat("i", 1200);
+		controller = newController(new Properties(), idToken);
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(StringUtils.repeat("a", 1200));
+		accessToken.setAdditionalInformation(Collections.singletonMap("id_token", idToken));
+		accessToken.setRefreshToken(new DefaultOAuth2RefreshToken(StringUtils.repeat("r", 800)));
+		accessToken.setScope(new HashSet<>(Arrays.asList("openid", "profile", "email")));
+		DefaultOAuth2ClientContext clientContext = new DefaultOAuth2ClientContext(new DefaultAccessTokenRequest());
+		clientContext.setAccessToken(accessToken);
+		Mockito.when(mockTemplate.getOAuth2ClientContext()).thenReturn(clientContext);
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		HttpSession session = request.getSession();
+		session.setAttribute(OAuth2LoginController.ATTR_SESSION_CLIENT_CONTEXT, clientContext);
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+		
+		// replay
+		try {
+			controller.login();
+		}
+		finally {
+			RequestContextHolder.resetRequestAttributes();
+		}
+		
+		// verify
+		Assert.assertEquals(Collections.singletonList(SessionTokens.SESSION_ATTRIBUTE),
+		    Collections.list(session.getAttributeNames()));
+		Assert.assertNull(clientContext.getAccessToken());
+		Assert.assertNull(SecurityContextHolder.getContext().getAuthentication());
+		//the session only holds the id_token, plus a little overhead
+		Assert.assertThat(getSerializedSize(session), Matchers.lessThan(idToken.length() + 512));
+	}
+	
+	@Test
+	public void login_shouldKeepTheClientContextWhenRedirectingToTheIdentityProvider() throws Exception {
+		// setup
+		controller = newController(new Properties(), "myToken");
+		DefaultOAuth2ClientContext clientContext = new DefaultOAuth2ClientContext(new DefaultAccessTokenRequest());
+		clientContext.setPreservedState("aBc123", "http://test/oauth2login");
+		Mockito.when(mockTemplate.getOAuth2ClientContext()).thenReturn(clientContext);
+		Mockito.when(mockTemplate.getForObject(new URI("http://test/userinfo"), String.class)).thenThrow(
+		    new UserRedirectRequiredException("http://idp/auth", new HashMap<>()));
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		HttpSession session = request.getSession();
+		session.setAttribute(OAuth2LoginController.ATTR_SESSION_CLIENT_CONTEXT, clientContext);
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+		
+		// replay
+		try {
+			controller.login();
+			Assert.fail();
+		}
+		catch (UserRedirectRequiredException e) {
+			// expected
+		}
+		finally {
+			RequestContextHolder.resetRequestAttributes();
+		}
+		
+		// verify
+		Assert.assertSame(clientContext, session.getAttribute(OAuth2LoginController.ATTR_SESSION_CLIENT_CONTEXT));
+		Assert.assertEquals("http://test/oauth2login", clientContext.removePreservedState("aBc123"));
+		Assert.assertNull(SecurityContextHolder.getContext().getAuthentication());
+	}
+	
+	private static int getSerializedSize(HttpSession session) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			for (String name : Collections.list(session.getAttributeNames())) {
+				out.writeObject(session.getAttribute(name));
+			}
+		}
+		return bytes.size();
+	}
+	
+	@Test
+	public void login_shouldOnlyActivateTheProviderAccountWhenNotAlreadyApplied() {
+		PowerMockito.mockStatic(Context.class);
+		Mockito.when(Context.isAuthenticated()).thenReturn(true);
+		Map<String, Object> additionalInfo = new HashMap();
+		additionalInfo.put("id_token", "myToken");
+		Mockito.when(mockAccessToken.getAdditionalInformation()).thenReturn(additionalInfo);
+		Mockito.when(mockTemplate.getAccessToken()).thenReturn(mockAccessToken);
+		User user = new User();
+		Person person = new Person(1);
+		user.setPerson(person);
+		Mockito.when(Context.getAuthenticatedUser()).thenReturn(user);
+		Mockito.when(mockPersonService.getPerson(1)).thenReturn(person);
+		controller = new OAuth2LoginController();
+		Whitebox.setInternalState(controller, "oauth2Props", new Properties());
+		Whitebox.setInternalState(controller, "userInfoUri", "http://test/userinfo");
+		Whitebox.setInternalState(controller, "restTemplate", mockTemplate);
+		Whitebox.setInternalState(controller, "ps", mockProviderService);
+		Whitebox.setInternalState(controller, "personService", mockPersonService);
+		Whitebox.setInternalState(controller, "userService", mockUserService);
+		Mockito.when(Context.getAdministrationService()).thenReturn(mockAdminService);
+		
+		controller.login();
+		controller.login();
+		
+		Mockito.verify(mockProviderService, Mockito.times(1)).getProvidersByPerson(person);
+		Mockito.verify(mockProviderService, Mockito.times(1)).saveProvider(Mockito.any(Provider.class));
+		Mockito.verify(mockUserService, Mockito.times(1)).getUserByUsername("daemon");
+	}
+	
+	private OAuth2LoginController newController(Properties oauth2Props, String idToken) {
 		PowerMockito.mockStatic(Context.class);
 		Mockito.when(Context.isAuthenticated()).thenReturn(true);
 		Map<String, Object> additionalInfo = new HashMap();
@@ -71,19 +238,243 @@ public class OAuth2LoginControllerTest {
 		User user = new User();
 		user.setPerson(new Person());
 		Mockito.when(Context.getAuthenticatedUser()).thenReturn(user);
-		controller = new OAuth2LoginController();
-		Properties oauth2Props = new Properties();
+		Mockito.when(Context.getAdministrationService()).thenReturn(mockAdminService);
+		OAuth2LoginController controller = new OAuth2LoginController();
 		Whitebox.setInternalState(controller, "oauth2Props", oauth2Props);
-		Whitebox.setInternalState(controller, "userInfoUri", userInfUri);
+		Whitebox.setInternalState(controller, "userInfoUri", "http://test/userinfo");
 		Whitebox.setInternalState(controller, "restTemplate", mockTemplate);
 		Whitebox.setInternalState(controller, "ps", mockProviderService);
 		Whitebox.setInternalState(controller, "personService", mockPersonService);
 		Whitebox.setInternalState(controller, "userService", mockUserService);
-		Mockito.when(Context.getAdministrationService()).thenReturn(mockAdminService);
+		return controller;
+	}
+	
+	private Properties idTokenProps() {
+		Properties oauth2Props = new Properties();
+		oauth2Props.setProperty("clientId", "openmrs");
+		oauth2Props.setProperty(OAuth2LoginController.PROP_USER_INFO_SOURCE, OAuth2LoginController.USER_INFO_SOURCE_ID_TOKEN);
+		oauth2Props.setProperty(UserInfo.PROP_USERNAME, "preferred_username");
+		return oauth2Props;
+	}
+	
+	@Test
+	public void login_shouldUseTheIdTokenClaimsInsteadOfTheUserInfoUri() throws Exception {
+		Properties oauth2Props = idTokenProps();
+		controller = newController(oauth2Props, "myToken");
+		Claims claims = Jwts.claims().setSubject("4e3074d6").setAudience("openmrs");
+		claims.put("preferred_username", "tatkins");
+		PowerMockito.mockStatic(JwtUtils.class);
+		Mockito.when(JwtUtils.parseAndVerifyIdToken("myToken", oauth2Props)).thenReturn(claims);
 		
 		controller.login();
 		
-		Assert.assertEquals(idToken, user.getUserProperty(OAuth2LoginConstants.USER_PROP_ID_TOKEN));
+		Mockito.verify(mockTemplate, Mockito.never()).getForObject(Mockito.any(URI.class), Mockito.eq(String.class));
+		PowerMockito.verifyStatic();
+		Context.authenticate(Mockito.argThat(new ArgumentMatcher<OAuth2TokenCredentials>() {
+			
+			@Override
+			public boolean matches(Object argument) {
+				return "tatkins".equals(((OAuth2TokenCredentials) argument).getUserInfo().getUsername());
+			}
+		}));
+	}
+	
+	@Test
+	public void login_shouldFallBackToTheUserInfoUriWhenTheIdTokenCannotBeVerified() throws Exception {
+		Properties oauth2Props = idTokenProps();
+		controller = newController(oauth2Props, "myToken");
+		PowerMockito.mockStatic(JwtUtils.class);
+		Mockito.when(JwtUtils.parseAndVerifyIdToken("myToken", oauth2Props)).thenThrow(new SecurityException("invalid"));
+		Mockito.when(mockTemplate.getForObject(new URI("http://test/userinfo"), String.class)).thenReturn(
+		    "{\"preferred_username\": \"tatkins\"}");
+		
+		controller.login();
+		
+		Mockito.verify(mockTemplate).getForObject(new URI("http://test/userinfo"), String.class);
+	}
+	
+	@Test
+	public void login_shouldFailFastWhenTheCircuitBreakerToTheIdentityProviderIsOpen() throws Exception {
+		// setup
+		controller = newController(new Properties(), "myToken");
+		Mockito.when(mockTemplate.getForObject(new URI("http://test/userinfo"), String.class)).thenThrow(
+		    new ResourceAccessException("I/O error", new CircuitBreakerOpenException("test/userinfo")));
+		HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+		
+		// replay
+		try {
+			controller.login();
+			Assert.fail("The login should have been rejected");
+		}
+		catch (IdentityProviderUnavailableException e) {
+			controller.handleIdentityProviderUnavailable(e, response);
+		}
+		
+		// verify
+		PowerMockito.verifyStatic(Mockito.never());
+		Context.authenticate(Mockito.any(OAuth2TokenCredentials.class));
+		Mockito.verify(response).setHeader("Retry-After", "30");
+		Mockito.verify(response).sendError(Mockito.eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), Mockito.anyString());
+	}
+	
+	@Test
+	public void loginCallback_shouldLoginOnTheExecutorAndDispatchTheOutcomeBackToTheContainer() throws Exception {
+		// setup
+		controller = newController(new Properties(), "myToken");
+		Mockito.when(mockTemplate.getForObject(new URI("http://test/userinfo"), String.class)).thenReturn(
+		    "{\"preferred_username\": \"tatkins\"}");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		controller.setLoginExecutor(executor);
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+		AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+		Mockito.when(request.isAsyncSupported()).thenReturn(true);
+		Mockito.when(request.startAsync(request, response)).thenReturn(asyncContext);
+		
+		// replay
+		ModelAndView result = controller.loginCallback(request, response);
+		executor.shutdown();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+		
+		// verify
+		Assert.assertNull(result);
+		ArgumentCaptor<Object> outcome = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(request).setAttribute(Mockito.anyString(), outcome.capture());
+		Mockito.verify(asyncContext).dispatch();
+		Assert.assertEquals("redirect:/", ((ModelAndView) outcome.getValue()).getViewName());
+		
+		// replay
+		Mockito.when(request.getAttribute(Mockito.anyString())).thenReturn(outcome.getValue());
+		
+		// verify
+		Assert.assertSame(outcome.getValue(), controller.loginCallback(request, response));
+	}
+	
+	@Test
+	public void loginCallback_shouldNotLogTheUserInWhenTheLoginTimedOut() throws Exception {
+		// setup
+		controller = newController(new Properties(), "myToken");
+		Mockito.when(mockTemplate.getForObject(new URI("http://test/userinfo"), String.class)).thenReturn(
+		    "{\"preferred_username\": \"tatkins\"}");
+		ExecutorService executor = Mockito.mock(ExecutorService.class);
+		controller.setLoginExecutor(executor);
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+		AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+		Mockito.when(request.isAsyncSupported()).thenReturn(true);
+		Mockito.when(request.startAsync(request, response)).thenReturn(asyncContext);
+		controller.loginCallback(request, response);
+		ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+		Mockito.verify(asyncContext).addListener(listener.capture());
+		ArgumentCaptor<Runnable> login = ArgumentCaptor.forClass(Runnable.class);
+		Mockito.verify(executor).execute(login.capture());
+		
+		// replay
+		listener.getValue().onTimeout(new AsyncEvent(asyncContext, request, response));
+		login.getValue().run();
+		
+		// verify
+		Mockito.verify(response).sendError(Mockito.eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), Mockito.anyString());
+		Mockito.verify(asyncContext).complete();
+		Mockito.verify(asyncContext, Mockito.never()).dispatch();
+		PowerMockito.verifyStatic(Mockito.never());
+		Context.authenticate(Mockito.any(OAuth2TokenCredentials.class));
+	}
+	
+	@Test
+	public void loginCallback_shouldNotTimeOutALoginThatIsAlreadyLoggingTheUserIn() throws Exception {
+		// setup
+		controller = newController(new Properties(), "myToken");
+		ExecutorService executor = Mockito.mock(ExecutorService.class);
+		controller.setLoginExecutor(executor);
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+		AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+		Mockito.when(request.isAsyncSupported()).thenReturn(true);
+		Mockito.when(request.startAsync(request, response)).thenReturn(asyncContext);
+		controller.loginCallback(request, response);
+		ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+		Mockito.verify(asyncContext).addListener(listener.capture());
+		ArgumentCaptor<Runnable> login = ArgumentCaptor.forClass(Runnable.class);
+		Mockito.verify(executor).execute(login.capture());
+		Mockito.when(mockTemplate.getForObject(new URI("http://test/userinfo"), String.class)).thenReturn(
+		    "{\"preferred_username\": \"tatkins\"}");
+		PowerMockito.doAnswer(invocation -> {
+			// the timeout fires while the user is being logged in
+			listener.getValue().onTimeout(new AsyncEvent(asyncContext, request, response));
+			return null;
+		}).when(Context.class);
+		Context.authenticate(Mockito.any(OAuth2TokenCredentials.class));
+		
+		// replay
+		login.getValue().run();
+		
+		// verify
+		Mockito.verify(response, Mockito.never()).sendError(Mockito.anyInt(), Mockito.anyString());
+		Mockito.verify(asyncContext).dispatch();
+	}
+	
+	@Test
+	public void loginCallback_shouldRethrowTheRedirectToTheIdentityProviderOnTheAsyncDispatch() throws Exception {
+		// setup
+		controller = newController(new Properties(), "myToken");
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+		UserRedirectRequiredException redirect = new UserRedirectRequiredException("http://test/auth",
+		        Collections.emptyMap());
+		Mockito.when(request.getAttribute(Mockito.anyString())).thenReturn(redirect);
+		
+		// replay
+		try {
+			controller.loginCallback(request, response);
+			Assert.fail();
+		}
+		catch (UserRedirectRequiredException e) {
+			// verify
+			Assert.assertSame(redirect, e);
+		}
 	}
 	
+	@Test
+	public void loginCallback_shouldRejectTheLoginWhenTheExecutorIsFull() throws Exception {
+		// setup
+		controller = newController(new Properties(), "myToken");
+		ExecutorService executor = Mockito.mock(ExecutorService.class);
+		Mockito.doThrow(new RejectedExecutionException()).when(executor).execute(Mockito.any(Runnable.class));
+		controller.setLoginExecutor(executor);
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+		AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+		Mockito.when(request.isAsyncSupported()).thenReturn(true);
+		Mockito.when(request.startAsync(request, response)).thenReturn(asyncContext);
+		
+		// replay
+		controller.loginCallback(request, response);
+		
+		// verify
+		Mockito.verify(response).sendError(Mockito.eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), Mockito.anyString());
+		Mockito.verify(asyncContext).complete();
+		Mockito.verify(asyncContext, Mockito.never()).dispatch();
+		Mockito.verify(mockTemplate, Mockito.never()).getForObject(Mockito.any(URI.class), Mockito.eq(String.class));
+	}
+	
+	@Test
+	public void loginCallback_shouldLoginOnTheRequestThreadWhenAsyncIsNotSupported() throws Exception {
+		// setup
+		controller = newController(new Properties(), "myToken");
+		Mockito.when(mockTemplate.getForObject(new URI("http://test/userinfo"), String.class)).thenReturn(
+		    "{\"preferred_username\": \"tatkins\"}");
+		ExecutorService executor = Mockito.mock(ExecutorService.class);
+		controller.setLoginExecutor(executor);
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+		
+		// replay
+		ModelAndView result = controller.loginCallback(request, response);
+		
+		// verify
+		Assert.assertEquals("redirect:/", result.getViewName());
+		Mockito.verify(request, Mockito.never()).startAsync(request, response);
+		Mockito.verifyZeroInteractions(executor);
+	}
 }
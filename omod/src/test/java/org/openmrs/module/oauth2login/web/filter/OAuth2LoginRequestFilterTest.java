@@ -25,6 +25,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -33,11 +34,14 @@ import org.openmrs.User;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.context.UserContext;
 import org.openmrs.module.oauth2login.OAuth2LoginConstants;
+import org.openmrs.module.oauth2login.web.SessionRenewer;
+import org.openmrs.module.oauth2login.web.SessionTokens;
 import org.openmrs.module.oauth2login.web.controller.OAuth2IntegrationTest;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest(Context.class)
@@ -79,7 +83,7 @@ public class OAuth2LoginRequestFilterTest {
 		when(session.getAttribute("manual-logout")).thenReturn("true");
 		when(request.getContextPath()).thenReturn("");
 		
-		when(request.getSession()).thenReturn(session);
+		when(request.getSession(false)).thenReturn(session);
 		//		when(request.getServletPath()).thenReturn("/oauth2logout");
 		HttpServletResponse response = mock(HttpServletResponse.class);
 		FilterChain chain = mock(FilterChain.class);
@@ -203,4 +207,56 @@ public class OAuth2LoginRequestFilterTest {
 		    "http://localhost:8081/auth/realms/demo/protocol/openid-connect/logout?id_token_hint=" + idToken);
 	}
 	
+	
+	@Test
+	public void secureUri_shouldRenewTheSessionTokensWhenDue() throws Exception {
+		// setup
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath("/getPatient");
+		SessionTokens tokens = new SessionTokens("id1", "refresh1", 0L);
+		SessionTokens renewed = new SessionTokens("id2", "refresh2", Long.MAX_VALUE);
+		SessionTokens.set(request, tokens);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+		SessionRenewer renewer = mock(SessionRenewer.class);
+		when(renewer.isDue(tokens)).thenReturn(true);
+		when(renewer.renew(request.getSession().getId(), tokens)).thenReturn(renewed);
+		when(Context.isAuthenticated()).thenReturn(true);
+		when(Context.getRegisteredComponent("oauth2.sessionRenewer", SessionRenewer.class)).thenReturn(renewer);
+		
+		// replay
+		filter.doFilter(request, response, chain);
+		
+		// verify
+		Assert.assertSame(renewed, SessionTokens.get(request));
+		verify(chain).doFilter(request, response);
+	}
+	
+	@Test
+	public void secureUri_shouldLogoutWhenTheIdentityProviderRefusesToRenewTheSession() throws Exception {
+		// setup
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath("/getPatient");
+		SessionTokens tokens = new SessionTokens("id1", "refresh1", 0L);
+		SessionTokens.set(request, tokens);
+		MockHttpSession session = (MockHttpSession) request.getSession();
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+		SessionRenewer renewer = mock(SessionRenewer.class);
+		when(renewer.isDue(tokens)).thenReturn(true);
+		when(renewer.renew(session.getId(), tokens)).thenThrow(
+		    new SessionRenewer.RenewalRejectedException(new IllegalStateException("invalid_grant")));
+		when(Context.isAuthenticated()).thenReturn(true);
+		when(Context.getRegisteredComponent("oauth2.sessionRenewer", SessionRenewer.class)).thenReturn(renewer);
+		
+		// replay
+		filter.doFilter(request, response, chain);
+		
+		// verify
+		Assert.assertTrue(session.isInvalid());
+		PowerMockito.verifyStatic();
+		Context.logout();
+		verify(response).sendRedirect("/oauth2login");
+		verifyZeroInteractions(chain);
+	}
 }
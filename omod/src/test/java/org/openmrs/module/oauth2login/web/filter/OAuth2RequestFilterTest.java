@@ -0,0 +1,167 @@
+package org.openmrs.module.oauth2login.web.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.api.context.Context;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class OAuth2RequestFilterTest {
+	
+	private final OAuth2RequestFilter filter = new OAuth2RequestFilter();
+	
+	@Before
+	public void setup() throws Exception {
+		PowerMockito.mockStatic(Context.class);
+		FilterConfig filterConfig = mock(FilterConfig.class);
+		when(filterConfig.getInitParameter(eq("servletPaths"))).thenReturn("/oauth2login,/oauth2logout");
+		when(filterConfig.getInitParameter(eq("requestURIs"))).thenReturn("/ws/rest/v1/session");
+		filter.init(filterConfig);
+	}
+	
+	@Test
+	public void doFilter_shouldPassExemptRequestsThrough() throws Exception {
+		// setup
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath("/oauth2login");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+		
+		// replay
+		filter.doFilter(request, response, chain);
+		
+		// verify
+		verify(chain).doFilter(request, response);
+		verifyZeroInteractions(response);
+	}
+	
+	@Test
+	public void doFilter_shouldRedirectLogoutsToTheModuleLogout() throws Exception {
+		// setup
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath("/logout");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+		
+		// replay
+		filter.doFilter(request, response, chain);
+		
+		// verify
+		verify(response).sendRedirect("/oauth2logout");
+		verifyZeroInteractions(chain);
+	}
+	
+	@Test
+	public void doFilter_shouldChallengeApiClientsWhenTheTokenDoesNotAuthenticate() throws Exception {
+		// setup
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath("/ws");
+		request.setRequestURI("/ws/rest/v1/patient");
+		request.addHeader(OAuth2ServiceAccountFilter.HEADER_NAME_AUTH, "Bearer not-a-jwt");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		FilterChain chain = mock(FilterChain.class);
+		when(Context.isAuthenticated()).thenReturn(false);
+		
+		// replay
+		filter.doFilter(request, response, chain);
+		
+		// verify
+		assertEquals(401, response.getStatus());
+		assertEquals("Bearer realm=\"openmrs\", error=\"invalid_token\"", response.getHeader("WWW-Authenticate"));
+		assertNull(response.getRedirectedUrl());
+		verifyZeroInteractions(chain);
+	}
+	
+	@Test
+	public void doFilter_shouldChallengeXhrsWithoutRedirecting() throws Exception {
+		// setup
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath("/coreapps/patients.page");
+		request.addHeader("X-Requested-With", "XMLHttpRequest");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		when(Context.isAuthenticated()).thenReturn(false);
+		
+		// replay
+		filter.doFilter(request, response, mock(FilterChain.class));
+		
+		// verify
+		assertEquals(401, response.getStatus());
+		assertEquals("Bearer realm=\"openmrs\"", response.getHeader("WWW-Authenticate"));
+	}
+	
+	@Test
+	public void doFilter_shouldRedirectBrowserNavigationsToTheLogin() throws Exception {
+		// setup
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath("/index.htm");
+		request.setRequestURI("/index.htm");
+		request.addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		when(Context.isAuthenticated()).thenReturn(false);
+		
+		// replay
+		filter.doFilter(request, response, mock(FilterChain.class));
+		
+		// verify
+		assertEquals("/oauth2login", response.getRedirectedUrl());
+	}
+	
+	@Test
+	public void doFilter_shouldProceedWithinAnAuthenticatedSession() throws Exception {
+		// setup
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath("/index.htm");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+		when(Context.isAuthenticated()).thenReturn(true);
+		
+		// replay
+		filter.doFilter(request, response, chain);
+		
+		// verify
+		verify(chain).doFilter(request, response);
+	}
+	
+	@Test
+	public void doFilter_shouldNotCreateSessionsForUnauthenticatedRequests() throws Exception {
+		// setup
+		String[] servletPaths = { "/index.htm", "/logout", "/oauth2login", "/ws/rest/v1/patient", "/ws/rest/v1/session" };
+		when(Context.isAuthenticated()).thenReturn(false);
+		int sessions = 0;
+		
+		// replay
+		for (int i = 0; i < 1000; i++) {
+			MockHttpServletRequest request = new MockHttpServletRequest();
+			request.setServletPath(servletPaths[i % servletPaths.length]);
+			request.setRequestURI(servletPaths[i % servletPaths.length]);
+			if (i % 2 == 0) {
+				request.addHeader(OAuth2ServiceAccountFilter.HEADER_NAME_AUTH, "Bearer not-a-jwt");
+			}
+			filter.doFilter(request, mock(HttpServletResponse.class), mock(FilterChain.class));
+			if (request.getSession(false) != null) {
+				sessions++;
+			}
+		}
+		
+		// verify
+		assertEquals(0, sessions);
+	}
+}
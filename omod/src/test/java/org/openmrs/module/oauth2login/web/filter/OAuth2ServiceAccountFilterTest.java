@@ -25,11 +25,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Credentials;
 import org.openmrs.module.oauth2login.authscheme.OAuth2TokenCredentials;
 import org.openmrs.module.oauth2login.authscheme.UserInfo;
 import org.openmrs.module.oauth2login.web.JwtUtils;
+import org.openmrs.module.oauth2login.web.RevokedTokens;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -102,6 +106,43 @@ public class OAuth2ServiceAccountFilterTest {
 		Context.authenticate(mockCredentials);
 	}
 	
+	@Test
+	public void doFilter_shouldNotAuthenticateTheRequestWithARevokedToken() throws Exception {
+		final String jwtToken = "header.payload.signature";
+		when(mockRequest.getHeader(HEADER_NAME_AUTH)).thenReturn(SCHEME_BEARER + " " + jwtToken);
+		
+		when(Context.getRegisteredComponent(OAUTH_PROP_BEAN_NAME, Properties.class)).thenReturn(mockProps);
+		Claims testClaims = new DefaultClaims();
+		testClaims.setId("revokedJti");
+		when(JwtUtils.parseAndVerifyToken(jwtToken, mockProps)).thenReturn(testClaims);
+		RevokedTokens revokedTokens = new RevokedTokens(new Properties());
+		revokedTokens.revokeJti("revokedJti", Long.MAX_VALUE);
+		when(Context.getRegisteredComponent("oauth2.revokedTokens", RevokedTokens.class)).thenReturn(revokedTokens);
+		
+		filter.doFilter(mockRequest, null, mockFilterChain);
+		
+		verifyStatic(never());
+		Context.authenticate(Mockito.any(Credentials.class));
+	}
+	
+	@Test
+	public void doFilter_shouldNotLookUpTheRevokedTokensOnEveryRequestWhenTheyAreNotAvailable() throws Exception {
+		final String jwtToken = "header.payload.signature";
+		when(mockRequest.getHeader(HEADER_NAME_AUTH)).thenReturn(SCHEME_BEARER + " " + jwtToken);
+		
+		when(Context.getRegisteredComponent(OAUTH_PROP_BEAN_NAME, Properties.class)).thenReturn(mockProps);
+		when(JwtUtils.parseAndVerifyToken(jwtToken, mockProps)).thenReturn(new DefaultClaims());
+		when(Context.getRegisteredComponent("oauth2.revokedTokens", RevokedTokens.class)).thenThrow(
+		    new APIException("not found"));
+		
+		filter.doFilter(mockRequest, null, mockFilterChain);
+		filter.authenticate(jwtToken);
+		
+		verifyStatic(times(1));
+		Context.getRegisteredComponent("oauth2.revokedTokens", RevokedTokens.class);
+		verify(mockLogger, times(1)).warn(Mockito.startsWith("The token revocations are not available"));
+	}
+	
 	@Test
 	public void doFilter_shouldAuthenticateTheRequestWithATokenSpecifiedWithAuthHeaderAndBearerSchemeAndDedicatedServiceAccount()
 	        throws Exception {
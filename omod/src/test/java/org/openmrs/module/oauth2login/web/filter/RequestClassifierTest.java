@@ -0,0 +1,138 @@
+package org.openmrs.module.oauth2login.web.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.oauth2login.web.filter.RequestClassifier.RequestClass;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class RequestClassifierTest {
+	
+	private final RequestClassifier classifier = new RequestClassifier("/oauth2login,/oauth2logout",
+	        "/ws/rest/v1/session");
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(Context.class);
+	}
+	
+	private static MockHttpServletRequest request(String servletPath) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setContextPath("/openmrs");
+		request.setServletPath(servletPath);
+		request.setRequestURI("/openmrs" + servletPath);
+		return request;
+	}
+	
+	@Test
+	public void classify_shouldClassifyExemptPathsAndURIs() {
+		assertEquals(RequestClass.EXEMPT, classifier.classify(request("/oauth2login"), null));
+		assertEquals(RequestClass.EXEMPT, classifier.classify(request("/oauth2logout"), "token"));
+		assertEquals(RequestClass.EXEMPT, classifier.classify(request("/ws/rest/v1/session"), null));
+	}
+	
+	@Test
+	public void classify_shouldClassifyLogouts() {
+		assertEquals(RequestClass.LOGOUT, classifier.classify(request("/logout"), null));
+		assertEquals(RequestClass.LOGOUT, classifier.classify(request("/LOGOUT"), null));
+		assertEquals(RequestClass.LOGOUT, classifier.classify(request("/ms/logout"), null));
+	}
+	
+	@Test
+	public void classify_shouldClassifyConfiguredLogoutPaths() {
+		RequestClassifier classifier = new RequestClassifier("/oauth2login", null, "/signout, /custom/logout/*");
+		
+		assertEquals(RequestClass.LOGOUT, classifier.classify(request("/signout"), null));
+		assertEquals(RequestClass.LOGOUT, classifier.classify(request("/custom/logout/now"), null));
+		assertEquals(RequestClass.LOGIN_REDIRECT, classifier.classify(request("/logout"), null));
+	}
+	
+	@Test
+	public void classify_shouldNotCreateSessions() {
+		MockHttpServletRequest request = request("/index.htm");
+		
+		assertEquals(RequestClass.LOGIN_REDIRECT, classifier.classify(request, null));
+		assertNull(request.getSession(false));
+	}
+	
+	@Test
+	public void classify_shouldClassifyManualLogoutsOfExistingSessions() {
+		MockHttpServletRequest request = request("/index.htm");
+		request.getSession().setAttribute("manual-logout", "true");
+		
+		assertEquals(RequestClass.LOGOUT, classifier.classify(request, null));
+	}
+	
+	@Test
+	public void classify_shouldClassifyRequestsWithTokensAsBearerApi() {
+		assertEquals(RequestClass.BEARER_API, classifier.classify(request("/ws/rest/v1/patient"), "token"));
+	}
+	
+	@Test
+	public void classify_shouldNotClassifyRequestsWithABasicAuthorizationAsBearerApi() {
+		MockHttpServletRequest request = request("/ws/rest/v1/patient");
+		request.addHeader(OAuth2ServiceAccountFilter.HEADER_NAME_AUTH, "Basic YWRtaW46QWRtaW4xMjM=");
+		
+		assertEquals(RequestClass.LOGIN_REDIRECT,
+		    classifier.classify(request, OAuth2ServiceAccountFilter.getToken(request)));
+	}
+	
+	@Test
+	public void classify_shouldClassifyRequestsWithABearerAuthorizationAsBearerApi() {
+		MockHttpServletRequest request = request("/ws/rest/v1/patient");
+		request.addHeader(OAuth2ServiceAccountFilter.HEADER_NAME_AUTH, "bearer a.b.c");
+		
+		assertEquals(RequestClass.BEARER_API, classifier.classify(request, OAuth2ServiceAccountFilter.getToken(request)));
+	}
+	
+	@Test
+	public void classify_shouldClassifyOnTheAuthenticationOtherwise() {
+		when(Context.isAuthenticated()).thenReturn(true);
+		assertEquals(RequestClass.SESSION, classifier.classify(request("/index.htm"), null));
+		
+		when(Context.isAuthenticated()).thenReturn(false);
+		assertEquals(RequestClass.LOGIN_REDIRECT, classifier.classify(request("/index.htm"), " "));
+	}
+	
+	@Test
+	public void isApiRequest_shouldDetectApiClients() {
+		MockHttpServletRequest request = request("/ws/fhir2/R4/Patient");
+		assertTrue(classifier.isApiRequest(request));
+		
+		request = request("/index.htm");
+		request.addHeader("Accept", "application/json");
+		assertTrue(classifier.isApiRequest(request));
+		
+		request = request("/index.htm");
+		request.addHeader("X-Requested-With", "XMLHttpRequest");
+		assertTrue(classifier.isApiRequest(request));
+		
+		request = request("/index.htm");
+		request.addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+		assertFalse(classifier.isApiRequest(request));
+		
+		assertTrue(new RequestClassifier(null, null, null, "/api/").isApiRequest(request("/api/patients")));
+	}
+	
+	@Test
+	public void isRestSessionDelete_shouldOnlyMatchDeletesOfTheRestSession() {
+		MockHttpServletRequest request = request("/ws/rest/v1/session");
+		request.setMethod("DELETE");
+		assertTrue(RequestClassifier.isRestSessionDelete(request));
+		
+		request.setMethod("GET");
+		assertFalse(RequestClassifier.isRestSessionDelete(request));
+	}
+}
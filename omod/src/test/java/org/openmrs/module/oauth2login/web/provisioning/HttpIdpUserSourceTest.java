@@ -0,0 +1,99 @@
+package org.openmrs.module.oauth2login.web.provisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.oauth2login.authscheme.UserInfo;
+import org.openmrs.module.oauth2login.provisioning.IdpUserSource.Page;
+import org.springframework.web.client.RestOperations;
+
+import com.jayway.jsonpath.JsonPath;
+
+public class HttpIdpUserSourceTest {
+	
+	private RestOperations restTemplate;
+	
+	private Properties props;
+	
+	@Before
+	public void setup() {
+		restTemplate = mock(RestOperations.class);
+		props = new Properties();
+		props.setProperty(HttpIdpUserSource.PROP_USERS_URL, "http://localhost:8081/admin/realms/demo/users");
+		props.setProperty(HttpIdpUserSource.PROP_PAGE_SIZE, "2");
+	}
+	
+	@Test
+	public void getUsers_shouldPageByOffset() throws Exception {
+		// setup
+		when(restTemplate.getForObject(URI.create("http://localhost:8081/admin/realms/demo/users?first=0&max=2"),
+		    String.class)).thenReturn("[{\"username\": \"jdoe\"}, {\"username\": \"tatkins\"}]");
+		when(restTemplate.getForObject(URI.create("http://localhost:8081/admin/realms/demo/users?first=2&max=2"),
+		    String.class)).thenReturn("[{\"username\": \"psmith\"}]");
+		HttpIdpUserSource source = new HttpIdpUserSource(props, restTemplate);
+		
+		// replay
+		Page first = source.getUsers(null, null);
+		Page second = source.getUsers(null, first.getNextPageToken());
+		
+		// verify
+		assertEquals(2, first.getUsers().size());
+		assertEquals("jdoe", JsonPath.read(first.getUsers().get(0), "$.username"));
+		assertEquals("2", first.getNextPageToken());
+		assertEquals("psmith", JsonPath.read(second.getUsers().get(0), "$.username"));
+		assertNull(second.getNextPageToken());
+	}
+	
+	@Test
+	public void getUsers_shouldFollowTheNextPageLinkAndSendTheWatermark() throws Exception {
+		// setup
+		props.setProperty(HttpIdpUserSource.PROP_USERS_PATH, "$.users");
+		props.setProperty(HttpIdpUserSource.PROP_NEXT_PAGE_PATH, "$.next");
+		props.setProperty(HttpIdpUserSource.PROP_UPDATED_SINCE_PARAM, "updatedSince");
+		when(restTemplate.getForObject(URI.create(
+		    "http://localhost:8081/admin/realms/demo/users?updatedSince=2024-01-01T00:00:00Z"), String.class)).thenReturn(
+		    "{\"users\": [{\"username\": \"jdoe\"}], \"next\": \"http://localhost:8081/users?cursor=abc\"}");
+		when(restTemplate.getForObject(URI.create("http://localhost:8081/users?cursor=abc"), String.class)).thenReturn(
+		    "{\"users\": [{\"username\": \"tatkins\"}]}");
+		HttpIdpUserSource source = new HttpIdpUserSource(props, restTemplate);
+		
+		// replay
+		Page first = source.getUsers(Instant.parse("2024-01-01T00:00:00Z"), null);
+		Page second = source.getUsers(Instant.parse("2024-01-01T00:00:00Z"), first.getNextPageToken());
+		
+		// verify
+		assertEquals("jdoe", JsonPath.read(first.getUsers().get(0), "$.username"));
+		assertEquals("http://localhost:8081/users?cursor=abc", first.getNextPageToken());
+		assertEquals("tatkins", JsonPath.read(second.getUsers().get(0), "$.username"));
+		assertNull(second.getNextPageToken());
+	}
+	
+	@Test
+	public void getUsers_shouldAddTheRolesFetchedForEachUser() throws Exception {
+		// setup
+		props.setProperty(HttpIdpUserSource.PROP_ROLES_URL,
+		    "http://localhost:8081/admin/realms/demo/users/{id}/role-mappings/realm/composite");
+		props.setProperty(UserInfo.PROP_ROLES, "roles");
+		when(restTemplate.getForObject(URI.create("http://localhost:8081/admin/realms/demo/users?first=0&max=2"),
+		    String.class)).thenReturn("[{\"id\": \"a1\", \"username\": \"jdoe\"}]");
+		when(restTemplate.getForObject(
+		    URI.create("http://localhost:8081/admin/realms/demo/users/a1/role-mappings/realm/composite"), String.class))
+		        .thenReturn("[{\"id\": \"r1\", \"name\": \"Nurse\"}, {\"id\": \"r2\", \"name\": \"Provider\"}]");
+		HttpIdpUserSource source = new HttpIdpUserSource(props, restTemplate);
+		
+		// replay
+		Page page = source.getUsers(null, null);
+		
+		// verify
+		assertEquals(Arrays.asList("Nurse", "Provider"), JsonPath.read(page.getUsers().get(0), "$.roles"));
+	}
+}